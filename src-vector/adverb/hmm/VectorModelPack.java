@@ -0,0 +1,145 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+import jdk.incubator.vector.*;
+
+
+//
+// A ModelPack whose lanes are stepped with the incubating JDK Vector API, one vector of models per instruction.
+// ModelPack's tables are lane-minor, so the values of one column for consecutive lanes are consecutive floats and
+// every recurrence, including the silent DELETE chain, is a vector load, add, and max per column. Bypasses are folded
+// in per lane by ModelPack.addBypasses(). Vector adds and maxes round like scalar ones, so scores are the same as
+// ModelPack's bit for bit.
+//
+// The last model is repeated to fill the last vector; the repeats' scores are dropped. Requires "--add-modules
+// jdk.incubator.vector" at compile time and run time, like VectorViterbi. Don't construct this class directly; use
+// ModelPack.newPack().
+//
+
+
+public class VectorModelPack extends ModelPack
+{
+	private final static VectorSpecies<Float>	SPECIES			= FloatVector.SPECIES_PREFERRED;
+	private final static float					ZERO			= CompiledProfileHMM.ZERO;
+
+	private int									nModels;		// not counting repeats
+
+
+	public VectorModelPack(List<CompiledProfileHMM> models)
+	{
+		super(fillLastVector(models));
+		nModels = models.size();
+	}
+
+
+	private static List<CompiledProfileHMM> fillLastVector(List<CompiledProfileHMM> models)
+	{
+		List<CompiledProfileHMM> ret = new ArrayList<>(models);
+		while (ret.size() % SPECIES.length() != 0)
+			ret.add(models.get(models.size()-1));
+		return ret;
+	}
+
+
+	public static String getSpeciesDescription()
+	{
+		return SPECIES.toString();
+	}
+
+
+	public int getNLanes()							{ return nModels; }
+
+
+	public float[] logOddsViterbiScores(String sObservations)
+	{
+		return Arrays.copyOf(super.logOddsViterbiScores(sObservations), nModels);
+	}
+
+
+	// Same arithmetic as ModelPack.generateNextRow(). nLanes is a multiple of the vector length.
+	void generateNextRow(float[] prevRow, float[] nextRow, int symbol,
+						 CompiledProfileHMM.SoftBypassMax[] softMaxes, double[] softMaxKeys)
+	{
+		for (int lane=0; lane<nLanes; lane++)
+			softMaxes[lane].clear();
+		Arrays.fill(softMaxKeys, Double.NEGATIVE_INFINITY);
+		int emissionOffset = symbol * nStates * nLanes;
+
+		for (int col=0; col<=nCols; col++)
+		{
+			// INSERT state. As in ModelPack, any slot can stand in for M_(-1).
+			int insert = CompiledProfileHMM.insertIndex(col) * nLanes;
+			int prevMatch = (col > 0)  ?  CompiledProfileHMM.matchIndex(col-1) * nLanes  :  insert;
+			int colOffset = col * nLanes;
+			for (int lane=0; lane<nLanes; lane+=SPECIES.length())
+			{
+				FloatVector fromSelf = FloatVector.fromArray(SPECIES, prevRow, insert + lane)
+					.add(FloatVector.fromArray(SPECIES, insertToSelfLogOdds, colOffset + lane));
+				FloatVector fromMatch = FloatVector.fromArray(SPECIES, prevRow, prevMatch + lane)
+					.add(FloatVector.fromArray(SPECIES, matchToInsertLogOdds, colOffset + lane));
+				fromSelf.max(fromMatch).add(FloatVector.fromArray(SPECIES, emissionLogOdds, emissionOffset + insert + lane))
+					.intoArray(nextRow, insert + lane);
+			}
+			if (col == nCols)
+				break;
+
+			// MATCH state: best predecessor first, then bypasses, emission last.
+			int match = CompiledProfileHMM.matchIndex(col) * nLanes;
+			int prevDelete = (nStates + col - 1) * nLanes;
+			boolean closesDelete = hasDeleteChain  &&  col > 0;
+			for (int lane=0; lane<nLanes; lane+=SPECIES.length())
+			{
+				FloatVector fromInsert = FloatVector.fromArray(SPECIES, prevRow, insert + lane)
+					.add(FloatVector.fromArray(SPECIES, insertToMatchLogOdds, colOffset + lane));
+				FloatVector fromMatch = FloatVector.fromArray(SPECIES, prevRow, prevMatch + lane)
+					.add(FloatVector.fromArray(SPECIES, matchToMatchLogOdds, colOffset + lane));
+				FloatVector best = fromInsert.max(fromMatch);
+				if (closesDelete)
+					best = best.max(FloatVector.fromArray(SPECIES, prevRow, prevDelete + lane)
+						.add(FloatVector.fromArray(SPECIES, deleteCloseLogOdds, colOffset + lane)));
+				best.intoArray(nextRow, match + lane);
+			}
+			addBypasses(prevRow, nextRow, col, softMaxes, softMaxKeys);
+			for (int lane=0; lane<nLanes; lane+=SPECIES.length())
+				FloatVector.fromArray(SPECIES, nextRow, match + lane)
+					.add(FloatVector.fromArray(SPECIES, emissionLogOdds, emissionOffset + match + lane))
+					.intoArray(nextRow, match + lane);
+		}
+
+		// Silent DELETE chain. Sequential in columns, but the lanes are independent.
+		if (hasDeleteChain)
+		{
+			Arrays.fill(nextRow, nStates*nLanes, (nStates+1)*nLanes, ZERO);
+			for (int col=1; col<nCols; col++)
+			{
+				int delete = (nStates + col) * nLanes;
+				int prevMatch = CompiledProfileHMM.matchIndex(col-1) * nLanes;
+				for (int lane=0; lane<nLanes; lane+=SPECIES.length())
+				{
+					FloatVector open = FloatVector.fromArray(SPECIES, nextRow, prevMatch + lane)
+						.add(FloatVector.fromArray(SPECIES, deleteOpenLogOdds, col*nLanes + lane));
+					FloatVector extend = FloatVector.fromArray(SPECIES, nextRow, delete - nLanes + lane)
+						.add(FloatVector.fromArray(SPECIES, deleteExtendLogOdds, col*nLanes + lane));
+					open.max(extend).intoArray(nextRow, delete + lane);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+import jdk.incubator.vector.*;
+
+
+//
+// ShortViterbi's 16-bit screening recurrence with the incubating JDK Vector API. Columns are laid out as in
+// VectorViterbi, so the MATCH and INSERT recurrences of consecutive columns are computed a vector at a time, twice as
+// many per instruction as with floats. Bypasses, DELETE closes, and the silent DELETE chain are folded in by a scalar
+// pass with ShortViterbi.plus().
+//
+// The JDK 17 Vector API has no saturating add, so sums wrap. Every table term is <= 0, and a sum with a term <= 0
+// wraps exactly when it comes out higher than the cell it was added to, so such lanes are set to FLOOR. That's the
+// same as ShortViterbi.plus(), so scores are the same as ShortViterbi's. Requires "--add-modules
+// jdk.incubator.vector" at compile time and run time, like VectorViterbi. Don't construct this class directly; use
+// ShortViterbi.newVectorScorer().
+//
+
+
+public class VectorShortViterbi implements LogOddsViterbiScorer
+{
+	private final static VectorSpecies<Short>	SPECIES			= ShortVector.SPECIES_PREFERRED;
+	private final static short					FLOOR			= ShortViterbi.FLOOR;
+
+	private ShortViterbi						filter;
+	private CompiledProfileHMM					model;
+	private int									nCols;
+
+	// By column, as in VectorViterbi: in MATCH rows, M_j is at index j+1 and index 0 is FLOOR.
+	private short[][]							insertEmissions;		// [symbol][col]
+	private short[][]							matchEmissions;			// [symbol][col]
+
+
+	public VectorShortViterbi(ShortViterbi filter)
+	{
+		this.filter = filter;
+		model = filter.model;
+		nCols = filter.nCols;
+		assert filter.matchToInsert[0] == FLOOR  &&  filter.matchToMatch[0] == FLOOR;
+
+		int nSymbols = model.alphabet.length;
+		insertEmissions = new short[nSymbols][nCols+1];
+		matchEmissions = new short[nSymbols][nCols];
+		for (int sym=0; sym<nSymbols; sym++)
+		{
+			for (int col=0; col<=nCols; col++)
+			{
+				insertEmissions[sym][col] = filter.emissions[sym*filter.nStates + CompiledProfileHMM.insertIndex(col)];
+				if (col < nCols)
+					matchEmissions[sym][col] = filter.emissions[sym*filter.nStates + CompiledProfileHMM.matchIndex(col)];
+			}
+		}
+		for (short[] terms: Arrays.asList(filter.emissions, filter.matchToInsert, filter.insertToSelf, filter.insertToMatch, filter.matchToMatch))
+			for (short term: terms)
+				assert term <= 0;
+	}
+
+
+	public static String getSpeciesDescription()
+	{
+		return SPECIES.toString();
+	}
+
+
+	// Sum of a cell and a table term <= 0, saturating at FLOOR.
+	private static ShortVector plus(ShortVector cells, ShortVector terms)
+	{
+		ShortVector sum = cells.add(terms);
+		return sum.blend(FLOOR, sum.compare(VectorOperators.GT, cells));
+	}
+
+
+	public float logOddsViterbiScore(int[] symbols) throws HMMException
+	{
+		short[] row = new short[filter.rowLength];
+		double offset = filter.generateFirstRow(symbols, row);
+
+		short[] prevMatches = new short[nCols+1];
+		short[] nextMatches = new short[nCols+1];
+		short[] prevInserts = new short[nCols+1];
+		short[] nextInserts = new short[nCols+1];
+		short[] prevDeletes = new short[nCols];
+		short[] nextDeletes = new short[nCols];
+		prevMatches[0] = nextMatches[0] = FLOOR;
+		unpack(row, prevMatches, prevInserts, prevDeletes);
+
+		for (int i=1; i<symbols.length; i++)
+		{
+			int rowMax = generateNextRow(prevMatches, prevInserts, prevDeletes, nextMatches, nextInserts, nextDeletes, symbols[i]);
+			subtract(nextInserts, 0, rowMax);
+			subtract(nextMatches, 1, rowMax);
+			if (model.hasDeleteChain)
+				subtract(nextDeletes, 0, rowMax);
+			offset += (double)rowMax / ShortViterbi.SCALE;
+			short[] swap = prevMatches;
+			prevMatches = nextMatches;
+			nextMatches = swap;
+			swap = prevInserts;
+			prevInserts = nextInserts;
+			nextInserts = swap;
+			swap = prevDeletes;
+			prevDeletes = nextDeletes;
+			nextDeletes = swap;
+		}
+
+		pack(prevMatches, prevInserts, prevDeletes, row);
+		return filter.finalRowToScore(row, offset);
+	}
+
+
+	private void unpack(short[] row, short[] matches, short[] inserts, short[] deletes)
+	{
+		for (int col=0; col<=nCols; col++)
+		{
+			inserts[col] = row[CompiledProfileHMM.insertIndex(col)];
+			if (col == nCols)
+				break;
+			matches[col+1] = row[CompiledProfileHMM.matchIndex(col)];
+			deletes[col] = model.hasDeleteChain  ?  row[model.deleteIndex(col)]  :  FLOOR;
+		}
+	}
+
+
+	private void pack(short[] matches, short[] inserts, short[] deletes, short[] row)
+	{
+		for (int col=0; col<=nCols; col++)
+		{
+			row[CompiledProfileHMM.insertIndex(col)] = inserts[col];
+			if (col == nCols)
+				break;
+			row[CompiledProfileHMM.matchIndex(col)] = matches[col+1];
+			if (model.hasDeleteChain)
+				row[model.deleteIndex(col)] = deletes[col];
+		}
+	}
+
+
+	// Makes cells relative to the row's best cell, as ShortViterbi does. No cell is above rowMax, so unless rowMax is
+	// FLOOR or above zero, the difference can't leave [FLOOR, 0] and needs no saturation.
+	private static void subtract(short[] cells, int from, int rowMax)
+	{
+		int i = from;
+		if (rowMax > FLOOR  &&  rowMax <= 0)
+		{
+			ShortVector max = ShortVector.broadcast(SPECIES, (short)rowMax);
+			for (int bound=from+SPECIES.loopBound(cells.length-from); i<bound; i+=SPECIES.length())
+				ShortVector.fromArray(SPECIES, cells, i).sub(max).intoArray(cells, i);
+		}
+		for (; i<cells.length; i++)
+			cells[i] = (short)Math.max(FLOOR, cells[i] - rowMax);
+	}
+
+
+	// Same recurrence as ShortViterbi.generateNextRow(). Returns the best cell.
+	private int generateNextRow(short[] prevMatches, short[] prevInserts, short[] prevDeletes,
+								short[] nextMatches, short[] nextInserts, short[] nextDeletes, int symbol)
+	{
+		short[] insertEmissions = this.insertEmissions[symbol];
+		short[] matchEmissions = this.matchEmissions[symbol];
+		ShortVector rowMaxes = ShortVector.broadcast(SPECIES, FLOOR);
+		int rowMax = FLOOR;
+
+		// INSERT states: I_j from I_j and M_(j-1).
+		int bound = SPECIES.loopBound(nCols+1);
+		int col = 0;
+		for (; col<bound; col+=SPECIES.length())
+		{
+			ShortVector fromSelf = plus(ShortVector.fromArray(SPECIES, prevInserts, col), ShortVector.fromArray(SPECIES, filter.insertToSelf, col));
+			ShortVector fromMatch = plus(ShortVector.fromArray(SPECIES, prevMatches, col), ShortVector.fromArray(SPECIES, filter.matchToInsert, col));
+			ShortVector best = plus(fromSelf.max(fromMatch), ShortVector.fromArray(SPECIES, insertEmissions, col));
+			best.intoArray(nextInserts, col);
+			rowMaxes = rowMaxes.max(best);
+		}
+		for (; col<=nCols; col++)
+		{
+			int best = Math.max(ShortViterbi.plus(prevInserts[col], filter.insertToSelf[col]),
+								ShortViterbi.plus(prevMatches[col], filter.matchToInsert[col]));
+			nextInserts[col] = (short)ShortViterbi.plus(best, insertEmissions[col]);
+			rowMax = Math.max(rowMax, nextInserts[col]);
+		}
+
+		// MATCH states: M_j from I_j and M_(j-1). Emissions are added after the scalar pass.
+		bound = SPECIES.loopBound(nCols);
+		col = 0;
+		for (; col<bound; col+=SPECIES.length())
+		{
+			ShortVector fromInsert = plus(ShortVector.fromArray(SPECIES, prevInserts, col), ShortVector.fromArray(SPECIES, filter.insertToMatch, col));
+			ShortVector fromMatch = plus(ShortVector.fromArray(SPECIES, prevMatches, col), ShortVector.fromArray(SPECIES, filter.matchToMatch, col));
+			fromInsert.max(fromMatch).intoArray(nextMatches, col+1);
+		}
+		for (; col<nCols; col++)
+			nextMatches[col+1] = (short)Math.max(ShortViterbi.plus(prevInserts[col], filter.insertToMatch[col]),
+												 ShortViterbi.plus(prevMatches[col], filter.matchToMatch[col]));
+
+		// Scalar pass: bypasses and DELETE closes. A soft bypass can raise a cell slightly above zero, but not out
+		// of range.
+		int softKeyMax = FLOOR;
+		for (col=0; col<nCols; col++)
+		{
+			int best = nextMatches[col+1];
+			for (int n=model.hardBypassStarts.get(col); n<model.hardBypassStarts.get(col+1); n++)
+				best = Math.max(best, ShortViterbi.plus(prevMatches[model.hardBypassSrcCols.get(n)+1], filter.hardBypasses[n]));
+			if (filter.softBypasses != null)
+			{
+				for (int n=model.softBypassStarts.get(col); n<model.softBypassStarts.get(col+1); n++)
+					best = Math.max(best, ShortViterbi.plus(prevMatches[model.softBypassSrcCols.get(n)+1], filter.softBypasses[n]));
+			}
+			else
+			{
+				if (col >= 2)
+					softKeyMax = Math.max(softKeyMax, ShortViterbi.plus(prevMatches[col-1], filter.softKeyOffsets[col-2]));
+				best = Math.max(best, ShortViterbi.plus(softKeyMax, filter.softMaxRelatives[col]));
+			}
+			if (model.hasDeleteChain  &&  col > 0)
+				best = Math.max(best, ShortViterbi.plus(prevDeletes[col-1], filter.deleteClose[col]));
+			nextMatches[col+1] = (short)best;
+		}
+
+		// MATCH emissions.
+		col = 0;
+		for (; col<bound; col+=SPECIES.length())
+		{
+			ShortVector best = plus(ShortVector.fromArray(SPECIES, nextMatches, col+1), ShortVector.fromArray(SPECIES, matchEmissions, col));
+			best.intoArray(nextMatches, col+1);
+			rowMaxes = rowMaxes.max(best);
+		}
+		for (; col<nCols; col++)
+		{
+			nextMatches[col+1] = (short)ShortViterbi.plus(nextMatches[col+1], matchEmissions[col]);
+			rowMax = Math.max(rowMax, nextMatches[col+1]);
+		}
+
+		// Silent DELETE chain, in column order. Never better than the MATCH state it opens from.
+		if (model.hasDeleteChain)
+		{
+			nextDeletes[0] = FLOOR;
+			for (col=1; col<nCols; col++)
+				nextDeletes[col] = (short)Math.max(ShortViterbi.plus(nextMatches[col], filter.deleteOpen[col]),
+												   ShortViterbi.plus(nextDeletes[col-1], filter.deleteExtend[col]));
+		}
+		return Math.max(rowMax, rowMaxes.reduceLanes(VectorOperators.MAX));
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+import jdk.incubator.vector.*;
+
+
+//
+// SIMD log-odds Viterbi for a CompiledProfileHMM, using the incubating JDK Vector API at the platform's preferred
+// vector width. Requires "--add-modules jdk.incubator.vector" at compile time and run time, so this class is kept in
+// src-vector, apart from the sources that build without the flag; compile it after src, with src's classes on the
+// classpath. Don't construct this class directly; CompiledProfileHMM.newVectorScorer() returns the scalar engine if
+// the module isn't available or this class wasn't compiled.
+//
+// A folded model has no dependencies within a row, so the MATCH and INSERT recurrences are computed for a vector of
+// consecutive columns at once, reading the previous row at offset j-1. No striping is needed. Bypasses and the
+// silent DELETE chain are sparse or sequential, so they are folded in by a scalar pass. Soft bypasses use the
+// separable form of their weights (see CompiledProfileHMM.softBypassKeyOffsets) with a running maximum and no exact
+// re-evaluation, so scores agree with the scalar engine to within float tolerance rather than bit for bit.
+//
+
+
+public class VectorViterbi implements LogOddsViterbiScorer
+{
+	private final static VectorSpecies<Float>	SPECIES			= FloatVector.SPECIES_PREFERRED;
+	private final static float					ZERO			= CompiledProfileHMM.ZERO;
+
+	private CompiledProfileHMM					model;
+	private int									nCols;
+
+	// Tables indexed by column, so that consecutive columns are consecutive floats. In MATCH rows, M_j is at
+	// index j+1 and index 0 is ZERO, so reading a vector at j gives M_(j-1).
+	private float[]								matchToInsertLogOdds;		// nCols+1
+	private float[]								insertToSelfLogOdds;		// nCols+1
+	private float[]								insertToMatchLogOdds;		// nCols
+	private float[]								matchToMatchLogOdds;		// nCols
+	private float[][]							insertEmissionLogOdds;		// [symbol][col]
+	private float[][]							matchEmissionLogOdds;		// [symbol][col]
+	private float[]								softBypassRelativeLogOdds;	// by dest col, null if not closed form
+
+
+	public VectorViterbi(CompiledProfileHMM model)
+	{
+		this.model = model;
+		nCols = model.nCols;
+		matchToInsertLogOdds = CompiledProfileHMM.toArray(model.matchToInsertLogOdds);
+		insertToSelfLogOdds = CompiledProfileHMM.toArray(model.insertToSelfLogOdds);
+		insertToMatchLogOdds = CompiledProfileHMM.toArray(model.insertToMatchLogOdds);
+		matchToMatchLogOdds = CompiledProfileHMM.toArray(model.matchToMatchLogOdds);
+
+		int nSymbols = model.alphabet.length;
+		insertEmissionLogOdds = new float[nSymbols][nCols+1];
+		matchEmissionLogOdds = new float[nSymbols][nCols];
+		for (int sym=0; sym<nSymbols; sym++)
+		{
+			for (int col=0; col<=nCols; col++)
+			{
+				insertEmissionLogOdds[sym][col] = model.emissionLogOdds.get(sym*model.nStates + CompiledProfileHMM.insertIndex(col));
+				if (col < nCols)
+					matchEmissionLogOdds[sym][col] = model.emissionLogOdds.get(sym*model.nStates + CompiledProfileHMM.matchIndex(col));
+			}
+		}
+
+		// w(c, j) - w(c, STOP) is nearly independent of c. Evaluate it for the first soft source.
+		if (model.softBypassStarts == null)
+		{
+			softBypassRelativeLogOdds = new float[nCols];
+			Arrays.fill(softBypassRelativeLogOdds, ZERO);
+			int firstSrcCol = 0;
+			while (firstSrcCol < nCols  &&  model.softBypassKeyOffsets.get(firstSrcCol) == ZERO)
+				firstSrcCol++;
+			for (int destCol=firstSrcCol+2; destCol<nCols; destCol++)
+				softBypassRelativeLogOdds[destCol] =
+					ProfileHMM.softBypassLogOdds(nCols, firstSrcCol, destCol) - model.softBypassKeyOffsets.get(firstSrcCol);
+		}
+	}
+
+
+	public static String getSpeciesDescription()
+	{
+		return SPECIES.toString();
+	}
+
+
+	public float logOddsViterbiScore(int[] symbols) throws HMMException
+	{
+		if (symbols.length == 0)
+			throw new HMMException("Empty input, no Viterbi path");
+
+		float[] prevMatches = new float[nCols+1];
+		float[] nextMatches = new float[nCols+1];
+		float[] prevInserts = new float[nCols+1];
+		float[] nextInserts = new float[nCols+1];
+		float[] prevDeletes = new float[nCols];
+		float[] nextDeletes = new float[nCols];
+		prevMatches[0] = nextMatches[0] = ZERO;
+
+		// First row is computed by the scalar engine.
+		float[] row = new float[model.rowLength];
+		model.generateFirstRow(row, symbols[0]);
+		unpack(row, prevMatches, prevInserts, prevDeletes);
+
+		for (int i=1; i<symbols.length; i++)
+		{
+			if (symbols[i] < 0)
+			{
+				Arrays.fill(nextMatches, ZERO);
+				Arrays.fill(nextInserts, ZERO);
+				Arrays.fill(nextDeletes, ZERO);
+			}
+			else
+				generateNextRow(prevMatches, prevInserts, prevDeletes, nextMatches, nextInserts, nextDeletes, symbols[i]);
+			float[] swap = prevMatches;
+			prevMatches = nextMatches;
+			nextMatches = swap;
+			swap = prevInserts;
+			prevInserts = nextInserts;
+			nextInserts = swap;
+			swap = prevDeletes;
+			prevDeletes = nextDeletes;
+			nextDeletes = swap;
+		}
+
+		pack(prevMatches, prevInserts, prevDeletes, row);
+		return model.finalRowToScore(row);
+	}
+
+
+	private void unpack(float[] row, float[] matches, float[] inserts, float[] deletes)
+	{
+		for (int col=0; col<=nCols; col++)
+		{
+			inserts[col] = row[CompiledProfileHMM.insertIndex(col)];
+			if (col == nCols)
+				break;
+			matches[col+1] = row[CompiledProfileHMM.matchIndex(col)];
+			deletes[col] = model.hasDeleteChain  ?  row[model.deleteIndex(col)]  :  ZERO;
+		}
+	}
+
+
+	private void pack(float[] matches, float[] inserts, float[] deletes, float[] row)
+	{
+		for (int col=0; col<=nCols; col++)
+		{
+			row[CompiledProfileHMM.insertIndex(col)] = inserts[col];
+			if (col == nCols)
+				break;
+			row[CompiledProfileHMM.matchIndex(col)] = matches[col+1];
+			if (model.hasDeleteChain)
+				row[model.deleteIndex(col)] = deletes[col];
+		}
+	}
+
+
+	private void generateNextRow(float[] prevMatches, float[] prevInserts, float[] prevDeletes,
+								 float[] nextMatches, float[] nextInserts, float[] nextDeletes, int symbol)
+	{
+		float[] insertEmissions = insertEmissionLogOdds[symbol];
+		float[] matchEmissions = matchEmissionLogOdds[symbol];
+
+		// INSERT states: I_j from I_j and M_(j-1).
+		int bound = SPECIES.loopBound(nCols+1);
+		int col = 0;
+		for (; col<bound; col+=SPECIES.length())
+		{
+			FloatVector fromSelf = FloatVector.fromArray(SPECIES, prevInserts, col).add(FloatVector.fromArray(SPECIES, insertToSelfLogOdds, col));
+			FloatVector fromMatch = FloatVector.fromArray(SPECIES, prevMatches, col).add(FloatVector.fromArray(SPECIES, matchToInsertLogOdds, col));
+			fromSelf.max(fromMatch).add(FloatVector.fromArray(SPECIES, insertEmissions, col)).intoArray(nextInserts, col);
+		}
+		for (; col<=nCols; col++)
+			nextInserts[col] = Math.max(prevInserts[col] + insertToSelfLogOdds[col], prevMatches[col] + matchToInsertLogOdds[col]) + insertEmissions[col];
+
+		// MATCH states: M_j from I_j and M_(j-1). Emissions are added after the scalar pass.
+		bound = SPECIES.loopBound(nCols);
+		col = 0;
+		for (; col<bound; col+=SPECIES.length())
+		{
+			FloatVector fromInsert = FloatVector.fromArray(SPECIES, prevInserts, col).add(FloatVector.fromArray(SPECIES, insertToMatchLogOdds, col));
+			FloatVector fromMatch = FloatVector.fromArray(SPECIES, prevMatches, col).add(FloatVector.fromArray(SPECIES, matchToMatchLogOdds, col));
+			fromInsert.max(fromMatch).intoArray(nextMatches, col+1);
+		}
+		for (; col<nCols; col++)
+			nextMatches[col+1] = Math.max(prevInserts[col] + insertToMatchLogOdds[col], prevMatches[col] + matchToMatchLogOdds[col]);
+
+		// Scalar pass: bypasses and DELETE closes.
+		double softMaxKey = Double.NEGATIVE_INFINITY;
+		for (col=0; col<nCols; col++)
+		{
+			float best = nextMatches[col+1];
+			for (int n=model.hardBypassStarts.get(col); n<model.hardBypassStarts.get(col+1); n++)
+				best = Math.max(best, prevMatches[model.hardBypassSrcCols.get(n)+1] + model.hardBypassLogOdds.get(n));
+			if (softBypassRelativeLogOdds == null)
+			{
+				for (int n=model.softBypassStarts.get(col); n<model.softBypassStarts.get(col+1); n++)
+					best = Math.max(best, prevMatches[model.softBypassSrcCols.get(n)+1] + model.softBypassLogOdds.get(n));
+			}
+			else if (col >= 2)
+			{
+				float keyOffset = model.softBypassKeyOffsets.get(col-2);
+				if (keyOffset != ZERO)
+					softMaxKey = Math.max(softMaxKey, (double)prevMatches[col-1] + keyOffset);
+				best = Math.max(best, (float)(softMaxKey + softBypassRelativeLogOdds[col]));
+			}
+			if (model.hasDeleteChain  &&  col > 0)
+				best = Math.max(best, prevDeletes[col-1] + model.deleteCloseLogOdds.get(col));
+			nextMatches[col+1] = best;
+		}
+
+		// MATCH emissions.
+		col = 0;
+		for (; col<bound; col+=SPECIES.length())
+			FloatVector.fromArray(SPECIES, nextMatches, col+1).add(FloatVector.fromArray(SPECIES, matchEmissions, col)).intoArray(nextMatches, col+1);
+		for (; col<nCols; col++)
+			nextMatches[col+1] += matchEmissions[col];
+
+		// Silent DELETE chain, in column order.
+		if (model.hasDeleteChain)
+		{
+			nextDeletes[0] = ZERO;
+			for (col=1; col<nCols; col++)
+				nextDeletes[col] = Math.max(nextMatches[col] + model.deleteOpenLogOdds.get(col), nextDeletes[col-1] + model.deleteExtendLogOdds.get(col));
+		}
+	}
+}
@@ -29,16 +29,51 @@ import static adverb.CollectTrainingSets.ALIGNED_TRAINING_DIR_NAME;
 
 public class BuildAndExecuteHmms 
 {
+	final static String				LIBRARY_FILE_NAME	= "compiled_models.lib";
+	
 	private static String			theQuery;
+	private static String			scoring = "EXACT";
+	private static StrandDetector.Strand	theStrand = StrandDetector.Strand.FORWARD;		// of theQuery
 	private static Reporter			theReporter = new Reporter();
+	private static ModelCache		theModelCache = new ModelCache();		// reused by every strand and scan window
+	private static ProfileHMMLibrary	theLibrary;						// mapped if present, otherwise null
+	private static Set<String>		theCurrentModelNames = new HashSet<>();	// in theLibrary, and fasta matches its ModelSource
+	private static ProfileHMMLibrary	theWholeLibrary;					// every HMM, for packed and screen scoring
+	private static Map<String, File>	theWholeLibraryFastas = new HashMap<>();	// by name in theWholeLibrary
 	
 	
 	static void printUsageAndExit()
 	{
-		sop("Usage: java -cp Adverb_1.0.jar adverb.BuildAndExecuteHmms nuc-query-seq parallel");
-		sop("Run this after running CollectTrainingSets and the script that it generates.");
+		sop("Usage: java -cp Adverb_1.0.jar adverb.BuildAndExecuteHmms nuc-query-seq parallel [scoring [locator | min-cols]]");
+		sop("Run this after running CollectTrainingSets and the script that it generates, and optionally");
+		sop("CompileModelLibrary, which compiles every HMM once so that this doesn't build any.");
 		sop("\"parallel\" should be \"true\" or \"false\" to enable parallel computation.");
 		sop("Only choose \"true\" on a large system with abundant memory.");
+		sop("Optional \"scoring\" is \"exact\" (the default), \"banded\", \"simd\", \"split\", \"packed\", \"beam\",");
+		sop("\"screen\", \"fragment\", \"forward\", or \"scan\".");
+		sop("Banded scoring only computes cells near the query's expected alignment. Its scores are");
+		sop("approximate and never above exact scores; a better path far from that alignment is missed.");
+		sop("SIMD scoring needs \"--add-modules jdk.incubator.vector\" on the java command line, otherwise");
+		sop("it's the same as exact. Split scoring gives the same scores as exact, but splits each large");
+		sop("HMM's computation across cores; use it with parallel=false when there are only a few large");
+		sop("HMMs. Optional \"min-cols\" is the fewest columns an HMM needs to be split, by default");
+		sop(ParallelViterbi.DEFAULT_MIN_COLS + ". COI HMMs have fewer, so they're only split if it's lowered, e.g. to 256.");
+		sop("Packed scoring gives the same scores as exact, but gets every HMM first and then scores");
+		sop("16 HMMs of similar length per pass; with the Vector API (see SIMD) each step of a pass is a");
+		sop("few vector instructions. Beam scoring only keeps the best few hundred states at each stage;");
+		sop("it's for quick approximate screening.");
+		sop("Screen scoring gets every HMM first, scores them all with 16-bit integers (vectorized, see");
+		sop("SIMD), rescores the best 10 exactly, and warns if any other HMM might have been better.");
+		sop("Fragment scoring is for queries such as mini-barcodes that only cover part of each HMM;");
+		sop("the query may start and end at any column. Only columns near the query's alignment are");
+		sop("computed, so scores are approximate unless that alignment can't be found.");
+		sop("Forward scoring ranks HMMs by the total probability of all paths, rather than the best path.");
+		sop("Scan is for long queries such as assembled contigs: it finds COI windows on both strands");
+		sop("and classifies each window separately. Windows are found with the HMM of one training set:");
+		sop("optional \"locator\" names its fasta in " + ALIGNED_TRAINING_DIR_NAME + ", and by default it's");
+		sop("the one with the most sequences.");
+		sop("The query may be in either orientation. Its strand is chosen from K-mers it shares with the");
+		sop("training sequences; both strands are scored only if that's ambiguous.");
 		
 		System.exit(1);
 	}
@@ -48,6 +83,7 @@ public class BuildAndExecuteHmms
 	{
 		private StrictTaxonomy		taxoOfBestHmm;
 		private double				logViterbiOfBestHmm;
+		private StrandDetector.Strand	strandOfBestHmm;
 		private int					nReports;
 		
 		synchronized void report(File alignmentFasta, double logVit)
@@ -57,10 +93,11 @@ public class BuildAndExecuteHmms
 			{
 				s = "*";
 				logViterbiOfBestHmm = logVit;
+				strandOfBestHmm = theStrand;
 				String stax = alignmentFasta.getName().replace(".fa", "");
 				taxoOfBestHmm = new StrictTaxonomy(stax);
 			}
-			s += " After " + ++nReports + " HMMs, best match is " + taxoOfBestHmm + " ... log(Viterbi prob) = " + logViterbiOfBestHmm;
+			s += " After " + ++nReports + " HMMs, best match is " + taxoOfBestHmm + " ... " + scoreName() + " = " + logViterbiOfBestHmm;
 			sop(s);
 		}
 		
@@ -78,6 +115,14 @@ public class BuildAndExecuteHmms
 		
 		
 		StrictTaxonomy getTaxoOfBestHmm()		{ return taxoOfBestHmm; }
+		StrandDetector.Strand getStrandOfBestHmm()	{ return strandOfBestHmm; }
+		
+		
+		// Scores below this can't change the result.
+		synchronized float getThreshold()
+		{
+			return (taxoOfBestHmm == null)  ?  Float.NEGATIVE_INFINITY  :  (float)logViterbiOfBestHmm;
+		}
 	} // Reporter
 	
 	
@@ -86,16 +131,19 @@ public class BuildAndExecuteHmms
 		try
 		{
 			// Make sure >= 1 training record.
-			if (FastaReader.getRecords(alignmentFasta).size() == 0)
+			if (countTrainingRecords(alignmentFasta) == 0)
+			{
 				theReporter.report(alignmentFasta, "Skipping empty training set.");
+				return;
+			}
 			
-			// Build HMM.
-			dsop(alignmentFasta.getName() + ": Building HMM");
-			ProfileHMM hmm = new ProfileHMM(alignmentFasta);
+			// Get HMM.
+			dsop(alignmentFasta.getName() + ": Getting HMM");
+			CompiledProfileHMM hmm = getHmm(alignmentFasta);
 			
 			// Execute HMM.
-			dsop(alignmentFasta.getName() + ": Computing log-Viterbi probability.");
-			double logVit = hmm.logOddsViterbiScore(theQuery);
+			dsop(alignmentFasta.getName() + ": Computing " + scoreName() + ".");
+			double logVit = score(hmm);
 			
 			// Report.
 			dsop(alignmentFasta.getName() + ": Done.");
@@ -107,29 +155,408 @@ public class BuildAndExecuteHmms
 			return;
 		}
 	}
-	
 
-	static void sop(Object x)		{ System.out.println(x); }
-	static void dsop(Object x)		{ System.out.println(new Date() + ": " + x); }
+
+	// The library file written by CompileModelLibrary, or null if there isn't one. As in CompileModelLibrary, a model
+	// in the library is only current if its training file matches the model's ModelSource, so an edited training
+	// file's HMM is built from the file instead. Training files are only hashed if their length or modification time
+	// changed since they were compiled. Collects the names of current models.
+	private static ProfileHMMLibrary mapLibrary(List<File> alignedFastas)
+	{
+		File libraryFile = new File(LIBRARY_FILE_NAME);
+		if (!libraryFile.exists())
+			return null;
+		
+		ProfileHMMLibrary library;
+		try
+		{
+			library = ProfileHMMLibrary.map(libraryFile);
+		}
+		catch (IOException x)
+		{
+			sop("Can't map " + libraryFile + " (" + x.getMessage() + "), will build HMMs from training files");
+			return null;
+		}
+		int nHashed = 0;
+		for (File fasta: alignedFastas)
+		{
+			String name = fasta.getName();
+			int index = library.indexOf(name);
+			ModelSource source = (index < 0)  ?  null  :  library.getSource(index);
+			if (source == null)
+				continue;
+			try
+			{
+				if (!source.isStampOf(fasta))
+					nHashed++;
+				if (source.isCurrent(fasta))
+					theCurrentModelNames.add(name);
+			}
+			catch (IOException x)
+			{
+				// Not a scoring result, so not reported. The HMM will be built from the file, or fail then.
+				sop("Can't hash " + name + " (" + x.getMessage() + "), won't use its HMM from " + libraryFile);
+			}
+		}
+		dsop("Mapped " + library.size() + " HMMs from " + libraryFile + ", " + theCurrentModelNames.size() + " of " +
+			alignedFastas.size() + " training files are unchanged since they were compiled (" + nHashed + " hashed)");
+		return library;
+	}
+
+
+	// Number of sequences in a training file. Read from the library for current models, so their files aren't read.
+	private static int countTrainingRecords(File fasta) throws IOException
+	{
+		String name = fasta.getName();
+		if (theLibrary != null  &&  theCurrentModelNames.contains(name))
+			return theLibrary.getSource(theLibrary.indexOf(name)).getNSeqs();
+		return FastaReader.getRecords(fasta).size();
+	}
 	
 	
-	public static void main(String[] args)
-	{	
-		if (args.length != 2)
-			printUsageAndExit();
+	// From the mapped library if it has this training file's current HMM. Otherwise built on first use, and then
+	// reused from the cache.
+	private static CompiledProfileHMM getHmm(File alignmentFasta) throws IOException
+	{
+		if (theLibrary != null  &&  theCurrentModelNames.contains(alignmentFasta.getName()))
+			return theLibrary.getModel(theLibrary.indexOf(alignmentFasta.getName()));
+		return theModelCache.get(alignmentFasta);
+	}
+
+
+	// What score() computes in the current scoring mode.
+	private static String scoreName()
+	{
+		switch (scoring)
+		{
+			case "FRAGMENT":
+				return "log(glocal Viterbi prob)";
+			case "FORWARD":
+				return "log(Forward prob)";
+			default:
+				return "log(Viterbi prob)";
+		}
+	}
+
+
+	private static float score(CompiledProfileHMM hmm) throws HMMException
+	{
+		switch (scoring)
+		{
+			case "BANDED":
+				// Like exact, stops early if this HMM can't beat the best one so far.
+				BandedViterbi banded = new BandedViterbi(hmm);
+				float bandedScore = banded.logOddsViterbiScore(hmm.encode(theQuery), hmm.getBandHalfWidth(), theReporter.getThreshold());
+				dsop("Banded scoring passes: " + banded.getNPasses() + ", " + (banded.isExact()  ?
+					"finished with full DP"  :  "final band half width " + banded.getFinalBandHalfWidth() + ", score is approximate"));
+				return bandedScore;
+			case "SIMD":
+				return hmm.newVectorScorer().logOddsViterbiScore(hmm.encode(theQuery));
+			case "SPLIT":
+				ParallelViterbi split = new ParallelViterbi(hmm);
+				dsop((split.getNChunks() == 1)  ?  "Not split: HMM has " + hmm.getNCols() + " columns, splitting needs " +
+					ParallelViterbi.getMinCols() + " and more than 1 core"  :  "Split into " + split.getNChunks() + " column chunks");
+				return split.logOddsViterbiScore(hmm.encode(theQuery));
+			case "BEAM":
+				BeamViterbi beam = new BeamViterbi(hmm);
+				float score = beam.logOddsViterbiScore(theQuery);
+				dsop("Beam pruned " + beam.getNCellsPruned() + " of " + beam.getNCellsComputed() + " computed cells, score is " +
+					(beam.isExact()  ?  "exact"  :  "approximate"));
+				return score;
+			case "FRAGMENT":
+				FragmentViterbi fragmentViterbi = new FragmentViterbi(hmm);
+				FragmentReport fragment = fragmentViterbi.viterbi(theQuery, hmm.getBandHalfWidth());
+				dsop("Fragment covers columns " + fragment.getFirstCol() + "-" + fragment.getLastCol() + " of " + hmm.getNCols() +
+					", scoring passes: " + fragmentViterbi.getNPasses() + ", " + ((fragment.getBandHalfWidth() < 0)  ?
+					"finished with full DP"  :  "final band half width " + fragment.getBandHalfWidth() + ", score is approximate"));
+				return fragment.getScore();
+			case "FORWARD":
+				// Stops early if this HMM can't beat the best one so far.
+				return new CompiledForward(hmm).logOddsForwardScore(theQuery, theReporter.getThreshold());
+			default:
+				// Stops early if this HMM can't beat the best one so far.
+				return hmm.logOddsViterbiScore(hmm.encode(theQuery), theReporter.getThreshold());
+		}
+	}
+
+
+	// Every HMM, named by training file name, from the mapped library or the cache (see getHmm()). Models are held
+	// until the run ends, so both strands of the query reuse the same packs and screening filters.
+	private static ProfileHMMLibrary getWholeLibrary(List<File> alignedFastas, boolean parallel)
+	{
+		if (theWholeLibrary != null)
+			return theWholeLibrary;
 		
-		theQuery = args[0];
-		StringBuilder sb = new StringBuilder();
-		for (int i=0; i<theQuery.length(); i++)
+		ProfileHMMLibrary library = new ProfileHMMLibrary();
+		(parallel ? alignedFastas.stream().parallel() : alignedFastas.stream()).forEach(fasta ->
+		{
+			try
+			{
+				if (countTrainingRecords(fasta) == 0)
+				{
+					theReporter.report(fasta, "Skipping empty training set.");
+					return;
+				}
+				dsop(fasta.getName() + ": Getting HMM");
+				CompiledProfileHMM compiled = getHmm(fasta);
+				synchronized (library)
+				{
+					library.add(fasta.getName(), compiled);
+					theWholeLibraryFastas.put(fasta.getName(), fasta);
+				}
+			}
+			catch (IOException x)
+			{
+				theReporter.report(fasta, x);
+			}
+		});
+		theWholeLibrary = library;
+		return library;
+	}
+	
+	
+	// Scores every HMM in packs of similar length, several HMMs per pass.
+	private static void evaluatePacked(List<File> alignedFastas, boolean parallel)
+	{
+		ProfileHMMLibrary library = getWholeLibrary(alignedFastas, parallel);
+		dsop("Computing log-Viterbi probabilities for " + library);
+		float[] scores = library.logOddsViterbiScores(theQuery);
+		for (int i=0; i<scores.length; i++)
 		{
-			if ("ACGTacgt".indexOf(theQuery.charAt(i)) >= 0)
-				sb.append(theQuery.charAt(i));
+			File fasta = theWholeLibraryFastas.get(library.getName(i));
+			if (scores[i] == Float.NEGATIVE_INFINITY)
+				theReporter.report(fasta, "Input too short, no Viterbi path");
 			else
+				theReporter.report(fasta, scores[i]);
+		}
+	}
+	
+	
+	// Screens every HMM with 16-bit scoring, and reports exact scores of the finalists. Warns about each HMM that
+	// wasn't rescored but might have been the best, given the quantization error of its screening score.
+	private static void evaluateScreened(List<File> alignedFastas, boolean parallel)
+	{
+		ProfileHMMLibrary library = getWholeLibrary(alignedFastas, parallel);
+		dsop("Screening " + library);
+		ScreeningReport report = library.screen(theQuery, ProfileHMMLibrary.DEFAULT_N_FINALISTS);
+		int[] finalists = report.getFinalists();
+		float[] exactScores = report.getExactScores();
+		dsop("Rescored " + finalists.length + " finalists exactly");
+		for (int i=0; i<finalists.length; i++)
+		{
+			File fasta = theWholeLibraryFastas.get(library.getName(finalists[i]));
+			if (exactScores[i] == Float.NEGATIVE_INFINITY)
+				theReporter.report(fasta, "Input too short, no Viterbi path");
+			else
+				theReporter.report(fasta, exactScores[i]);
+		}
+		for (int model: report.getUncertain())
+			sop("Warning: quantization could have changed the ranking. " + library.getName(model) + " wasn't rescored, " +
+				"but its screening score " + report.getQuantizedScore(model) + " +/- " + (float)report.getErrorBound(model) +
+				" might beat the best finalist.");
+	}
+	
+	
+	private static void evaluateAll(List<File> alignedFastas, boolean parallel)
+	{
+		if (scoring.equals("PACKED"))
+			evaluatePacked(alignedFastas, parallel);
+		else if (scoring.equals("SCREEN"))
+			evaluateScreened(alignedFastas, parallel);
+		else if (parallel)
+			alignedFastas.stream().parallel().forEach(fasta -> evaluate(fasta));
+		else
+			alignedFastas.stream().forEach(fasta -> evaluate(fasta));
+	}
+	
+	
+	// The training set whose HMM locates COI windows for scanning: the one named by the user, or by default the one
+	// with the most sequences, since its HMM is the least specific to a few species. Ties go to the first name in
+	// alphabetical order, so the choice doesn't depend on the order of the directory listing. Training sets are
+	// aligned separately, so their columns don't correspond and can't be pooled into one HMM. Null if no training
+	// set can be used.
+	private static File chooseLocatorFasta(List<File> alignedFastas, String locatorName)
+	{
+		File best = null;
+		int nRecordsOfBest = 0;
+		for (File fasta: alignedFastas)
+		{
+			if (locatorName != null  &&  !fasta.getName().equals(locatorName))
+				continue;
+			try
+			{
+				int nRecords = countTrainingRecords(fasta);
+				if (nRecords > nRecordsOfBest  ||
+					(nRecords == nRecordsOfBest  &&  nRecords > 0  &&  fasta.getName().compareTo(best.getName()) < 0))
+				{
+					best = fasta;
+					nRecordsOfBest = nRecords;
+				}
+			}
+			catch (IOException x)
+			{
+				theReporter.report(fasta, x);
+			}
+		}
+		return best;
+	}
+	
+	
+	// For a long query such as a contig. Both strands are scanned with a local Viterbi against one training set's
+	// HMM (see chooseLocatorFasta()), which finds COI regardless of genus, and each window that it finds is classified
+	// separately with exact scoring. Positions are 1-based and refer to the query's forward strand.
+	private static void evaluateScan(List<File> alignedFastas, boolean parallel, String locatorName)
+	{
+		File locatorFasta = chooseLocatorFasta(alignedFastas, locatorName);
+		if (locatorFasta == null)
+		{
+			sop((locatorName == null)  ?
+				"No training set could be used for scanning."  :
+				"Training set " + locatorName + " not found in " + ALIGNED_TRAINING_DIR_NAME + ", or empty.");
+			return;
+		}
+		CompiledProfileHMM locator;
+		try
+		{
+			dsop(locatorFasta.getName() + ": Getting HMM for scanning");
+			locator = getHmm(locatorFasta);
+		}
+		catch (IOException x)
+		{
+			theReporter.report(locatorFasta, x);
+			return;
+		}
+		
+		String contig = theQuery;
+		String reverseContig = StringUtils.reverseComplement(contig);
+		dsop("Scanning " + contig.length() + " bases on both strands");
+		ScanViterbi scanner = new ScanViterbi(locator);
+		List<ScanHit> forwardHits = scanner.scan(contig, ScanViterbi.DEFAULT_MIN_SCORE);
+		List<ScanHit> reverseHits = scanner.scan(reverseContig, ScanViterbi.DEFAULT_MIN_SCORE);
+		if (forwardHits.isEmpty()  &&  reverseHits.isEmpty())
+		{
+			sop("No COI window found in the query by the HMM of " + locatorFasta.getName() + ". A training set from a");
+			sop("closer lineage can be named as the optional 4th argument.");
+			return;
+		}
+		
+		for (StrandDetector.Strand strand: Arrays.asList(StrandDetector.Strand.FORWARD, StrandDetector.Strand.REVERSE))
+		{
+			boolean reverse = strand == StrandDetector.Strand.REVERSE;
+			for (ScanHit hit: reverse  ?  reverseHits  :  forwardHits)
 			{
-				sop("Dropping non-ACGT character '" + theQuery.charAt(i) + "' from input sequence");
+				int first = reverse  ?  contig.length() - hit.getEnd()  :  hit.getStart() + 1;
+				int last = reverse  ?  contig.length() - hit.getStart()  :  hit.getEnd() + 1;
+				sop("COI window at positions " + first + "-" + last + (reverse  ?  " on the reverse strand"  :  "") +
+					", log odds vs background = " + hit.getScore() + ", HMM columns " + hit.getFirstCol() + "-" + hit.getLastCol());
+				theReporter = new Reporter();
+				theStrand = strand;
+				theQuery = dropNonAcgt((reverse  ?  reverseContig  :  contig).substring(hit.getStart(), hit.getEnd() + 1), "window");
+				evaluateAll(alignedFastas, parallel);
+				printPrediction("window at " + first + "-" + last);
 			}
 		}
-		theQuery = sb.toString().toUpperCase();	
+		dsop(theModelCache);
+	}
+	
+	
+	// Uppercase, without characters other than ACGT.
+	private static String dropNonAcgt(String seq, String what)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<seq.length(); i++)
+			if ("ACGTacgt".indexOf(seq.charAt(i)) >= 0)
+				sb.append(seq.charAt(i));
+		int nDropped = seq.length() - sb.length();
+		if (nDropped > 0)
+			sop("Dropping " + nDropped + " non-ACGT character" + ((nDropped == 1)  ?  ""  :  "s") + " from " + what);
+		return sb.toString().toUpperCase();
+	}
+	
+	
+	// Uppercase and the same length, with every character other than ACGT replaced by N. ScanViterbi treats N as an
+	// unknown base.
+	private static String maskNonAcgt(String seq)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<seq.length(); i++)
+			sb.append(("ACGTacgt".indexOf(seq.charAt(i)) >= 0)  ?  seq.charAt(i)  :  'N');
+		int nMasked = (int)sb.chars().filter(ch -> ch == 'N').count();
+		if (nMasked > 0)
+			sop("Scanning " + nMasked + " non-ACGT character" + ((nMasked == 1)  ?  ""  :  "s") + " as unknown bases");
+		return sb.toString().toUpperCase();
+	}
+	
+	
+	private static void printPrediction(String what)
+	{
+		StrictTaxonomy taxoOfBest = theReporter.getTaxoOfBestHmm();
+		if (taxoOfBest == null)
+		{
+			sop("No HMM computed any " + scoreName() + " for your sequence. One explanation is that");
+			sop("your query is unusually short, unusually long, or not COI");
+		}
+		else
+		{
+			StrictTaxonomy famTax = new StrictTaxonomy(taxoOfBest);
+			famTax.remove(Rank.SPECIES);
+			sop("Adverb predicts that the family of the " + what + " is " + famTax);
+			if (theReporter.getStrandOfBestHmm() == StrandDetector.Strand.REVERSE)
+				sop("The " + what + " is reverse complemented relative to the training sequences.");
+		}
+	}
+	
+	
+	// From the library's K-mer summary if every model in the library is current, since then the summary holds exactly
+	// their training files' K-mers; only training files without a model are read. Otherwise from every training file.
+	private static StrandDetector newStrandDetector(List<File> alignedFastas) throws IOException
+	{
+		if (theLibrary == null  ||  theLibrary.getKmerSummary() == null  ||  theCurrentModelNames.size() < theLibrary.size())
+			return new StrandDetector(alignedFastas);
+		
+		long nSeqs = 0;
+		for (int i=0; i<theLibrary.size(); i++)
+			nSeqs += theLibrary.getSource(i).getNSeqs();
+		StrandDetector detector = new StrandDetector(theLibrary.getKmerSummary(), nSeqs);
+		for (File fasta: alignedFastas)
+			if (!theCurrentModelNames.contains(fasta.getName()))
+				for (String[] rec: FastaReader.getRecords(fasta))
+					detector.add(rec[1]);
+		return detector;
+	}
+	
+	
+	// The strands of the query to score. Only one, unless K-mers shared with the training set don't make the query's
+	// orientation clear.
+	private static List<StrandDetector.Strand> chooseStrands(List<File> alignedFastas)
+	{
+		List<StrandDetector.Strand> both = Arrays.asList(StrandDetector.Strand.FORWARD, StrandDetector.Strand.REVERSE);
+		try
+		{
+			dsop("Checking query orientation");
+			StrandDetector detector = newStrandDetector(alignedFastas);
+			int[] hits = detector.countHitsBothStrands(theQuery);
+			StrandDetector.Strand strand = StrandDetector.decide(hits[0], hits[1]);
+			dsop(detector + ". Query hits " + hits[0] + " forward, " + hits[1] + " reverse complement. Orientation is " +
+				strand.toString().toLowerCase());
+			return (strand == StrandDetector.Strand.AMBIGUOUS)  ?  both  :  Collections.singletonList(strand);
+		}
+		catch (IOException x)
+		{
+			sop("Can't check query orientation (" + x.getMessage() + "), will score both strands");
+			return both;
+		}
+	}
+	
+	
+	static void sop(Object x)		{ System.out.println(x); }
+	static void dsop(Object x)		{ System.out.println(new Date() + ": " + x); }
+	
+	
+	public static void main(String[] args)
+	{	
+		if (args.length < 2  ||  args.length > 4)
+			printUsageAndExit();
 		
 		boolean parallel = false;
 		switch (args[1].toUpperCase())
@@ -146,24 +573,72 @@ public class BuildAndExecuteHmms
 				break;
 		}
 		
+		if (args.length >= 3)
+		{
+			switch (args[2].toUpperCase())
+			{
+				case "EXACT":
+				case "BANDED":
+				case "SIMD":
+				case "SPLIT":
+				case "PACKED":
+				case "BEAM":
+				case "SCREEN":
+				case "FRAGMENT":
+				case "FORWARD":
+				case "SCAN":
+					scoring = args[2].toUpperCase();
+					break;
+				default:
+					sop("Optional 3rd arg must be \"exact\", \"banded\", \"simd\", \"split\", \"packed\", \"beam\", \"screen\", \"fragment\", \"forward\", or \"scan\".\n");
+					printUsageAndExit();
+					break;
+			}
+		}
+		
+		// Scan hits are reported by position in the query, so scanning keeps every character.
+		theQuery = scoring.equals("SCAN")  ?  maskNonAcgt(args[0])  :  dropNonAcgt(args[0], "input sequence");
+		
 		List<File> alignedFastas = FileUtils.toList(new File(ALIGNED_TRAINING_DIR_NAME), name -> name.endsWith(".fa"));
+		theLibrary = mapLibrary(alignedFastas);
 		
-		if (parallel)
-			alignedFastas.stream().parallel().forEach(fasta -> evaluate(fasta));
-		else
-			alignedFastas.stream().forEach(fasta -> evaluate(fasta));
+		if (args.length == 4  &&  scoring.equals("SPLIT"))
+		{
+			try
+			{
+				int minCols = Integer.parseInt(args[3]);
+				if (minCols <= 0)
+					throw new NumberFormatException();
+				ParallelViterbi.setMinCols(minCols);
+			}
+			catch (NumberFormatException x)
+			{
+				sop("Optional 4th arg for split scoring must be a positive number of columns.\n");
+				printUsageAndExit();
+			}
+		}
+		else if (args.length == 4  &&  !scoring.equals("SCAN"))
+		{
+			sop("Optional 4th arg is only for scan and split scoring.\n");
+			printUsageAndExit();
+		}
 		
-		StrictTaxonomy taxoOfBest = theReporter.getTaxoOfBestHmm();
-		if (taxoOfBest == null)
+		if (scoring.equals("SCAN"))
 		{
-			sop("No HMM computed any log-Viterbi probability for your sequence. One explanation is that");
-			sop("your query is unusually short, unusually long, or not COI");
+			evaluateScan(alignedFastas, parallel, (args.length == 4)  ?  args[3]  :  null);
+			return;
 		}
-		else
+		
+		String forwardQuery = theQuery;
+		for (StrandDetector.Strand strand: chooseStrands(alignedFastas))
 		{
-			StrictTaxonomy famTax = new StrictTaxonomy(taxoOfBest);
-			famTax.remove(Rank.SPECIES);
-			sop("Adverb predicts that the family of the query is " + famTax);
+			theStrand = strand;
+			theQuery = (strand == StrandDetector.Strand.REVERSE)  ?  StringUtils.reverseComplement(forwardQuery)  :  forwardQuery;
+			if (strand == StrandDetector.Strand.REVERSE)
+				dsop("Scoring reverse complement of query");
+			evaluateAll(alignedFastas, parallel);
 		}
+		dsop(theModelCache);
+		printPrediction("query");
 	}
 }
@@ -0,0 +1,205 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.IntStream;
+import adverb.util.*;
+import adverb.hmm.*;
+
+import static adverb.CollectTrainingSets.ALIGNED_TRAINING_DIR_NAME;
+import static adverb.BuildAndExecuteHmms.LIBRARY_FILE_NAME;
+
+
+//
+// Compiles every training alignment into the model library that BuildAndExecuteHmms maps, so that classifying a
+// query doesn't build any HMMs. Each model is saved with its ModelSource: the SHA-256, length, and modification time
+// of the fasta it was compiled from, and the fasta's number of sequences. A re-run only recompiles genera whose fasta
+// is new or whose hash changed; the other models are copied from the old library, and their fastas are only hashed if
+// their length or modification time changed. Genera whose fasta was removed are dropped.
+//
+// The library also holds a K-mer summary of every training sequence, for StrandDetector. It's rebuilt, which reads
+// every fasta, only when some model was recompiled or dropped. Hashes and summary are in the library file, which is
+// replaced by a rename, so they can't disagree with the models.
+//
+
+
+public class CompileModelLibrary
+{
+	// One training fasta's outcome.
+	private static class Entry
+	{
+		File						fasta;
+		ModelSource					source;				// null if the fasta couldn't be read
+		CompiledProfileHMM			model;				// null if the fasta is empty or couldn't be compiled
+		boolean						isRecompiled;
+
+		Entry(File fasta)			{ this.fasta = fasta; }
+	}
+
+
+	static void printUsageAndExit()
+	{
+		sop("Usage: java -cp Adverb_1.0.jar adverb.CompileModelLibrary [parallel]");
+		sop("Run this after running CollectTrainingSets and the script that it generates, and again whenever");
+		sop("the aligned training fastas change.");
+		sop("Compiles an HMM for every fasta in " + ALIGNED_TRAINING_DIR_NAME + " into " + LIBRARY_FILE_NAME + ",");
+		sop("along with the fastas' content hashes. Later runs only recompile fastas whose content changed.");
+		sop("BuildAndExecuteHmms then uses the compiled HMMs instead of building them for every query.");
+		sop("Optional \"parallel\" is \"true\" (the default) or \"false\" to compile on one core.");
+
+		System.exit(1);
+	}
+
+
+	// Reuses the old library's model if its fasta is unchanged (see ModelSource.isCurrent()), otherwise compiles the
+	// fasta.
+	private static void compile(Entry entry, ProfileHMMLibrary oldLibrary)
+	{
+		String name = entry.fasta.getName();
+		try
+		{
+			int oldIndex = (oldLibrary == null)  ?  -1  :  oldLibrary.indexOf(name);
+			ModelSource oldSource = (oldIndex < 0)  ?  null  :  oldLibrary.getSource(oldIndex);
+			if (oldSource != null  &&  oldSource.isCurrent(entry.fasta))
+			{
+				entry.model = oldLibrary.getModel(oldIndex);
+				entry.source = oldSource.restamp(entry.fasta);
+				return;
+			}
+			int nSeqs = FastaReader.getRecords(entry.fasta).size();
+			if (nSeqs == 0)
+			{
+				sop(name + ": Skipping empty training set.");
+				return;
+			}
+			entry.source = ModelSource.of(entry.fasta, nSeqs);
+			dsop(name + ": Compiling HMM");
+			entry.model = new ProfileHMM(entry.fasta).compile();
+			entry.isRecompiled = true;
+		}
+		catch (IOException x)
+		{
+			sop(name + ": Can't compile HMM: " + x.getMessage());
+		}
+	}
+
+
+	static void sop(Object x)		{ System.out.println(x); }
+	static void dsop(Object x)		{ System.out.println(new Date() + ": " + x); }
+
+
+	public static void main(String[] args)
+	{
+		if (args.length > 1)
+			printUsageAndExit();
+
+		boolean parallel = true;
+		if (args.length == 1)
+		{
+			switch (args[0].toUpperCase())
+			{
+				case "TRUE":
+					parallel = true;
+					break;
+				case "FALSE":
+					parallel = false;
+					break;
+				default:
+					sop("Optional arg must be \"true\" or \"false\" for parallel or serial operation.\n");
+					printUsageAndExit();
+					break;
+			}
+		}
+
+		File trainingDirf = new File(ALIGNED_TRAINING_DIR_NAME);
+		if (!trainingDirf.isDirectory())
+		{
+			sop("Directory " + ALIGNED_TRAINING_DIR_NAME + " not found.\n");
+			printUsageAndExit();
+		}
+		List<File> alignedFastas = FileUtils.toList(trainingDirf, name -> name.endsWith(".fa"));
+		alignedFastas.sort(Comparator.comparing(File::getName));
+
+		// Old library. Without it, everything is recompiled.
+		File libraryFile = new File(LIBRARY_FILE_NAME);
+		ProfileHMMLibrary oldLibrary = null;
+		if (libraryFile.exists())
+		{
+			try
+			{
+				oldLibrary = ProfileHMMLibrary.map(libraryFile);
+			}
+			catch (IOException x)
+			{
+				sop("Can't map " + libraryFile + " (" + x.getMessage() + "), will recompile everything");
+			}
+		}
+
+		// Compile.
+		List<Entry> entries = new ArrayList<>();
+		for (File fasta: alignedFastas)
+			entries.add(new Entry(fasta));
+		ProfileHMMLibrary old = oldLibrary;
+		IntStream indices = IntStream.range(0, entries.size());
+		(parallel ? indices.parallel() : indices).forEach(i -> compile(entries.get(i), old));
+
+		ProfileHMMLibrary library = new ProfileHMMLibrary();
+		List<File> compiledFastas = new ArrayList<>();
+		int nRecompiled = 0;
+		for (Entry entry: entries)
+		{
+			if (entry.model == null)
+				continue;
+			library.add(entry.fasta.getName(), entry.model, entry.source);
+			compiledFastas.add(entry.fasta);
+			if (entry.isRecompiled)
+				nRecompiled++;
+		}
+
+		// K-mer summary. The old one is still right if every model was copied from the old library.
+		try
+		{
+			if (nRecompiled == 0  &&  oldLibrary != null  &&  oldLibrary.getKmerSummary() != null  &&
+				oldLibrary.size() == library.size())
+				library.setKmerSummary(oldLibrary.getKmerSummary());
+			else
+			{
+				dsop("Summarizing " + StrandDetector.K + "-mers of " + compiledFastas.size() + " training sets");
+				library.setKmerSummary(new StrandDetector(compiledFastas).getKmerBits());
+			}
+		}
+		catch (IOException x)
+		{
+			sop("Can't summarize K-mers (" + x.getMessage() + "), queries' orientation will be checked against the fastas");
+		}
+
+		try
+		{
+			library.write(libraryFile);
+		}
+		catch (IOException x)
+		{
+			sop("Can't save " + libraryFile + ": " + x.getMessage());
+			System.exit(2);
+		}
+		dsop("Saved " + library.size() + " HMMs to " + libraryFile + ": " + nRecompiled + " compiled, " +
+			(library.size() - nRecompiled) + " unchanged");
+	}
+}
@@ -17,22 +17,53 @@
 package adverb.hmm;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.*;
 
 import adverb.util.*;
 
 
+//
+// Stored as a column-major byte matrix, so a column's cells are contiguous, and one pass over the matrix computes
+// every column's character counts and every row's gap runs, in primitive arrays. Rows are still visible as Strings,
+// built on demand. trim() and removeAllGapRecords() don't copy anything: they narrow the column range and the list
+// of visible rows. set(), add(), and remove() work as in any List, but each one copies the visible rows into a new
+// matrix, so Alignments that share the old matrix aren't affected.
+//
+// Cells are bytes, so sequences may only contain characters up to 0xFF. Others are rejected rather than truncated.
+//
+
+
 @SuppressWarnings("serial")
-public class Alignment extends ArrayList<String>
+public class Alignment extends AbstractList<String> implements RandomAccess, Serializable
 {
 	private String					name;
-	private List<String>			deflines = new ArrayList<>();  		// generated if source isn't fasta
+	private List<String>			deflines = new ArrayList<>();  		// by stored row, empty if source isn't fasta
+	private byte[]					cells;								// [col*nStoredRows + row]
+	private int						nStoredRows;
+	private int[]					rows;								// visible rows, as stored row indices
+	private int						firstCol;							// first visible column
+	private int						nVisibleCols;
+	private transient int[]			charCounts;							// [visibleCol*256 + char], null until needed
+	private transient int[][]		gapRunCounts;						// [visibleStartCol][length], null if no runs
 	
 	
 	public Alignment(Collection<String> src) 
 	{
-		addAll(src);
+		if (src instanceof Alignment)
+		{
+			// Share the matrix, which is never modified.
+			Alignment that = (Alignment)src;
+			deflines = that.deflines;
+			cells = that.cells;
+			nStoredRows = that.nStoredRows;
+			rows = that.rows.clone();
+			firstCol = that.firstCol;
+			nVisibleCols = that.nVisibleCols;
+		}
+		else
+			store(new ArrayList<>(src));
 	}
 	
 
@@ -41,6 +72,7 @@ public class Alignment extends ArrayList<String>
 	{
 		this.name = fasta.getName();
 					
+		List<String> seqs = new ArrayList<>();
 		try
 		(
 			FileReader fr = new FileReader(fasta);
@@ -52,14 +84,76 @@ public class Alignment extends ArrayList<String>
 			while ((rec = far.readRecord()) != null)
 			{
 				deflines.add(rec[0]);
-				this.add(rec[1]);
+				seqs.add(rec[1]);
 			}		
 		}
+		store(seqs);
 	}
 	
 	
 	// For debugging.
-	public Alignment() { }
+	public Alignment()
+	{
+		store(new ArrayList<>());
+	}
+	
+	
+	// Replaces the matrix. Nothing changes if any sequence is rejected.
+	private void store(List<String> seqs) throws IllegalArgumentException
+	{
+		int nRows = seqs.size();
+		int nCols = seqs.isEmpty()  ?  0  :  seqs.get(0).length();
+		byte[] newCells = new byte[nRows * nCols];
+		for (int row=0; row<nRows; row++)
+		{
+			String seq = seqs.get(row);
+			if (seq.length() != nCols)
+				throw new IllegalArgumentException("Sequence " + row + " has length " + seq.length() + ", expected " + nCols);
+			for (int col=0; col<nCols; col++)
+			{
+				char ch = seq.charAt(col);
+				if (ch > 0xFF)
+					throw new IllegalArgumentException("Sequence " + row + " has character U+" +
+						String.format("%04X", (int)ch) + " at column " + col + ", alignments only hold characters up to 0xFF");
+				newCells[col*nRows + row] = (byte)ch;
+			}
+		}
+		
+		cells = newCells;
+		nStoredRows = nRows;
+		rows = new int[nRows];
+		for (int row=0; row<nRows; row++)
+			rows[row] = row;
+		firstCol = 0;
+		nVisibleCols = nCols;
+		charCounts = null;
+		gapRunCounts = null;
+	}
+	
+	
+	// Replaces the matrix with seqs, whose deflines are defs, or empty if there are none.
+	private void store(List<String> seqs, List<String> defs) throws IllegalArgumentException
+	{
+		store(seqs);
+		deflines = defs;
+	}
+	
+	
+	// Empty if the source wasn't fasta.
+	private List<String> visibleDeflines()
+	{
+		List<String> ret = new ArrayList<>();
+		if (!deflines.isEmpty())
+			for (int row: rows)
+				ret.add(deflines.get(row));
+		return ret;
+	}
+	
+	
+	private byte cell(int row, int col)
+	{
+		return cells[(firstCol + col)*nStoredRows + rows[row]];
+	}
 	
 	
 	public String getName()
@@ -73,17 +167,74 @@ public class Alignment extends ArrayList<String>
 	}
 	
 	
+	public String get(int row)
+	{
+		byte[] seq = new byte[nVisibleCols];
+		for (int col=0; col<nVisibleCols; col++)
+			seq[col] = cell(row, col);
+		return new String(seq, StandardCharsets.ISO_8859_1);
+	}
+	
+	
+	public int size()
+	{
+		return rows.length;
+	}
+	
+	
+	// Costs O(rows * cols), like add() and remove(). To make many changes, build a List and construct from it.
+	public String set(int row, String seq) throws IllegalArgumentException
+	{
+		List<String> seqs = new ArrayList<>(this);
+		String ret = seqs.set(row, seq);
+		store(seqs, visibleDeflines());
+		return ret;
+	}
+	
+	
+	// Rows added to an alignment that was read from fasta have a null defline.
+	public void add(int row, String seq) throws IllegalArgumentException
+	{
+		List<String> seqs = new ArrayList<>(this);
+		List<String> defs = visibleDeflines();
+		seqs.add(row, seq);
+		if (!defs.isEmpty())
+			defs.add(row, null);
+		store(seqs, defs);
+		modCount++;
+	}
+	
+	
+	public String remove(int row)
+	{
+		List<String> seqs = new ArrayList<>(this);
+		List<String> defs = visibleDeflines();
+		String ret = seqs.remove(row);
+		if (!defs.isEmpty())
+			defs.remove(row);
+		store(seqs, defs);
+		modCount++;
+		return ret;
+	}
+	
+	
 	public Stream<Character> streamColumn(int colNum)
 	{
-		return stream().map(s -> s.charAt(colNum));
+		return IntStream.range(0, rows.length).mapToObj(row -> (char)(cell(row, colNum) & 0xff));
 	}
 	
 	
 	public TreeBinCounter<Character> binCountColumn(int colNum)
 	{
-		return
-			streamColumn(colNum)
-			.collect(MoreCollectors.toTreeBinCounter());
+		computeColumnStats();
+		TreeBinCounter<Character> ret = new TreeBinCounter<>();
+		for (int ch=0; ch<256; ch++)
+		{
+			int count = charCounts[colNum*256 + ch];
+			if (count > 0)
+				ret.bumpCountForBin((char)ch, count);
+		}
+		return ret;
 	}
 	
 	
@@ -100,73 +251,77 @@ public class Alignment extends ArrayList<String>
 	{
 		List<String[]> ret = new ArrayList<>();
 		for (int i=0; i<size(); i++)
-			ret.add(new String[] { deflines.get(i), get(i) });
+			ret.add(new String[] { deflines.get(rows[i]), get(i) });
 		return ret;
 	}
 	
 	
-	private class IndelRun
+	// One pass down every column. Each row's current gap run is open until the row's next non-gap character, or
+	// the last column. Rows that start with '>' are garbage from a bad fasta and their gaps aren't counted.
+	private void computeColumnStats()
 	{
-		int 	startCol;
-		int		len;
+		if (charCounts != null)
+			return;
 		
-		IndelRun(int startCol)
-		{
-			this.startCol = startCol;
-			len = 1;
-		}
+		int nRows = rows.length;
+		int[] counts = new int[nVisibleCols * 256];
+		gapRunCounts = new int[nVisibleCols][];
+		int[] runStarts = new int[nRows];
+		Arrays.fill(runStarts, -1);
+		boolean[] skipRuns = new boolean[nRows];
+		for (int row=0; row<nRows; row++)
+			skipRuns[row] = nVisibleCols > 0  &&  cell(row, 0) == '>';
 		
-		public String toString()
+		for (int col=0; col<nVisibleCols; col++)
 		{
-			return "IndelRun at " + startCol + ", length = " + len;
-		}
-	}  // IndelRun
-	
-	
-	private Stack<IndelRun> collectIndelRuns(String seq)
-	{
-		Stack<IndelRun> ret = new Stack<>();
-		boolean inIndel = false;
-		for (int i=0; i<seq.length(); i++)
-		{
-			if (seq.charAt(i) == '-')
+			int cellOffset = (firstCol + col) * nStoredRows;
+			int countOffset = col * 256;
+			for (int row=0; row<nRows; row++)
 			{
-				// Saw an indel. Start or extend a run.
-				if (inIndel)
-					ret.peek().len++;
-				else
+				byte ch = cells[cellOffset + rows[row]];
+				counts[countOffset + (ch & 0xff)]++;
+				if (ch == '-')
+				{
+					if (runStarts[row] < 0)
+						runStarts[row] = col;
+				}
+				else if (runStarts[row] >= 0)
 				{
-					inIndel = true;
-					ret.push(new IndelRun(i));
+					if (!skipRuns[row])
+						countGapRun(runStarts[row], col - runStarts[row]);
+					runStarts[row] = -1;
 				}
 			}
-			else
-				inIndel = false;
 		}
-		
-		return ret;
+		for (int row=0; row<nRows; row++)
+			if (runStarts[row] >= 0  &&  !skipRuns[row])
+				countGapRun(runStarts[row], nVisibleCols - runStarts[row]);
+		charCounts = counts;
 	}
 	
 	
-	public ArrayList<TreeBinCounter<Integer>> getGapLengthCtrsByStartCol()
+	private void countGapRun(int startCol, int len)
 	{
-		// Collect indel runs.
-		ArrayList<IndelRun> runs = new ArrayList<>();
-		this
-			.stream()
-			.filter(s -> !s.startsWith(">"))
-			.map(seq -> collectIndelRuns(seq))
-			.forEach(stack -> runs.addAll(stack));
+		if (gapRunCounts[startCol] == null)
+			gapRunCounts[startCol] = new int[nVisibleCols - startCol + 1];
+		gapRunCounts[startCol][len]++;
+	}
 	
+	
+	public ArrayList<TreeBinCounter<Integer>> getGapLengthCtrsByStartCol()
+	{
 		// For every column in the alignment, make a bin counter of lengths of
 		// indel runs that start in that column.
+		computeColumnStats();
 		ArrayList<TreeBinCounter<Integer>>  gapLengthCtrsByStartCol = new ArrayList<>();
-		for (int i=0; i<this.nCols(); i++)
-			gapLengthCtrsByStartCol.add(new TreeBinCounter<Integer>());
-		for (IndelRun run: runs)
+		for (int col=0; col<nVisibleCols; col++)
 		{
-			TreeBinCounter<Integer> ctr = gapLengthCtrsByStartCol.get(run.startCol);
-			ctr.bumpCountForBin(run.len);
+			TreeBinCounter<Integer> ctr = new TreeBinCounter<>();
+			if (gapRunCounts[col] != null)
+				for (int len=1; len<gapRunCounts[col].length; len++)
+					if (gapRunCounts[col][len] > 0)
+						ctr.bumpCountForBin(len, gapRunCounts[col][len]);
+			gapLengthCtrsByStartCol.add(ctr);
 		}
 		
 		return gapLengthCtrsByStartCol;
@@ -181,40 +336,40 @@ public class Alignment extends ArrayList<String>
 	
 	public int nCols()
 	{
-		return get(0).length();
+		return nVisibleCols;
 	}
 	
 	
-	// Returns this alignment in case we're streaming.
+	// Returns this alignment in case we're streaming. Only narrows the visible columns.
 	public Alignment trim(int nTrimFromStart, int nTrimFromEnd)
 	{
-		for (int i=0; i<size(); i++)
-		{
-			String s = get(i);
-			s = s.substring(nTrimFromStart);
-			s = s.substring(0, s.length()-nTrimFromEnd);
-			set(i, s);
-		}
+		if (nTrimFromStart < 0  ||  nTrimFromEnd < 0  ||  nTrimFromStart + nTrimFromEnd > nVisibleCols)
+			throw new IndexOutOfBoundsException("Can't trim " + nTrimFromStart + " and " + nTrimFromEnd + " from " + nVisibleCols + " columns");
+		firstCol += nTrimFromStart;
+		nVisibleCols -= nTrimFromStart + nTrimFromEnd;
+		charCounts = null;
+		gapRunCounts = null;
 		return this;
 	}
 	
 	
-	// Call this after trimming to remove all-gap records.
+	// Call this after trimming to remove all-gap records. Only narrows the visible rows.
 	public Alignment removeAllGapRecords()
 	{
-		Stack<Integer> indices = new Stack<>();
-		for (int i=0; i<size(); i++)
-		{
-			String s = get(i);
-			if (s.replace("-", "").isEmpty())
-				indices.push(i);
-		}
-		while (!indices.isEmpty())
+		boolean[] hasResidue = new boolean[rows.length];
+		for (int col=0; col<nVisibleCols; col++)
+			for (int row=0; row<rows.length; row++)
+				if (cell(row, col) != '-')
+					hasResidue[row] = true;
+		int nKept = 0;
+		for (int row=0; row<rows.length; row++)
+			if (hasResidue[row])
+				rows[nKept++] = rows[row];
+		if (nKept < rows.length)
 		{
-			int i = indices.pop();
-			remove(i);
-			if (deflines != null)
-				deflines.remove(i);
+			rows = Arrays.copyOf(rows, nKept);
+			charCounts = null;
+			gapRunCounts = null;
 		}
 		return this;
 	}
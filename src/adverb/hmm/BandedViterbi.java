@@ -0,0 +1,508 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Banded log-odds Viterbi for a CompiledProfileHMM. Only columns within bandHalfWidth of an expected diagonal are
+// computed. The diagonal runs through anchors: query k-mers that occur once in the model's consensus, chained so
+// that their columns increase, so it bends where the query has indels. If there are too few anchors, query position
+// i of L is expected near column i*nCols/L, unless the query is shorter than half the model, in which case it's
+// scored with full DP. Every cell
+// also records whether its best path passed through a cell on the edge of the band. If the best final path did, a
+// wider band might find a better path, so the query is rescored with twice the width, and finally with full DP.
+//
+// The score is approximate: it's the best path inside the band, so it's never above the exact score, but a better
+// path that leaves the band without touching its edge (by a bypass over the edge, or by starting far from the
+// diagonal) is missed. Such paths can't be ruled out cheaply, since any bound on them must assume that the rest of
+// the query matches perfectly. isExact() says whether the most recent score came from full DP. Like
+// CompiledProfileHMM.logOddsViterbiScore(symbols, threshold), every pass stops early once its best path is certainly
+// below a threshold, and then it isn't widened.
+//
+
+
+public class BandedViterbi
+{
+	private final static float		ZERO				= CompiledProfileHMM.ZERO;
+	private final static int		K					= 8;
+	private final static int		MIN_DIAGONAL_VOTES	= 3;
+	final static int				NO_OFFSET			= Integer.MIN_VALUE;
+
+	private CompiledProfileHMM		model;
+	private int						nCols;
+	private int						nStates;
+	private int						rowLength;
+	private int						nPasses;					// for most recent query
+	private int						finalBandHalfWidth;			// for most recent query, -1 means full DP
+	private Map<Long, Integer>		consensusKmerToCol;			// k-mers that occur more than once map to -1
+
+
+	public BandedViterbi(CompiledProfileHMM model)
+	{
+		this.model = model;
+		nCols = model.nCols;
+		nStates = model.nStates;
+		rowLength = model.rowLength;
+		indexConsensus();
+	}
+
+
+	// The consensus symbol of a column is the most probable emission of its MATCH state.
+	private void indexConsensus()
+	{
+		int nSymbols = model.alphabet.length;
+		int[] consensus = new int[nCols];
+		for (int col=0; col<nCols; col++)
+		{
+			int match = CompiledProfileHMM.matchIndex(col);
+			for (int sym=1; sym<nSymbols; sym++)
+				if (model.emissionLogOdds.get(sym*nStates + match) > model.emissionLogOdds.get(consensus[col]*nStates + match))
+					consensus[col] = sym;
+		}
+		consensusKmerToCol = new HashMap<>();
+		for (int col=0; col+K<=nCols; col++)
+			consensusKmerToCol.merge(kmer(consensus, col), col, (oldCol, newCol) -> -1);
+	}
+
+
+	private long kmer(int[] symbols, int start)
+	{
+		long ret = 0;
+		for (int i=start; i<start+K; i++)
+			ret = ret * model.alphabet.length + symbols[i];
+		return ret;
+	}
+
+
+	// Offset (column - query position) with the most k-mer votes, or NO_OFFSET if no offset has enough votes. For
+	// FragmentViterbi.
+	int voteForOffset(int[] symbols)
+	{
+		int len = symbols.length;
+		int[] votes = new int[len + nCols + 1];					// by offset + len
+		for (int i=0; i+K<=len; i++)
+		{
+			Integer col = consensusKmerToCol.get(kmer(symbols, i));
+			if (col != null  &&  col >= 0)
+				votes[col - i + len]++;
+		}
+		int bestOffset = 0;
+		for (int offset=1; offset<votes.length; offset++)
+			if (votes[offset] > votes[bestOffset])
+				bestOffset = offset;
+		return (votes[bestOffset] >= MIN_DIAGONAL_VOTES)  ?  bestOffset - len  :  NO_OFFSET;
+	}
+
+
+	// Query positions whose k-mer occurs once in the consensus, as {position, column}, restricted to the longest chain
+	// in which columns increase with positions. Random k-mer matches seldom fit the chain.
+	private List<int[]> chainAnchors(int[] symbols)
+	{
+		List<int[]> hits = new ArrayList<>();
+		for (int i=0; i+K<=symbols.length; i++)
+		{
+			Integer col = consensusKmerToCol.get(kmer(symbols, i));
+			if (col != null  &&  col >= 0)
+				hits.add(new int[] { i, col });
+		}
+
+		// Longest strictly increasing run of columns, by patience sorting. tails[n] is the hit that ends the best
+		// chain of length n+1.
+		int[] tails = new int[hits.size()];
+		int[] prevHits = new int[hits.size()];
+		int nTails = 0;
+		for (int n=0; n<hits.size(); n++)
+		{
+			int col = hits.get(n)[1];
+			int lo = 0;
+			int hi = nTails;
+			while (lo < hi)
+			{
+				int mid = (lo + hi) >>> 1;
+				if (hits.get(tails[mid])[1] < col)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			prevHits[n] = (lo > 0)  ?  tails[lo-1]  :  -1;
+			tails[lo] = n;
+			if (lo == nTails)
+				nTails++;
+		}
+		List<int[]> chain = new ArrayList<>();
+		for (int n=(nTails > 0)  ?  tails[nTails-1]  :  -1; n>=0; n=prevHits[n])
+			chain.add(hits.get(n));
+		Collections.reverse(chain);
+		return chain;
+	}
+
+
+	// Expected column for every query position, or null if the query is a fragment with too few anchors. A fragment
+	// could be anywhere in the model, so it goes to full DP, which costs little because the fragment is short. The
+	// diagonal is interpolated between anchors (see chainAnchors()), so it follows the query's indels, and it keeps the
+	// offset of the first and last anchors beyond them.
+	private int[] computeDiagonal(int[] symbols)
+	{
+		int len = symbols.length;
+		List<int[]> anchors = chainAnchors(symbols);
+		if (anchors.size() < MIN_DIAGONAL_VOTES  &&  2*len < nCols)
+			return null;
+		int[] diagonal = new int[len];
+		int n = 0;
+		for (int i=0; i<len; i++)
+		{
+			if (anchors.size() < MIN_DIAGONAL_VOTES)
+			{
+				diagonal[i] = (int)((long)i * nCols / len);
+				continue;
+			}
+			while (n+1 < anchors.size()  &&  anchors.get(n+1)[0] <= i)
+				n++;
+			int[] anchor = anchors.get(n);
+			int col = i + anchor[1] - anchor[0];
+			if (i > anchor[0]  &&  n+1 < anchors.size())
+			{
+				int[] next = anchors.get(n+1);
+				col = anchor[1] + (int)((long)(i - anchor[0]) * (next[1] - anchor[1]) / (next[0] - anchor[0]));
+			}
+			diagonal[i] = Math.max(0, Math.min(nCols, col));
+		}
+		return diagonal;
+	}
+
+
+	public float logOddsViterbiScore(String sObservations, int bandHalfWidth) throws HMMException
+	{
+		return logOddsViterbiScore(model.encode(sObservations), bandHalfWidth);
+	}
+
+
+	// Widens the band until the best path stays inside it, or until the band covers the whole model, and then full DP
+	// is used. Unknown symbols go straight to full DP, which reports the failure.
+	public float logOddsViterbiScore(int[] symbols, int bandHalfWidth) throws HMMException
+	{
+		return logOddsViterbiScore(symbols, bandHalfWidth, ZERO);
+	}
+
+
+	// Early abandon, with the same contract as CompiledProfileHMM.logOddsViterbiScore(symbols, threshold): the
+	// banded score, unless that's certainly below threshold, in which case some value below threshold.
+	public float logOddsViterbiScore(int[] symbols, int bandHalfWidth, float threshold) throws HMMException
+	{
+		nPasses = 0;
+		boolean allKnown = Arrays.stream(symbols).allMatch(sym -> sym >= 0);
+		int[] diagonal = (allKnown  &&  symbols.length > 0)  ?  computeDiagonal(symbols)  :  null;
+		for (int halfWidth=Math.max(1, bandHalfWidth); diagonal != null  &&  halfWidth < nCols; halfWidth*=2)
+		{
+			nPasses++;
+			float score = bandedPass(symbols, diagonal, halfWidth, threshold);
+			if (Float.isNaN(score))
+				continue;
+			finalBandHalfWidth = halfWidth;
+			return score;
+		}
+
+		nPasses++;
+		finalBandHalfWidth = -1;
+		return model.logOddsViterbiScore(symbols, threshold);
+	}
+
+
+	public int getNPasses()					{ return nPasses; }
+	public int getFinalBandHalfWidth()		{ return finalBandHalfWidth; }
+	public boolean isExact()				{ return finalBandHalfWidth < 0; }
+
+
+	private int bandLo(int center, int halfWidth)	{ return Math.max(0, center-halfWidth); }
+	private int bandHi(int center, int halfWidth)	{ return Math.min(nCols, center+halfWidth); }
+
+
+	private boolean isEdge(int col, int lo, int hi)
+	{
+		return (col == lo  &&  lo > 0)  ||  (col == hi  &&  hi < nCols);
+	}
+
+
+	// Returns NaN if there's no path inside the band, or if the best path touches the edge of the band. As in
+	// CompiledProfileHMM.logOddsViterbiScore(symbols, threshold), stops early if the best path inside the band is
+	// certainly below threshold.
+	private float bandedPass(int[] symbols, int[] diagonal, int halfWidth, float threshold)
+	{
+		double[] suffixBounds = (threshold == ZERO)  ?  null  :  model.suffixBounds(symbols);
+		double margin = CompiledProfileHMM.roundingMargin(symbols, threshold);
+		float[] prevRow = new float[rowLength];
+		float[] nextRow = new float[rowLength];
+		boolean[] prevEdge = new boolean[rowLength];
+		boolean[] nextEdge = new boolean[rowLength];
+		Arrays.fill(prevRow, ZERO);
+		Arrays.fill(nextRow, ZERO);
+		CompiledProfileHMM.SoftBypassMax softMax = model.newSoftBypassMax();
+
+		// First row.
+		int prevLo = bandLo(diagonal[0], halfWidth);
+		int prevHi = bandHi(diagonal[0], halfWidth);
+		generateFirstRow(prevRow, prevEdge, symbols[0], prevLo, prevHi);
+		int nextLo = 0;
+		int nextHi = -1;										// nextRow is still clear
+
+		// Subsequent rows.
+		for (int i=1; i<symbols.length; i++)
+		{
+			if (suffixBounds != null)
+			{
+				double bound = rowMax(prevRow, prevLo, prevHi) + suffixBounds[i];
+				if (bound + margin < threshold)
+				{
+					// A band with no path is widened.
+					if (bound == Double.NEGATIVE_INFINITY)
+						return Float.NaN;
+					return Math.min((float)bound, Math.nextDown(threshold));
+				}
+			}
+			clearBand(nextRow, nextLo, nextHi);
+			nextLo = bandLo(diagonal[i], halfWidth);
+			nextHi = bandHi(diagonal[i], halfWidth);
+			generateNextRow(prevRow, prevEdge, prevLo, prevHi, nextRow, nextEdge, nextLo, nextHi, symbols[i], softMax);
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+			boolean[] swapEdge = prevEdge;
+			prevEdge = nextEdge;
+			nextEdge = swapEdge;
+			int swapLo = prevLo;
+			prevLo = nextLo;
+			nextLo = swapLo;
+			int swapHi = prevHi;
+			prevHi = nextHi;
+			nextHi = swapHi;
+		}
+
+		// Transition to STOP.
+		float best = ZERO;
+		boolean bestTouchesEdge = false;
+		for (int state=0; state<nStates; state++)
+		{
+			float score = prevRow[state] + model.toStopLogOdds.get(state);
+			if (score > best)
+			{
+				best = score;
+				bestTouchesEdge = prevEdge[state];
+			}
+		}
+		if (model.hasDeleteChain)
+		{
+			int delete = model.deleteIndex(nCols-1);
+			float score = prevRow[delete] + model.deleteToStopLogOdds;
+			if (score > best)
+			{
+				best = score;
+				bestTouchesEdge = prevEdge[delete];
+			}
+		}
+		return (best == ZERO  ||  bestTouchesEdge)  ?  Float.NaN  :  best;
+	}
+
+
+	// Best score in a band, including its DELETE states.
+	private float rowMax(float[] row, int lo, int hi)
+	{
+		float best = ZERO;
+		for (int col=lo; col<=hi; col++)
+		{
+			best = Math.max(best, row[CompiledProfileHMM.insertIndex(col)]);
+			if (col == nCols)
+				break;
+			best = Math.max(best, row[CompiledProfileHMM.matchIndex(col)]);
+			if (model.hasDeleteChain)
+				best = Math.max(best, row[model.deleteIndex(col)]);
+		}
+		return best;
+	}
+
+
+	// Resets the cells of a band to probability zero.
+	private void clearBand(float[] row, int lo, int hi)
+	{
+		for (int col=lo; col<=hi; col++)
+		{
+			row[CompiledProfileHMM.insertIndex(col)] = ZERO;
+			if (col == nCols)
+				break;
+			row[CompiledProfileHMM.matchIndex(col)] = ZERO;
+			if (model.hasDeleteChain)
+				row[model.deleteIndex(col)] = ZERO;
+		}
+	}
+
+
+	// Same arithmetic as CompiledProfileHMM.generateFirstRow(), restricted to the band.
+	private void generateFirstRow(float[] row, boolean[] edge, int symbol, int lo, int hi)
+	{
+		int emissionOffset = symbol * nStates;
+
+		// Silent DELETE chain from START.
+		float[] startDeletes = null;
+		if (model.hasDeleteChain)
+		{
+			startDeletes = new float[nCols];
+			startDeletes[0] = model.deleteOpenLogOdds.get(0);
+			for (int col=1; col<Math.min(hi, nCols); col++)
+				startDeletes[col] = startDeletes[col-1] + model.deleteExtendLogOdds.get(col);
+		}
+
+		for (int col=lo; col<=hi; col++)
+		{
+			int insert = CompiledProfileHMM.insertIndex(col);
+			row[insert] = model.initialLogOdds.get(insert) + model.emissionLogOdds.get(emissionOffset + insert);
+			edge[insert] = isEdge(col, lo, hi);
+			if (col == nCols)
+				break;
+			int match = CompiledProfileHMM.matchIndex(col);
+			float best = model.initialLogOdds.get(match);
+			if (model.hasDeleteChain  &&  col > 0)
+				best = Math.max(best, startDeletes[col-1] + model.deleteCloseLogOdds.get(col));
+			row[match] = best + model.emissionLogOdds.get(emissionOffset + match);
+			edge[match] = isEdge(col, lo, hi);
+		}
+
+		if (model.hasDeleteChain)
+			fillDeleteChain(row, edge, lo, hi);
+	}
+
+
+	// Same arithmetic as CompiledProfileHMM.generateNextRow(), restricted to the band. Cells outside the
+	// previous row's band are ZERO, so predecessors outside it never win.
+	private void generateNextRow(float[] prevRow, boolean[] prevEdge, int prevLo, int prevHi,
+								 float[] nextRow, boolean[] nextEdge, int lo, int hi,
+								 int symbol, CompiledProfileHMM.SoftBypassMax softMax)
+	{
+		int emissionOffset = symbol * nStates;
+		softMax.clear();
+		int nextSoftSrcCol = prevLo;
+
+		for (int col=lo; col<=hi; col++)
+		{
+			boolean isEdge = isEdge(col, lo, hi);
+
+			// INSERT state.
+			int insert = CompiledProfileHMM.insertIndex(col);
+			float best = prevRow[insert] + model.insertToSelfLogOdds.get(col);
+			boolean bestTouchesEdge = prevEdge[insert];
+			if (col > 0)
+			{
+				int prevMatch = CompiledProfileHMM.matchIndex(col-1);
+				float score = prevRow[prevMatch] + model.matchToInsertLogOdds.get(col);
+				if (score > best)
+				{
+					best = score;
+					bestTouchesEdge = prevEdge[prevMatch];
+				}
+			}
+			nextRow[insert] = best + model.emissionLogOdds.get(emissionOffset + insert);
+			nextEdge[insert] = isEdge  ||  bestTouchesEdge;
+			if (col == nCols)
+				break;
+
+			// MATCH state.
+			int match = CompiledProfileHMM.matchIndex(col);
+			best = prevRow[insert] + model.insertToMatchLogOdds.get(col);
+			bestTouchesEdge = prevEdge[insert];
+			if (col > 0)
+			{
+				int prevMatch = CompiledProfileHMM.matchIndex(col-1);
+				float score = prevRow[prevMatch] + model.matchToMatchLogOdds.get(col);
+				if (score > best)
+				{
+					best = score;
+					bestTouchesEdge = prevEdge[prevMatch];
+				}
+			}
+			for (int n=model.hardBypassStarts.get(col); n<model.hardBypassStarts.get(col+1); n++)
+			{
+				int src = CompiledProfileHMM.matchIndex(model.hardBypassSrcCols.get(n));
+				float score = prevRow[src] + model.hardBypassLogOdds.get(n);
+				if (score > best)
+				{
+					best = score;
+					bestTouchesEdge = prevEdge[src];
+				}
+			}
+			if (model.softBypassStarts != null)
+			{
+				for (int n=model.softBypassStarts.get(col); n<model.softBypassStarts.get(col+1); n++)
+				{
+					int src = CompiledProfileHMM.matchIndex(model.softBypassSrcCols.get(n));
+					float score = prevRow[src] + model.softBypassLogOdds.get(n);
+					if (score > best)
+					{
+						best = score;
+						bestTouchesEdge = prevEdge[src];
+					}
+				}
+			}
+			else
+			{
+				for (; nextSoftSrcCol<=Math.min(col-2, prevHi); nextSoftSrcCol++)
+					if (model.softBypassKeyOffsets.get(nextSoftSrcCol) != ZERO)
+						softMax.admit(nextSoftSrcCol, prevRow[CompiledProfileHMM.matchIndex(nextSoftSrcCol)], model.softBypassKeyOffsets.get(nextSoftSrcCol));
+				float score = softMax.mightExceed(col, best)  ?  softMax.best(prevRow, col)  :  ZERO;
+				if (score > best)
+				{
+					best = score;
+					bestTouchesEdge = prevEdge[CompiledProfileHMM.matchIndex(softMax.getBestSrcCol())];
+				}
+			}
+			if (model.hasDeleteChain  &&  col > 0)
+			{
+				int prevDelete = model.deleteIndex(col-1);
+				float score = prevRow[prevDelete] + model.deleteCloseLogOdds.get(col);
+				if (score > best)
+				{
+					best = score;
+					bestTouchesEdge = prevEdge[prevDelete];
+				}
+			}
+			nextRow[match] = best + model.emissionLogOdds.get(emissionOffset + match);
+			nextEdge[match] = isEdge  ||  bestTouchesEdge;
+		}
+
+		if (model.hasDeleteChain)
+			fillDeleteChain(nextRow, nextEdge, lo, hi);
+	}
+
+
+	private void fillDeleteChain(float[] row, boolean[] edge, int lo, int hi)
+	{
+		for (int col=lo; col<=Math.min(hi, nCols-1); col++)
+		{
+			int delete = model.deleteIndex(col);
+			if (col == 0)
+			{
+				row[delete] = ZERO;
+				continue;
+			}
+			int prevMatch = CompiledProfileHMM.matchIndex(col-1);
+			int prevDelete = model.deleteIndex(col-1);
+			float fromMatch = row[prevMatch] + model.deleteOpenLogOdds.get(col);
+			float fromDelete = row[prevDelete] + model.deleteExtendLogOdds.get(col);
+			row[delete] = Math.max(fromMatch, fromDelete);
+			edge[delete] = isEdge(col, lo, hi)  ||  ((fromMatch >= fromDelete)  ?  edge[prevMatch]  :  edge[prevDelete]);
+		}
+	}
+}
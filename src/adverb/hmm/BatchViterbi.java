@@ -0,0 +1,253 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Log-odds Viterbi for many queries against one CompiledProfileHMM. Queries are scored in batches of nLanes, with
+// the DP rows of a batch interleaved so that a state's cells for all queries are adjacent: state s of lane l is at
+// s*nLanes + l. Each transition and emission is read once per batch row and reused by every lane. Per lane, the
+// arithmetic is the same as CompiledProfileHMM.logOddsViterbiScore(), so scores are identical.
+//
+// Queries are sorted by length before batching, longest first within a batch, so that the lanes still running at
+// any stage are always lanes 0 to nActive-1, and lanes finish at about the same time.
+//
+
+
+public class BatchViterbi
+{
+	public final static int						DEFAULT_N_LANES			= 8;
+	private final static float					ZERO					= CompiledProfileHMM.ZERO;
+
+	private CompiledProfileHMM					model;
+	private int									nLanes;
+	private float[]								emissionLogOdds;		// model's table, plus all-ZERO block for unknown symbols
+	private int									unknownSymbolOffset;
+
+
+	public BatchViterbi(CompiledProfileHMM model)
+	{
+		this(model, DEFAULT_N_LANES);
+	}
+
+
+	public BatchViterbi(CompiledProfileHMM model, int nLanes)
+	{
+		assert nLanes > 0;
+		this.model = model;
+		this.nLanes = nLanes;
+		unknownSymbolOffset = model.emissionLogOdds.capacity();
+		emissionLogOdds = Arrays.copyOf(CompiledProfileHMM.toArray(model.emissionLogOdds), unknownSymbolOffset + model.nStates);
+		Arrays.fill(emissionLogOdds, unknownSymbolOffset, emissionLogOdds.length, ZERO);
+	}
+
+
+	public int getNLanes()			{ return nLanes; }
+
+
+	public float[] logOddsViterbiScores(List<String> queries)
+	{
+		List<int[]> encoded = new ArrayList<>(queries.size());
+		for (String query: queries)
+			encoded.add(model.encode(query));
+		return logOddsViterbiScoresOfSymbols(encoded);
+	}
+
+
+	// Scores are in the order of the input. Queries with no Viterbi path, including empty queries, score
+	// Float.NEGATIVE_INFINITY rather than throwing, so that one bad query doesn't spoil a batch.
+	public float[] logOddsViterbiScoresOfSymbols(List<int[]> queries)
+	{
+		Integer[] order = new Integer[queries.size()];
+		for (int i=0; i<order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (i, j) -> queries.get(j).length - queries.get(i).length);
+
+		float[] scores = new float[queries.size()];
+		Arrays.fill(scores, ZERO);
+		int[][] batch = new int[nLanes][];
+		float[] batchScores = new float[nLanes];
+		for (int start=0; start<order.length; start+=nLanes)
+		{
+			int nInBatch = Math.min(nLanes, order.length - start);
+			for (int lane=0; lane<nInBatch; lane++)
+				batch[lane] = queries.get(order[start+lane]);
+			scoreBatch(batch, nInBatch, batchScores);
+			for (int lane=0; lane<nInBatch; lane++)
+				scores[order[start+lane]] = batchScores[lane];
+		}
+		return scores;
+	}
+
+
+	// Queries must be sorted longest first.
+	private void scoreBatch(int[][] batch, int nInBatch, float[] scores)
+	{
+		int nActive = nInBatch;
+		while (nActive > 0  &&  batch[nActive-1].length == 0)
+			scores[--nActive] = ZERO;
+		if (nActive == 0)
+			return;
+
+		float[] prevRow = new float[model.rowLength * nLanes];
+		float[] nextRow = new float[model.rowLength * nLanes];
+		float[] laneRow = new float[model.rowLength];
+		int[] emissionOffsets = new int[nLanes];
+		CompiledProfileHMM.SoftBypassMax[] softMaxes = new CompiledProfileHMM.SoftBypassMax[nLanes];
+		CompiledProfileHMM.SoftBypassLogOddsMemo softMemo = model.newSoftBypassLogOddsMemo();
+		for (int lane=0; lane<nActive; lane++)
+		{
+			softMaxes[lane] = model.newSoftBypassMax();
+			model.generateFirstRow(laneRow, batch[lane][0]);
+			for (int state=0; state<model.rowLength; state++)
+				prevRow[state*nLanes + lane] = laneRow[state];
+		}
+
+		for (int i=1; ; i++)
+		{
+			// Lanes whose queries end at this stage are done.
+			while (nActive > 0  &&  batch[nActive-1].length == i)
+			{
+				nActive--;
+				for (int state=0; state<model.rowLength; state++)
+					laneRow[state] = prevRow[state*nLanes + nActive];
+				try
+				{
+					scores[nActive] = model.finalRowToScore(laneRow);
+				}
+				catch (HMMException x)
+				{
+					scores[nActive] = ZERO;
+				}
+			}
+			if (nActive == 0)
+				return;
+
+			for (int lane=0; lane<nActive; lane++)
+			{
+				int symbol = batch[lane][i];
+				emissionOffsets[lane] = (symbol < 0)  ?  unknownSymbolOffset  :  symbol * model.nStates;
+			}
+			generateNextRow(prevRow, nextRow, emissionOffsets, softMaxes, softMemo, nActive);
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+		}
+	}
+
+
+	// Same arithmetic as CompiledProfileHMM.generateNextRow(), for every active lane. An unknown symbol's
+	// emissions are all ZERO, which zeroes every cell of its lane, as in the single-query engine. Lanes often
+	// have the same soft bypass sources, so soft bypass weights are shared through softMemo.
+	private void generateNextRow(float[] prevRow, float[] nextRow, int[] emissionOffsets,
+								 CompiledProfileHMM.SoftBypassMax[] softMaxes,
+								 CompiledProfileHMM.SoftBypassLogOddsMemo softMemo, int nActive)
+	{
+		int nCols = model.nCols;
+		for (int lane=0; lane<nActive; lane++)
+			softMaxes[lane].clear();
+
+		for (int col=0; col<=nCols; col++)
+		{
+			// INSERT state.
+			int insertState = CompiledProfileHMM.insertIndex(col);
+			int insert = insertState * nLanes;
+			int prevMatch = (col > 0)  ?  CompiledProfileHMM.matchIndex(col-1) * nLanes  :  -1;
+			float selfLogOdds = model.insertToSelfLogOdds.get(col);
+			float fromMatchLogOdds = model.matchToInsertLogOdds.get(col);
+			for (int lane=0; lane<nActive; lane++)
+			{
+				float best = prevRow[insert + lane] + selfLogOdds;
+				if (prevMatch >= 0)
+					best = Math.max(best, prevRow[prevMatch + lane] + fromMatchLogOdds);
+				nextRow[insert + lane] = best + emissionLogOdds[emissionOffsets[lane] + insertState];
+			}
+			if (col == nCols)
+				break;
+
+			// MATCH state: best predecessor first, emission last.
+			int matchState = CompiledProfileHMM.matchIndex(col);
+			int match = matchState * nLanes;
+			float fromInsertLogOdds = model.insertToMatchLogOdds.get(col);
+			float fromPrevMatchLogOdds = model.matchToMatchLogOdds.get(col);
+			for (int lane=0; lane<nActive; lane++)
+			{
+				float best = prevRow[insert + lane] + fromInsertLogOdds;
+				if (prevMatch >= 0)
+					best = Math.max(best, prevRow[prevMatch + lane] + fromPrevMatchLogOdds);
+				nextRow[match + lane] = best;
+			}
+			for (int n=model.hardBypassStarts.get(col); n<model.hardBypassStarts.get(col+1); n++)
+			{
+				int src = CompiledProfileHMM.matchIndex(model.hardBypassSrcCols.get(n)) * nLanes;
+				float logOdds = model.hardBypassLogOdds.get(n);
+				for (int lane=0; lane<nActive; lane++)
+					nextRow[match + lane] = Math.max(nextRow[match + lane], prevRow[src + lane] + logOdds);
+			}
+			if (model.softBypassStarts != null)
+			{
+				for (int n=model.softBypassStarts.get(col); n<model.softBypassStarts.get(col+1); n++)
+				{
+					int src = CompiledProfileHMM.matchIndex(model.softBypassSrcCols.get(n)) * nLanes;
+					float logOdds = model.softBypassLogOdds.get(n);
+					for (int lane=0; lane<nActive; lane++)
+						nextRow[match + lane] = Math.max(nextRow[match + lane], prevRow[src + lane] + logOdds);
+				}
+			}
+			else
+			{
+				boolean admit = col >= 2  &&  model.softBypassKeyOffsets.get(col-2) != ZERO;
+				int src = admit  ?  CompiledProfileHMM.matchIndex(col-2) * nLanes  :  -1;
+				for (int lane=0; lane<nActive; lane++)
+				{
+					if (admit)
+						softMaxes[lane].admit(col-2, prevRow[src + lane], model.softBypassKeyOffsets.get(col-2));
+					if (softMaxes[lane].mightExceed(col, nextRow[match + lane]))
+						nextRow[match + lane] = Math.max(nextRow[match + lane], softMaxes[lane].best(prevRow, col, nLanes, lane, softMemo));
+				}
+			}
+			if (model.hasDeleteChain  &&  col > 0)
+			{
+				int prevDelete = model.deleteIndex(col-1) * nLanes;
+				float logOdds = model.deleteCloseLogOdds.get(col);
+				for (int lane=0; lane<nActive; lane++)
+					nextRow[match + lane] = Math.max(nextRow[match + lane], prevRow[prevDelete + lane] + logOdds);
+			}
+			for (int lane=0; lane<nActive; lane++)
+				nextRow[match + lane] += emissionLogOdds[emissionOffsets[lane] + matchState];
+		}
+
+		// Silent DELETE chain.
+		if (model.hasDeleteChain)
+		{
+			for (int lane=0; lane<nActive; lane++)
+				nextRow[model.deleteIndex(0)*nLanes + lane] = ZERO;
+			for (int col=1; col<nCols; col++)
+			{
+				int delete = model.deleteIndex(col) * nLanes;
+				int prevDelete = model.deleteIndex(col-1) * nLanes;
+				int prevMatch = CompiledProfileHMM.matchIndex(col-1) * nLanes;
+				float openLogOdds = model.deleteOpenLogOdds.get(col);
+				float extendLogOdds = model.deleteExtendLogOdds.get(col);
+				for (int lane=0; lane<nActive; lane++)
+					nextRow[delete + lane] = Math.max(nextRow[prevMatch + lane] + openLogOdds, nextRow[prevDelete + lane] + extendLogOdds);
+			}
+		}
+	}
+}
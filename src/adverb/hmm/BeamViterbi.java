@@ -0,0 +1,359 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Beam-pruned log-odds Viterbi for a CompiledProfileHMM. After each row is computed, only the best maxStates cells,
+// and only cells within maxDelta of the row's best cell, are kept; the others are pruned to probability zero. The
+// next row is computed over the window of columns that kept cells reach by ordinary transitions and hard bypasses,
+// so most of its cost follows the beam rather than the model. Soft bypasses reach every later column, so MATCH
+// states after the window are only computed if a soft bypass might bring them above the pruning threshold.
+//
+// Scores are never higher than exact scores. Any path that leaves the beam passes through a first pruned cell, and
+// that cell's computed value is at least the path's score so far. So if every pruned cell, plus the optimistic
+// bound on the rest of the query from CompiledProfileHMM.suffixBounds(), is below the beam's score, no pruned path
+// could have won and the score is exact. isExact() reports this. If the beam loses every path to STOP, the query is
+// rescored with full DP.
+//
+
+
+public class BeamViterbi
+{
+	public final static int			DEFAULT_MAX_STATES		= 300;
+	private final static float		ZERO					= CompiledProfileHMM.ZERO;
+
+	private CompiledProfileHMM		model;
+	private int						nCols;
+	private int						nStates;
+	private int						rowLength;
+	private int						maxStates;
+	private float					maxDelta;
+	private int[]					maxHardBypassDestCols;		// by src col, -1 if none
+	private float[]					scratch;
+
+	// For most recent query.
+	private long					nCellsComputed;
+	private long					nCellsPruned;
+	private boolean					isExact;
+
+	// For most recent row.
+	private int						keptLo;
+	private int						keptHi;
+	private float					prunedMax;
+	private int						computedTo;
+
+
+	public BeamViterbi(CompiledProfileHMM model)
+	{
+		this(model, DEFAULT_MAX_STATES, Float.POSITIVE_INFINITY);
+	}
+
+
+	// Integer.MAX_VALUE or Float.POSITIVE_INFINITY disables either limit.
+	public BeamViterbi(CompiledProfileHMM model, int maxStates, float maxDelta)
+	{
+		assert maxStates > 0  &&  maxDelta >= 0;
+		this.model = model;
+		this.maxStates = maxStates;
+		this.maxDelta = maxDelta;
+		nCols = model.nCols;
+		nStates = model.nStates;
+		rowLength = model.rowLength;
+		scratch = new float[rowLength];
+
+		maxHardBypassDestCols = new int[nCols];
+		Arrays.fill(maxHardBypassDestCols, -1);
+		for (int destCol=0; destCol<nCols; destCol++)
+			for (int n=model.hardBypassStarts.get(destCol); n<model.hardBypassStarts.get(destCol+1); n++)
+				maxHardBypassDestCols[model.hardBypassSrcCols.get(n)] = destCol;
+	}
+
+
+	public float logOddsViterbiScore(String sObservations) throws HMMException
+	{
+		return logOddsViterbiScore(model.encode(sObservations));
+	}
+
+
+	// Unknown symbols go straight to full DP, which reports the failure.
+	public float logOddsViterbiScore(int[] symbols) throws HMMException
+	{
+		nCellsComputed = 0;
+		nCellsPruned = 0;
+		isExact = true;
+		if (symbols.length == 0  ||  Arrays.stream(symbols).anyMatch(sym -> sym < 0))
+		{
+			nCellsComputed = (long)symbols.length * rowLength;
+			return model.logOddsViterbiScore(symbols);
+		}
+
+		double[] suffixBounds = model.suffixBounds(symbols);
+		double maxPrunedPathBound = Double.NEGATIVE_INFINITY;
+
+		float[] prevRow = new float[rowLength];
+		float[] nextRow = new float[rowLength];
+		Arrays.fill(nextRow, ZERO);
+		CompiledProfileHMM.SoftBypassMax softMax = model.newSoftBypassMax();
+
+		// First row is complete.
+		model.generateFirstRow(prevRow, symbols[0]);
+		nCellsComputed += rowLength;
+		prune(prevRow, 0, nCols, threshold(prevRow, 0, nCols));
+		maxPrunedPathBound = prunedMax + suffixBounds[1];
+		int prevLo = 0;
+		int prevTo = nCols;
+		int nextLo = 0;
+		int nextTo = -1;										// nextRow is still clear
+
+		// Subsequent rows.
+		for (int i=1; i<symbols.length  &&  keptLo <= keptHi; i++)
+		{
+			clearColumns(nextRow, nextLo, nextTo);
+			nextLo = keptLo;
+			nextTo = (model.softBypassStarts == null)  ?  Math.min(nCols, keptHi + 1)  :  nCols;
+			double rowBound = generateNextRow(prevRow, nextRow, symbols[i], softMax, nextLo, nextTo);
+			nextTo = computedTo;
+			maxPrunedPathBound = Math.max(maxPrunedPathBound, rowBound + suffixBounds[i+1]);
+
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+			int swapLo = prevLo;
+			prevLo = nextLo;
+			nextLo = swapLo;
+			int swapTo = prevTo;
+			prevTo = nextTo;
+			nextTo = swapTo;
+		}
+
+		// If the beam lost every path, fall back to full DP.
+		float score;
+		try
+		{
+			score = model.finalRowToScore(prevRow);
+		}
+		catch (HMMException x)
+		{
+			nCellsComputed += (long)symbols.length * rowLength;
+			return model.logOddsViterbiScore(symbols);
+		}
+		isExact = maxPrunedPathBound + CompiledProfileHMM.roundingMargin(symbols, score) < score;
+		return score;
+	}
+
+
+	public long getNCellsComputed()			{ return nCellsComputed; }
+	public long getNCellsPruned()			{ return nCellsPruned; }
+	public boolean isExact()				{ return isExact; }
+
+
+	// Resets the cells of columns lo (inclusive) to to (exclusive), and I_n if to is nCols, to probability zero.
+	private void clearColumns(float[] row, int lo, int to)
+	{
+		for (int col=lo; col<to; col++)
+		{
+			row[CompiledProfileHMM.insertIndex(col)] = ZERO;
+			row[CompiledProfileHMM.matchIndex(col)] = ZERO;
+			if (model.hasDeleteChain)
+				row[model.deleteIndex(col)] = ZERO;
+		}
+		if (to == nCols)
+			row[CompiledProfileHMM.insertIndex(nCols)] = ZERO;
+	}
+
+
+	// Same arithmetic as CompiledProfileHMM.generateNextRow(), over the window of columns lo (inclusive) to to
+	// (exclusive), whose predecessors are the kept cells of prevRow. Then MATCH states after the window that soft
+	// bypasses might bring above the pruning threshold, and the DELETE chain. Prunes the row, sets computedTo to the
+	// end of the columns that might not be ZERO, and returns an upper bound on the pruned and uncomputed cells.
+	private double generateNextRow(float[] prevRow, float[] nextRow, int symbol, CompiledProfileHMM.SoftBypassMax softMax,
+								   int lo, int to)
+	{
+		softMax.clear();
+		model.generateNextRowSegment(prevRow, nextRow, symbol, softMax, lo, to);
+		nCellsComputed += 2 * (to - lo) + ((to == nCols)  ?  1  :  0);
+		if (model.hasDeleteChain)
+			fillDeleteChain(nextRow, lo, to);
+		float threshold = threshold(nextRow, lo, to);
+		computedTo = to;
+		if (to == nCols)
+		{
+			prune(nextRow, lo, to, threshold);
+			return prunedMax;
+		}
+
+		// Soft bypasses after the window. Sources after the window are ZERO, so there are no more to admit.
+		double uncomputedMax = ZERO;
+		int emissionOffset = symbol * nStates;
+		for (int col=to; col<nCols; col++)
+		{
+			int match = CompiledProfileHMM.matchIndex(col);
+			if (col-2 < to  &&  col >= 2  &&  model.softBypassKeyOffsets.get(col-2) != ZERO)
+				softMax.admit(col-2, prevRow[CompiledProfileHMM.matchIndex(col-2)], model.softBypassKeyOffsets.get(col-2));
+			float emission = model.emissionLogOdds.get(emissionOffset + match);
+			if (softMax.mightExceed(col, threshold - emission))
+			{
+				nextRow[match] = softMax.best(prevRow, col) + emission;
+				nCellsComputed++;
+				computedTo = nCols;
+			}
+			else if (softMax.mightExceed(col, ZERO))
+				uncomputedMax = (double)threshold + 1e-6;
+		}
+
+		// The DELETE chain continues after the window.
+		if (model.hasDeleteChain)
+		{
+			fillDeleteChain(nextRow, to, nCols);
+			computedTo = nCols;
+		}
+		prune(nextRow, lo, computedTo, threshold);
+		return Math.max(prunedMax, uncomputedMax);
+	}
+
+
+	// D_0 can only be entered from START.
+	private void fillDeleteChain(float[] row, int lo, int to)
+	{
+		for (int col=lo; col<to; col++)
+		{
+			int delete = model.deleteIndex(col);
+			if (col == 0)
+			{
+				row[delete] = ZERO;
+				continue;
+			}
+			float fromMatch = row[CompiledProfileHMM.matchIndex(col-1)] + model.deleteOpenLogOdds.get(col);
+			float fromDelete = row[model.deleteIndex(col-1)] + model.deleteExtendLogOdds.get(col);
+			row[delete] = Math.max(fromMatch, fromDelete);
+		}
+		nCellsComputed += to - lo;
+	}
+
+
+	// The lowest score that a kept cell among columns lo to to can have.
+	private float threshold(float[] row, int lo, int to)
+	{
+		int nCells = 0;
+		for (int col=lo; col<to  ||  (col == nCols  &&  to == nCols); col++)
+		{
+			nCells = collect(row, CompiledProfileHMM.insertIndex(col), nCells);
+			if (col == nCols)
+				break;
+			nCells = collect(row, CompiledProfileHMM.matchIndex(col), nCells);
+			if (model.hasDeleteChain)
+				nCells = collect(row, model.deleteIndex(col), nCells);
+		}
+		float rowMax = ZERO;
+		for (int n=0; n<nCells; n++)
+			rowMax = Math.max(rowMax, scratch[n]);
+		float threshold = rowMax - maxDelta;
+		if (nCells > maxStates)
+			threshold = Math.max(threshold, kthLargest(scratch, nCells, maxStates));
+		return threshold;
+	}
+
+
+	private int collect(float[] row, int state, int nCells)
+	{
+		if (row[state] != ZERO)
+			scratch[nCells++] = row[state];
+		return nCells;
+	}
+
+
+	// Prunes cells below threshold among columns lo to to. Sets keptLo and keptHi to the range of columns that
+	// kept cells reach in the next row, and prunedMax to the best pruned cell.
+	private void prune(float[] row, int lo, int to, float threshold)
+	{
+		keptLo = Integer.MAX_VALUE;
+		keptHi = -1;
+		prunedMax = ZERO;
+		for (int col=lo; col<to  ||  (col == nCols  &&  to == nCols); col++)
+		{
+			if (keep(row, CompiledProfileHMM.insertIndex(col), threshold))
+				extendKept(col, col);
+			if (col == nCols)
+				break;
+			if (keep(row, CompiledProfileHMM.matchIndex(col), threshold))
+				extendKept(col, Math.max(col+1, maxHardBypassDestCols[col]));
+			if (model.hasDeleteChain  &&  keep(row, model.deleteIndex(col), threshold))
+				extendKept(col, col+1);
+		}
+	}
+
+
+	private boolean keep(float[] row, int state, float threshold)
+	{
+		float score = row[state];
+		if (score == ZERO)
+			return false;
+		if (score >= threshold)
+			return true;
+		row[state] = ZERO;
+		prunedMax = Math.max(prunedMax, score);
+		nCellsPruned++;
+		return false;
+	}
+
+
+	private void extendKept(int col, int reach)
+	{
+		keptLo = Math.min(keptLo, col);
+		keptHi = Math.max(keptHi, Math.min(reach, nCols));
+	}
+
+
+	// Quickselect. Reorders the first n values.
+	private static float kthLargest(float[] values, int n, int k)
+	{
+		int lo = 0;
+		int hi = n - 1;
+		int target = k - 1;
+		while (lo < hi)
+		{
+			float pivot = values[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j)
+			{
+				while (values[i] > pivot)
+					i++;
+				while (values[j] < pivot)
+					j--;
+				if (i <= j)
+				{
+					float swap = values[i];
+					values[i] = values[j];
+					values[j] = swap;
+					i++;
+					j--;
+				}
+			}
+			if (target <= j)
+				hi = j;
+			else if (target >= i)
+				lo = i;
+			else
+				return values[target];
+		}
+		return values[target];
+	}
+}
@@ -0,0 +1,461 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Viterbi path for a ProfileHMM in O(rowLength * sqrt(L)) memory, where L is the query length. Rows are computed
+// by CompiledProfileHMM's row recurrence, on its tables. The forward pass keeps only every k-th DP row as a
+// checkpoint, with k about sqrt(L). Traceback then recomputes the rows between adjacent checkpoints, last pair
+// first, recording backpointers for those rows only. The forward work is done twice.
+//
+// Backpointers are 1-byte codes for a cell's few fixed predecessors: the INSERT, MATCH, or DELETE state before it,
+// or one of its hard bypasses. Soft bypasses are evaluated as in CompiledProfileHMM, by SoftBypassMax. A cell
+// whose winner (or a tie for winner) is a soft bypass, or a hard bypass at position FAR or beyond, is coded FAR.
+// These are rare, and they're found again at traceback by recomputing the previous row from its checkpoint and
+// searching every predecessor.
+//
+// Paths are identical to ProfileHMM's original map-based Viterbi. Candidates are compared as (prev + transition) +
+// emission in float, which gives the same cell values as the compiled recurrence because rounded addition is
+// monotonic. Of equal candidates, the map-based Viterbi kept the one it reached first, i.e. the predecessor that
+// came first in its stage's order. That order is collectStates() order for every stage but the first, which was in
+// logOddsInitialProbs order, so equal candidates are resolved by comparing ranks in those orders.
+//
+// SILENT_CHAIN models have no map-based path. Their DELETE states are in the same row as the MATCH state before
+// them, as in CompiledProfileHMM, and appear in the reported state path between the emitting states.
+//
+// States are numbered as in CompiledProfileHMM, so int paths can use CompiledProfileHMM.insertIndex() and
+// CompiledProfileHMM.matchIndex().
+//
+
+
+public class CheckpointedViterbi implements java.io.Serializable
+{
+	private static final long 		serialVersionUID = 6093871518244270117L;
+
+	private final static float		ZERO					= CompiledProfileHMM.ZERO;
+
+	// Backpointer codes. A MATCH state's hard bypass n is HARD_BYPASS + n.
+	private final static int		FROM_INSERT				= 0;
+	private final static int		FROM_MATCH				= 1;
+	private final static int		FROM_DELETE				= 2;
+	private final static int		HARD_BYPASS				= 3;
+	private final static int		FAR						= 254;
+
+	private CompiledProfileHMM		model;
+	private int						nCols;
+	private int						nStates;				// emitting states
+	private int						rowLength;				// emitting states, then DELETE states if any
+	private String[]				slotNames;				// by row slot
+	private int[]					stateRanks;				// by row slot, order of map-based stages after the first
+	private int[]					firstStageRanks;		// by row slot, order of the map-based first stage
+
+
+	public CheckpointedViterbi(ProfileHMM hmm)
+	{
+		model = hmm.compile();
+		nCols = model.getNCols();
+		nStates = model.getNStates();
+		rowLength = model.rowLength;
+		slotNames = new String[rowLength];
+		Map<String, Integer> nameToSlot = new HashMap<>();
+		for (int slot=0; slot<rowLength; slot++)
+		{
+			slotNames[slot] = (slot < nStates)  ?  model.getStateName(slot)  :  hmm.colNumToDeleteName(slot - nStates);
+			nameToSlot.put(slotNames[slot], slot);
+		}
+		stateRanks = rankSlots(hmm.collectStates(), nameToSlot);
+		firstStageRanks = rankSlots(hmm.logOddsInitialProbs.keySet(), nameToSlot);
+	}
+
+
+	// Slots in the order of states. Slots that aren't in states rank last.
+	private int[] rankSlots(Collection<String> states, Map<String, Integer> nameToSlot)
+	{
+		int[] ranks = new int[rowLength];
+		Arrays.fill(ranks, Integer.MAX_VALUE);
+		int rank = 0;
+		for (String state: states)
+		{
+			Integer slot = nameToSlot.get(state);
+			if (slot != null)
+				ranks[slot] = rank++;
+		}
+		return ranks;
+	}
+
+
+	public int getNStates()					{ return rowLength; }
+	public String getState(int index)		{ return slotNames[index]; }
+
+
+	// Rows between checkpoints.
+	public static int getCheckpointInterval(int nObservations)
+	{
+		return Math.max(1, (int)Math.ceil(Math.sqrt(nObservations)));
+	}
+
+
+	// Peak size of DP rows, checkpoints, and backpointer codes.
+	public long getPeakBytes(int nObservations)
+	{
+		int interval = getCheckpointInterval(nObservations);
+		long nCheckpoints = (nObservations + interval - 1) / interval;
+		return ((nCheckpoints + 2) * Float.BYTES + interval + 1) * rowLength;
+	}
+
+
+	// Observations must not contain gaps. An observation that the model can't emit means there's no Viterbi path,
+	// and a path with probability zero is reported with no states. The report's state index path has one emitting
+	// state per observation. The state path also has any DELETE states between them, and ends with STOP.
+	public ViterbiReport<String> viterbiWithLogOdds(List<Character> observations) throws HMMException
+	{
+		if (observations.isEmpty())
+			throw new HMMException("Empty input, no Viterbi path");
+		int nObs = observations.size();
+		int[] symbols = new int[nObs];
+		for (int i=0; i<nObs; i++)
+		{
+			symbols[i] = model.charToSymbol(observations.get(i));
+			if (symbols[i] < 0)
+				throw new HMMException("Input too short, no Viterbi path");
+		}
+
+		// Forward pass, keeping every interval-th row.
+		int interval = getCheckpointInterval(nObs);
+		float[][] checkpoints = new float[(nObs + interval - 1) / interval][];
+		float[] prevRow = new float[rowLength];
+		float[] nextRow = new float[rowLength];
+		CompiledProfileHMM.SoftBypassMax softMax = model.newSoftBypassMax();
+		model.generateFirstRow(prevRow, symbols[0]);
+		checkpoints[0] = prevRow.clone();
+		for (int i=1; i<nObs; i++)
+		{
+			model.generateNextRow(prevRow, nextRow, symbols[i], softMax);
+			if (i % interval == 0)
+				checkpoints[i / interval] = nextRow.clone();
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+		}
+
+		// Best transition to STOP, in the order of the final map-based stage.
+		int[] finalRanks = ranksOutOfRow(nObs-1);
+		int slot = -1;
+		float bestScore = ZERO;
+		for (int s=0; s<rowLength; s++)
+		{
+			float score = prevRow[s] + toStopLogOdds(s);
+			if (score > bestScore  ||  (score == bestScore  &&  score != ZERO  &&  finalRanks[s] < finalRanks[slot]))
+			{
+				bestScore = score;
+				slot = s;
+			}
+		}
+		if (slot < 0)
+			return new ViterbiReport<>(LogOdds.getProbZeroInstance(), null);
+
+		// Trace back through each pair of checkpoints, last pair first. Rows from checkpoint+1 to end are
+		// recomputed with backpointer codes. The checkpoint row's DELETE states are coded too, since a path can
+		// leave the segment through them. Names are collected last state first.
+		int[] path = new int[nObs];
+		List<String> reversedNames = new ArrayList<>();
+		reversedNames.add(ProfileHMM.STOP_STATE_NAME);
+		int row = nObs - 1;
+		record(slot, row, path, reversedNames);
+		byte[] codes = new byte[(interval + 1) * rowLength];
+		for (int checkpoint=Math.max(nObs-2, 0)/interval*interval; checkpoint>=0; checkpoint-=interval)
+		{
+			int end = Math.min(checkpoint + interval, nObs-1);
+			System.arraycopy(checkpoints[checkpoint / interval], 0, prevRow, 0, rowLength);
+			if (model.hasDeleteChain)
+				fillDeleteChain(prevRow, codes, 0);
+			for (int i=checkpoint+1; i<=end; i++)
+			{
+				generateNextRow(prevRow, nextRow, symbols[i], softMax, codes, (i-checkpoint)*rowLength, ranksOutOfRow(i-1));
+				float[] swap = prevRow;
+				prevRow = nextRow;
+				nextRow = swap;
+			}
+
+			// A DELETE state's predecessor is in its own row, an emitting state's is in the previous row.
+			while (slot >= nStates  ||  row > checkpoint)
+			{
+				int code = codes[(row-checkpoint)*rowLength + slot] & 0xFF;
+				if (slot >= nStates)
+					slot = deletePredecessor(slot - nStates, code);
+				else if (code < FAR)
+					slot = emittingPredecessor(slot, code, row--);
+				else
+				{
+					// Recompute the previous row and search every predecessor.
+					float[] prev = recomputeRow(checkpoints, interval, symbols, row-1, prevRow, nextRow, softMax);
+					float emission = model.emissionLogOdds.get(symbols[row]*nStates + slot);
+					slot = bestMatchPredecessor(prev, (slot - 1) / 2, emission, ranksOutOfRow(--row));
+				}
+				record(slot, row, path, reversedNames);
+			}
+		}
+
+		// The first emission may come at the end of a DELETE chain from START.
+		if (model.hasDeleteChain  &&  slot != CompiledProfileHMM.insertIndex(slot / 2))
+		{
+			int col = (slot - 1) / 2;
+			float fromStart = model.deleteOpenLogOdds.get(0);
+			for (int c=1; c<col; c++)
+				fromStart += model.deleteExtendLogOdds.get(c);
+			if (col > 0  &&  fromStart + model.deleteCloseLogOdds.get(col) > model.initialLogOdds.get(slot))
+				for (int c=col-1; c>=0; c--)
+					reversedNames.add(slotNames[model.deleteIndex(c)]);
+		}
+
+		StateTraceback<String> stateTraceback = new StateTraceback<>();
+		for (int n=reversedNames.size()-1; n>=0; n--)
+			stateTraceback.add(reversedNames.get(n));
+		return new ViterbiReport<>(LogOdds.fromLog10(bestScore), stateTraceback, path);
+	}
+
+
+	private void record(int slot, int row, int[] path, List<String> reversedNames)
+	{
+		if (slot < nStates)
+			path[row] = slot;
+		reversedNames.add(slotNames[slot]);
+	}
+
+
+	private float toStopLogOdds(int slot)
+	{
+		if (slot < nStates)
+			return model.toStopLogOdds.get(slot);
+		return (slot == model.deleteIndex(nCols-1))  ?  model.deleteToStopLogOdds  :  ZERO;
+	}
+
+
+	// Map-based stage 0 was in initial distribution order, later stages were in collectStates() order.
+	private int[] ranksOutOfRow(int row)
+	{
+		return (row == 0)  ?  firstStageRanks  :  stateRanks;
+	}
+
+
+	// Returns the row, which is in prevRow or nextRow.
+	private float[] recomputeRow(float[][] checkpoints, int interval, int[] symbols, int row, float[] prevRow, float[] nextRow,
+								 CompiledProfileHMM.SoftBypassMax softMax)
+	{
+		int checkpoint = row / interval * interval;
+		System.arraycopy(checkpoints[checkpoint / interval], 0, prevRow, 0, rowLength);
+		for (int i=checkpoint+1; i<=row; i++)
+		{
+			model.generateNextRow(prevRow, nextRow, symbols[i], softMax);
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+		}
+		return prevRow;
+	}
+
+
+	// Best candidate so far for one cell. Of equal candidates, the one whose source has the lowest rank wins.
+	private static class Winner
+	{
+		float		score;
+		int			code;
+		int			src;
+
+		Winner clear()
+		{
+			score = ZERO;
+			code = FAR;
+			src = -1;
+			return this;
+		}
+
+		void offer(float candidate, int code, int src, int[] ranks)
+		{
+			if (candidate > score  ||  (candidate == score  &&  candidate != ZERO  &&  ranks[src] < ranks[this.src]))
+			{
+				score = candidate;
+				this.code = code;
+				this.src = src;
+			}
+		}
+	}  // Winner
+
+
+	// Same cells as CompiledProfileHMM.generateNextRow(), with a backpointer code for each.
+	private void generateNextRow(float[] prevRow, float[] nextRow, int symbol, CompiledProfileHMM.SoftBypassMax softMax,
+								 byte[] codes, int codeOffset, int[] ranks)
+	{
+		int emissionOffset = symbol * nStates;
+		Winner winner = new Winner();
+		softMax.clear();
+		for (int col=0; col<=nCols; col++)
+		{
+			// INSERT state.
+			int insert = CompiledProfileHMM.insertIndex(col);
+			float emission = model.emissionLogOdds.get(emissionOffset + insert);
+			winner.clear();
+			winner.offer((prevRow[insert] + model.insertToSelfLogOdds.get(col)) + emission, FROM_INSERT, insert, ranks);
+			if (col > 0)
+				winner.offer((prevRow[CompiledProfileHMM.matchIndex(col-1)] + model.matchToInsertLogOdds.get(col)) + emission, FROM_MATCH, CompiledProfileHMM.matchIndex(col-1), ranks);
+			nextRow[insert] = winner.score;
+			codes[codeOffset + insert] = (byte)winner.code;
+			if (col == nCols)
+				break;
+
+			// MATCH state. A soft bypass that might tie with the fixed predecessors is evaluated.
+			int match = CompiledProfileHMM.matchIndex(col);
+			emission = model.emissionLogOdds.get(emissionOffset + match);
+			winner.clear();
+			offerFixedMatchPredecessors(prevRow, col, emission, ranks, winner);
+			float softBest = ZERO;
+			if (model.softBypassStarts != null)
+			{
+				for (int n=model.softBypassStarts.get(col); n<model.softBypassStarts.get(col+1); n++)
+					softBest = Math.max(softBest, prevRow[CompiledProfileHMM.matchIndex(model.softBypassSrcCols.get(n))] + model.softBypassLogOdds.get(n));
+			}
+			else
+			{
+				if (col >= 2  &&  model.softBypassKeyOffsets.get(col-2) != ZERO)
+					softMax.admit(col-2, prevRow[CompiledProfileHMM.matchIndex(col-2)], model.softBypassKeyOffsets.get(col-2));
+				if (emission != ZERO  &&  softMax.mightExceed(col, tieFloor(winner.score, emission)))
+					softBest = softMax.best(prevRow, col);
+			}
+			float soft = softBest + emission;
+			nextRow[match] = Math.max(winner.score, soft);
+			codes[codeOffset + match] = (byte)((soft >= winner.score  &&  soft != ZERO)  ?  FAR  :  winner.code);
+		}
+		if (model.hasDeleteChain)
+			fillDeleteChain(nextRow, codes, codeOffset);
+	}
+
+
+	// Below any value x such that x + emission rounds to at least score.
+	private static float tieFloor(float score, float emission)
+	{
+		if (score == ZERO)
+			return ZERO;
+		double margin = 2 * Math.ulp(Math.abs(score) + Math.abs(emission));
+		return Math.nextDown((float)((double)score - emission - margin));
+	}
+
+
+	// INSERT, MATCH, DELETE, and hard bypass predecessors of M_col. Hard bypasses at FAR or beyond are coded FAR.
+	private void offerFixedMatchPredecessors(float[] prevRow, int col, float emission, int[] ranks, Winner winner)
+	{
+		int insert = CompiledProfileHMM.insertIndex(col);
+		winner.offer((prevRow[insert] + model.insertToMatchLogOdds.get(col)) + emission, FROM_INSERT, insert, ranks);
+		if (col == 0)
+			return;
+		int prevMatch = CompiledProfileHMM.matchIndex(col-1);
+		winner.offer((prevRow[prevMatch] + model.matchToMatchLogOdds.get(col)) + emission, FROM_MATCH, prevMatch, ranks);
+		int start = model.hardBypassStarts.get(col);
+		for (int n=start; n<model.hardBypassStarts.get(col+1); n++)
+		{
+			int src = CompiledProfileHMM.matchIndex(model.hardBypassSrcCols.get(n));
+			int code = Math.min(HARD_BYPASS + n - start, FAR);
+			winner.offer((prevRow[src] + model.hardBypassLogOdds.get(n)) + emission, code, src, ranks);
+		}
+		if (model.hasDeleteChain)
+		{
+			int delete = model.deleteIndex(col-1);
+			winner.offer((prevRow[delete] + model.deleteCloseLogOdds.get(col)) + emission, FROM_DELETE, delete, ranks);
+		}
+	}
+
+
+	// Returns the slot of M_col's best predecessor in prevRow, searching every predecessor.
+	private int bestMatchPredecessor(float[] prevRow, int col, float emission, int[] ranks)
+	{
+		Winner winner = new Winner().clear();
+		offerFixedMatchPredecessors(prevRow, col, emission, ranks, winner);
+		if (model.softBypassStarts != null)
+		{
+			for (int n=model.softBypassStarts.get(col); n<model.softBypassStarts.get(col+1); n++)
+			{
+				int src = CompiledProfileHMM.matchIndex(model.softBypassSrcCols.get(n));
+				winner.offer((prevRow[src] + model.softBypassLogOdds.get(n)) + emission, FAR, src, ranks);
+			}
+		}
+		else
+		{
+			for (int srcCol=0; srcCol<col-1; srcCol++)
+			{
+				if (model.softBypassKeyOffsets.get(srcCol) == ZERO)
+					continue;
+				float logOdds = ProfileHMM.softBypassLogOdds(nCols, srcCol, col);
+				winner.offer((prevRow[CompiledProfileHMM.matchIndex(srcCol)] + logOdds) + emission, FAR, CompiledProfileHMM.matchIndex(srcCol), ranks);
+			}
+		}
+		assert winner.src >= 0;
+		return winner.src;
+	}
+
+
+	// Same DELETE cells as CompiledProfileHMM.fillDeleteChain(), for rows after the first, with backpointer codes.
+	// D_0 can only be entered from START, so it's ZERO.
+	private void fillDeleteChain(float[] row, byte[] codes, int codeOffset)
+	{
+		row[model.deleteIndex(0)] = ZERO;
+		for (int col=1; col<nCols; col++)
+		{
+			float fromMatch = row[CompiledProfileHMM.matchIndex(col-1)] + model.deleteOpenLogOdds.get(col);
+			float fromDelete = row[model.deleteIndex(col-1)] + model.deleteExtendLogOdds.get(col);
+			row[model.deleteIndex(col)] = Math.max(fromMatch, fromDelete);
+			codes[codeOffset + model.deleteIndex(col)] = (byte)((fromDelete > fromMatch)  ?  FROM_DELETE  :  FROM_MATCH);
+		}
+	}
+
+
+	private int deletePredecessor(int col, int code)
+	{
+		assert col > 0;
+		return (code == FROM_DELETE)  ?  model.deleteIndex(col-1)  :  CompiledProfileHMM.matchIndex(col-1);
+	}
+
+
+	// Decodes a code below FAR. Row is for assertion messages.
+	private int emittingPredecessor(int slot, int code, int row)
+	{
+		int col = slot / 2;
+		if (slot == CompiledProfileHMM.insertIndex(col))
+			return (code == FROM_INSERT)  ?  slot  :  CompiledProfileHMM.matchIndex(col-1);
+		col = (slot - 1) / 2;
+		switch (code)
+		{
+			case FROM_INSERT:
+				return CompiledProfileHMM.insertIndex(col);
+			case FROM_MATCH:
+				return CompiledProfileHMM.matchIndex(col-1);
+			case FROM_DELETE:
+				return model.deleteIndex(col-1);
+			default:
+				int n = model.hardBypassStarts.get(col) + code - HARD_BYPASS;
+				assert n < model.hardBypassStarts.get(col+1)  :  "Bad code " + code + " at row " + row;
+				return CompiledProfileHMM.matchIndex(model.hardBypassSrcCols.get(n));
+		}
+	}
+
+
+	public String toString()
+	{
+		return "CheckpointedViterbi: " + model;
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Forward algorithm for a CompiledProfileHMM: the log10 of the total probability of all paths, rather than of the
+// best path. The recurrence is the Viterbi recurrence of CompiledProfileHMM with max replaced by a log-sum-exp in
+// log10, plus(a, b) = max(a, b) + log10(1 + 10^-|a-b|). The correction term is interpolated from a table, so
+// plus() costs about as much as a max and never calls log10 or pow. It is within TABLE_ERROR of exact, before float
+// rounding.
+//
+// Soft bypass weights factor as w(c, j) = w(c, STOP) + log10(nCols + 1 - j), so the sum over all soft bypass
+// sources of M_j is a running log-sum-exp of prevRow[M_c] + w(c, STOP), plus a term that only depends on j. That
+// makes soft bypasses O(1) per column, as in Viterbi.
+//
+// Early abandon works as in CompiledProfileHMM, with a different bound: the total probability of the emitting cells
+// of a row can't grow by more than the best emission of each later observation, because the transitions out of each
+// state, including silent paths through DELETE states and the transition to STOP, sum to at most 1.
+//
+
+
+public class CompiledForward
+{
+	private final static float		ZERO					= CompiledProfileHMM.ZERO;
+	private final static int		STEPS_PER_UNIT			= 256;		// table resolution, in log10 units
+	private final static int		MAX_DIFF				= 8;		// log10(1 + 10^-8) < 5e-9 is ignored
+	public final static double		TABLE_ERROR				= 2e-6;		// interpolation error plus ignored tail
+	private final static float[]	CORRECTIONS;						// log10(1 + 10^-d) at d = i/STEPS_PER_UNIT
+	private final static float[]	SLOPES;								// for linear interpolation
+
+	private CompiledProfileHMM		model;
+	private double[]				maxEmissionLogOdds;			// by symbol
+	private int						maxTermsPerRow;				// most plus() calls on any chain of cells in a row
+
+
+	static
+	{
+		int nSteps = MAX_DIFF * STEPS_PER_UNIT;
+		CORRECTIONS = new float[nSteps + 1];
+		SLOPES = new float[nSteps + 1];
+		for (int i=0; i<=nSteps; i++)
+			CORRECTIONS[i] = (float)Math.log10(1 + Math.pow(10, -(double)i/STEPS_PER_UNIT));
+		for (int i=0; i<nSteps; i++)
+			SLOPES[i] = CORRECTIONS[i+1] - CORRECTIONS[i];
+	}
+
+
+	public CompiledForward(CompiledProfileHMM model)
+	{
+		this.model = model;
+
+		int nSymbols = model.alphabet.length;
+		maxEmissionLogOdds = new double[nSymbols];
+		Arrays.fill(maxEmissionLogOdds, Double.NEGATIVE_INFINITY);
+		for (int sym=0; sym<nSymbols; sym++)
+			for (int state=0; state<model.nStates; state++)
+				maxEmissionLogOdds[sym] = Math.max(maxEmissionLogOdds[sym], model.emissionLogOdds.get(sym*model.nStates + state));
+
+		// A MATCH cell sums at most 5 kinds of predecessor plus its hard bypasses, and a DELETE chain adds one sum per
+		// column.
+		int maxHardBypasses = 0;
+		for (int col=0; col<model.nCols; col++)
+			maxHardBypasses = Math.max(maxHardBypasses, model.hardBypassStarts.get(col+1) - model.hardBypassStarts.get(col));
+		int maxSoftBypasses = 1;
+		if (model.softBypassStarts != null)
+			for (int col=0; col<model.nCols; col++)
+				maxSoftBypasses = Math.max(maxSoftBypasses, model.softBypassStarts.get(col+1) - model.softBypassStarts.get(col));
+		maxTermsPerRow = 4 + maxHardBypasses + maxSoftBypasses + (model.hasDeleteChain  ?  model.nCols  :  0);
+	}
+
+
+	// Log-sum-exp in log10.
+	static float plus(float a, float b)
+	{
+		if (a < b)
+		{
+			float swap = a;
+			a = b;
+			b = swap;
+		}
+		if (b == ZERO)
+			return a;
+		float x = (a - b) * STEPS_PER_UNIT;
+		if (x >= MAX_DIFF * STEPS_PER_UNIT)
+			return a;
+		int i = (int)x;
+		return a + (CORRECTIONS[i] + (x - i) * SLOPES[i]);
+	}
+
+
+	public float logOddsForwardScore(String sObservations) throws HMMException
+	{
+		return logOddsForwardScore(model.encode(sObservations), ZERO);
+	}
+
+
+	public float logOddsForwardScore(int[] symbols) throws HMMException
+	{
+		return logOddsForwardScore(symbols, ZERO);
+	}
+
+
+	public float logOddsForwardScore(String sObservations, float threshold) throws HMMException
+	{
+		return logOddsForwardScore(model.encode(sObservations), threshold);
+	}
+
+
+	// Same value as without a threshold, unless the score is certainly below threshold. Then scoring stops as soon
+	// as that's certain, and some value below threshold is returned. Float.NEGATIVE_INFINITY disables early abandon.
+	// A row's total probability is at most its best cell times its number of cells, and margin covers the table
+	// error and float rounding of every plus() on the way to the final score.
+	public float logOddsForwardScore(int[] symbols, float threshold) throws HMMException
+	{
+		if (symbols.length == 0)
+			throw new HMMException("Empty input, no Forward path");
+
+		double[] suffixBounds = null;
+		double margin = 0;
+		double rowSizeLogOdds = Math.log10(model.rowLength);
+		if (threshold != ZERO)
+		{
+			suffixBounds = new double[symbols.length+1];
+			suffixBounds[symbols.length] = 0;
+			for (int i=symbols.length-1; i>=0; i--)
+				suffixBounds[i] = suffixBounds[i+1] + ((symbols[i] < 0)  ?  Double.NEGATIVE_INFINITY  :  maxEmissionLogOdds[symbols[i]]);
+			margin = (symbols.length + 2.0) * maxTermsPerRow * (TABLE_ERROR + 2*Math.ulp(Math.abs(threshold)));
+		}
+
+		float[] prevRow = new float[model.rowLength];
+		float[] nextRow = new float[model.rowLength];
+		generateFirstRow(prevRow, symbols[0]);
+		for (int i=1; i<=symbols.length; i++)
+		{
+			if (suffixBounds != null)
+			{
+				float rowBest = ZERO;
+				for (float score: prevRow)
+					rowBest = Math.max(rowBest, score);
+				double bound = rowBest + rowSizeLogOdds + suffixBounds[i];
+				if (bound + margin < threshold)
+				{
+					if (bound == Double.NEGATIVE_INFINITY)
+						throw new HMMException("Input too short, no Forward path");
+					return Math.min((float)bound, Math.nextDown(threshold));
+				}
+			}
+			if (i == symbols.length)
+				break;
+			generateNextRow(prevRow, nextRow, symbols[i]);
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+		}
+
+		// Transition to STOP.
+		float total = ZERO;
+		for (int state=0; state<model.nStates; state++)
+			total = plus(total, prevRow[state] + model.toStopLogOdds.get(state));
+		if (model.hasDeleteChain)
+			total = plus(total, prevRow[model.deleteIndex(model.nCols-1)] + model.deleteToStopLogOdds);
+		if (total == ZERO)
+			throw new HMMException("Input too short, no Forward path");
+		return total;
+	}
+
+
+	// Same as CompiledProfileHMM.generateFirstRow(), summing instead of maximizing.
+	private void generateFirstRow(float[] row, int symbol)
+	{
+		if (symbol < 0)
+		{
+			Arrays.fill(row, ZERO);
+			return;
+		}
+		int emissionOffset = symbol * model.nStates;
+		for (int state=0; state<model.nStates; state++)
+			row[state] = model.initialLogOdds.get(state) + model.emissionLogOdds.get(emissionOffset + state);
+		if (!model.hasDeleteChain)
+			return;
+
+		// There's only one silent path from START to each DELETE state.
+		float startDelete = model.deleteOpenLogOdds.get(0);
+		for (int col=1; col<model.nCols; col++)
+		{
+			int match = CompiledProfileHMM.matchIndex(col);
+			float viaDelete = startDelete + model.deleteCloseLogOdds.get(col);
+			row[match] = plus(model.initialLogOdds.get(match), viaDelete) + model.emissionLogOdds.get(emissionOffset + match);
+			startDelete += model.deleteExtendLogOdds.get(col);
+		}
+		fillDeleteChain(row);
+	}
+
+
+	// Same as CompiledProfileHMM.generateNextRow(), summing instead of maximizing.
+	private void generateNextRow(float[] prevRow, float[] nextRow, int symbol)
+	{
+		if (symbol < 0)
+		{
+			Arrays.fill(nextRow, ZERO);
+			return;
+		}
+
+		int nCols = model.nCols;
+		int emissionOffset = symbol * model.nStates;
+		float softSum = ZERO;									// of prevRow[M_c] + w(c, STOP) for admitted c
+		for (int col=0; col<=nCols; col++)
+		{
+			// INSERT state.
+			int insert = CompiledProfileHMM.insertIndex(col);
+			float sum = prevRow[insert] + model.insertToSelfLogOdds.get(col);
+			if (col > 0)
+				sum = plus(sum, prevRow[CompiledProfileHMM.matchIndex(col-1)] + model.matchToInsertLogOdds.get(col));
+			nextRow[insert] = sum + model.emissionLogOdds.get(emissionOffset + insert);
+			if (col == nCols)
+				break;
+
+			// MATCH state.
+			int match = CompiledProfileHMM.matchIndex(col);
+			sum = prevRow[insert] + model.insertToMatchLogOdds.get(col);
+			if (col > 0)
+				sum = plus(sum, prevRow[CompiledProfileHMM.matchIndex(col-1)] + model.matchToMatchLogOdds.get(col));
+			for (int n=model.hardBypassStarts.get(col); n<model.hardBypassStarts.get(col+1); n++)
+				sum = plus(sum, prevRow[CompiledProfileHMM.matchIndex(model.hardBypassSrcCols.get(n))] + model.hardBypassLogOdds.get(n));
+			if (model.softBypassStarts != null)
+			{
+				for (int n=model.softBypassStarts.get(col); n<model.softBypassStarts.get(col+1); n++)
+					sum = plus(sum, prevRow[CompiledProfileHMM.matchIndex(model.softBypassSrcCols.get(n))] + model.softBypassLogOdds.get(n));
+			}
+			else
+			{
+				if (col >= 2  &&  model.softBypassKeyOffsets.get(col-2) != ZERO)
+					softSum = plus(softSum, prevRow[CompiledProfileHMM.matchIndex(col-2)] + model.softBypassKeyOffsets.get(col-2));
+				if (softSum != ZERO)
+					sum = plus(sum, softSum + (float)model.softBypassMaxRelatives.get(col));
+			}
+			if (model.hasDeleteChain  &&  col > 0)
+				sum = plus(sum, prevRow[model.deleteIndex(col-1)] + model.deleteCloseLogOdds.get(col));
+			nextRow[match] = sum + model.emissionLogOdds.get(emissionOffset + match);
+		}
+
+		if (model.hasDeleteChain)
+			fillDeleteChain(nextRow);
+	}
+
+
+	// Same as CompiledProfileHMM.fillDeleteChain(row, ZERO), summing instead of maximizing.
+	private void fillDeleteChain(float[] row)
+	{
+		row[model.deleteIndex(0)] = ZERO;
+		for (int col=1; col<model.nCols; col++)
+		{
+			float fromMatch = row[CompiledProfileHMM.matchIndex(col-1)] + model.deleteOpenLogOdds.get(col);
+			float fromDelete = row[model.deleteIndex(col-1)] + model.deleteExtendLogOdds.get(col);
+			row[model.deleteIndex(col)] = plus(fromMatch, fromDelete);
+		}
+	}
+
+
+	public String toString()
+	{
+		return "CompiledForward: " + model;
+	}
+}
@@ -0,0 +1,968 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+
+//
+// Int-indexed form of a ProfileHMM, built once and then used for fast log-odds Viterbi scoring. States are
+// numbered in column order: I_0, M_0, I_1, M_1, ... M_(n-1), I_n. STOP isn't numbered; transitions into STOP
+// are kept in their own array. All probabilities are log10 values copied from the ProfileHMM's LogOdds tables,
+// so scores are identical to ProfileHMM.logOddsViterbiScore(). Probability zero is Float.NEGATIVE_INFINITY.
+//
+// Tables are buffers, read with absolute get(). A model built from a ProfileHMM wraps heap arrays. A model from a
+// ModelLibraryFile has read-only views of the file's mapping, so its tables are never copied onto the heap, and
+// processes that map the same file share them in the OS page cache.
+//
+
+
+public class CompiledProfileHMM implements LogOddsViterbiScorer, java.io.Serializable
+{
+	private static final long 		serialVersionUID = 2930446011982473557L;
+
+	final static float				ZERO					= Float.NEGATIVE_INFINITY;
+
+	int								nCols;
+	int								nStates;
+	String[]						stateNames;				// by state index
+	char[]							alphabet;				// by symbol index
+	IntBuffer						charToSymbol;			// by char, -1 if not in alphabet
+	FloatBuffer						initialLogOdds;			// by state index
+	FloatBuffer						emissionLogOdds;		// [symbol*nStates + state]
+	FloatBuffer						toStopLogOdds;			// by state index
+
+	// After ProfileHMM.init() folds its DELETE states, every emitting state has only a few predecessors. I_j is
+	// entered from M_(j-1) and from itself. M_j is entered from M_(j-1), from I_j, and from the bypass edges left
+	// by folding. Tables below are indexed by column j; entries that don't exist are ZERO.
+	FloatBuffer						matchToInsertLogOdds;	// M_(j-1) -> I_j
+	FloatBuffer						insertToSelfLogOdds;	// I_j -> I_j
+	FloatBuffer						insertToMatchLogOdds;	// I_j -> M_j
+	FloatBuffer						matchToMatchLogOdds;	// M_(j-1) -> M_j
+
+	// Bypass edges M_c -> M_j (c < j-1) in compressed sparse row form, by destination column. The bypass
+	// sources of M_j are columns bypassSrcCols[bypassStarts[j]] through bypassSrcCols[bypassStarts[j+1]-1].
+	// Hard bypasses come from the hard DELETE states in ProfileHMM.getHardDeleteStates(), soft bypasses from
+	// the soft DELETE states.
+	IntBuffer						hardBypassStarts;
+	IntBuffer						hardBypassSrcCols;
+	FloatBuffer						hardBypassLogOdds;
+	IntBuffer						softBypassStarts;		// null if soft bypasses are evaluated in closed form
+	IntBuffer						softBypassSrcCols;
+	FloatBuffer						softBypassLogOdds;
+
+	// A soft bypass from M_c reaches every later MATCH state, so there are O(nCols^2) of them. Their weights
+	// follow ProfileHMM.softBypassLogOdds(), which is log10(tax * numer(j) / denom(c)) up to float rounding.
+	// The best source for any destination is therefore nearly the source with the highest key
+	// prevRow[M_c] + w(c, STOP). Sources whose keys are within softBypassSlack of the best key might still win
+	// after rounding, so they are evaluated exactly. This makes soft bypasses O(nCols) per row.
+	FloatBuffer						softBypassKeyOffsets;	// w(c, STOP) by source column, ZERO if no soft bypass
+	double							softBypassSlack;
+	DoubleBuffer					softBypassMaxRelatives;	// max of w(c, j) - w(c, STOP) over c, by dest col j
+
+	// For early abandon: by symbol, the most that one more observation can add to any path, i.e. the max over
+	// emitting states of the state's best incoming transition plus its emission. Built on first use.
+	private transient double[]		stepBoundLogOdds;
+	private transient double		toStopBoundLogOdds;
+
+	// Silent DELETE chain, for ProfileHMM.DeleteMode.SILENT_CHAIN models only. D_j doesn't emit, so it belongs to
+	// the same row as M_(j-1) and is filled in column order after the emitting states. Rows then have nCols extra
+	// slots, D_j at deleteIndex(j). Indexed by column j; for j=0 the open transition comes from START.
+	boolean							hasDeleteChain;
+	int								rowLength;
+	FloatBuffer						deleteOpenLogOdds;		// M_(j-1) -> D_j
+	FloatBuffer						deleteExtendLogOdds;	// D_(j-1) -> D_j
+	FloatBuffer						deleteCloseLogOdds;		// D_(j-1) -> M_j
+	float							deleteToStopLogOdds;	// D_(n-1) -> STOP
+
+	int								bandHalfWidth;			// ProfileHMM's, for banded and fragment scoring
+
+
+	public CompiledProfileHMM(ProfileHMM phmm)
+	{
+		// Number the states.
+		nCols = phmm.getNCols();
+		nStates = 2*nCols + 1;
+		stateNames = new String[nStates];
+		Map<String, Integer> nameToIndex = new HashMap<>();
+		for (int col=0; col<=nCols; col++)
+		{
+			stateNames[insertIndex(col)] = phmm.colNumToInsertName(col);
+			if (col < nCols)
+				stateNames[matchIndex(col)] = phmm.colNumToMatchName(col);
+		}
+		for (int i=0; i<nStates; i++)
+			nameToIndex.put(stateNames[i], i);
+
+		// Emission alphabet.
+		Set<Character> chars = new TreeSet<>(phmm.getEmissionAlphabet());
+		alphabet = new char[chars.size()];
+		int maxChar = 0;
+		int n = 0;
+		for (Character ch: chars)
+		{
+			alphabet[n++] = ch;
+			maxChar = Math.max(maxChar, ch);
+		}
+		int[] symbols = new int[maxChar+1];
+		Arrays.fill(symbols, -1);
+		for (int sym=0; sym<alphabet.length; sym++)
+			symbols[alphabet[sym]] = sym;
+		charToSymbol = IntBuffer.wrap(symbols);
+
+		// DELETE chain arrays are only needed if the model kept its DELETE states.
+		bandHalfWidth = phmm.getBandHalfWidth();
+		hasDeleteChain = phmm.getDeleteMode() == ProfileHMM.DeleteMode.SILENT_CHAIN;
+		rowLength = hasDeleteChain  ?  nStates + nCols  :  nStates;
+		deleteOpenLogOdds = newZeroBuffer(nCols);
+		deleteExtendLogOdds = newZeroBuffer(nCols);
+		deleteCloseLogOdds = newZeroBuffer(nCols);
+		deleteToStopLogOdds = ZERO;
+
+		// Initial and emission log probs.
+		initialLogOdds = newZeroBuffer(nStates);
+		for (String state: phmm.logOddsInitialProbs.keySet())
+		{
+			Integer index = nameToIndex.get(state);
+			if (index != null)
+				initialLogOdds.put(index, toFloat(phmm.logOddsInitialProbs.get(state)));
+			else if (ProfileHMM.isDeleteState(state))
+				deleteOpenLogOdds.put(0, toFloat(phmm.logOddsInitialProbs.get(state)));
+			// else initial transition to STOP, which is useless
+		}
+		emissionLogOdds = newZeroBuffer(alphabet.length * nStates);
+		for (int state=0; state<nStates; state++)
+		{
+			LogOddsDiscreteProbabilityDistribution<Character> dist = phmm.logOddsEmissionProbs.get(stateNames[state]);
+			if (dist == null)
+				continue;
+			for (Character ch: dist.keySet())
+				emissionLogOdds.put(charToSymbol.get(ch)*nStates + state, toFloat(dist.get(ch)));
+		}
+
+		// Hard DELETE states are named for the column they skip. The MATCH state before that column
+		// owns the hard bypass edges.
+		boolean[] hardDeleteAtCol = new boolean[nCols];
+		for (String deleteState: phmm.getHardDeleteStates())
+			hardDeleteAtCol[ProfileHMM.stateNameToColNum(deleteState)] = true;
+
+		// Transitions.
+		toStopLogOdds = newZeroBuffer(nStates);
+		matchToInsertLogOdds = newZeroBuffer(nCols+1);
+		insertToSelfLogOdds = newZeroBuffer(nCols+1);
+		insertToMatchLogOdds = newZeroBuffer(nCols);
+		matchToMatchLogOdds = newZeroBuffer(nCols);
+		List<List<int[]>> hardBypassesByDest = new ArrayList<>();		// { src col, float bits }
+		List<List<int[]>> softBypassesByDest = new ArrayList<>();
+		for (int col=0; col<nCols; col++)
+		{
+			hardBypassesByDest.add(new ArrayList<>());
+			softBypassesByDest.add(new ArrayList<>());
+		}
+		for (String src: phmm.logOddsTransitionProbs.keySet())
+		{
+			int srcCol = ProfileHMM.stateNameToColNum(src);
+			LogOddsDiscreteProbabilityDistribution<String> dist = phmm.logOddsTransitionProbs.get(src);
+			if (ProfileHMM.isDeleteState(src))
+			{
+				for (String dest: dist.keySet())
+				{
+					float logOdds = toFloat(dist.get(dest));
+					if (ProfileHMM.isStopState(dest))
+						deleteToStopLogOdds = logOdds;
+					else if (ProfileHMM.isDeleteState(dest))
+						deleteExtendLogOdds.put(srcCol+1, logOdds);
+					else
+						deleteCloseLogOdds.put(srcCol+1, logOdds);
+					assert ProfileHMM.isStopState(dest)  ||  ProfileHMM.stateNameToColNum(dest) == srcCol + 1  :  src + " -> " + dest;
+				}
+				continue;
+			}
+			int srcIndex = nameToIndex.get(src);
+			for (String dest: dist.keySet())
+			{
+				float logOdds = toFloat(dist.get(dest));
+				if (ProfileHMM.isStopState(dest))
+				{
+					toStopLogOdds.put(srcIndex, logOdds);
+					continue;
+				}
+				int destCol = ProfileHMM.stateNameToColNum(dest);
+				if (ProfileHMM.isDeleteState(dest))
+				{
+					assert destCol == srcCol + 1  :  src + " -> " + dest;
+					deleteOpenLogOdds.put(destCol, logOdds);
+				}
+				else if (ProfileHMM.isInsertState(src))
+				{
+					if (ProfileHMM.isInsertState(dest))
+					{
+						assert destCol == srcCol  :  src + " -> " + dest;
+						insertToSelfLogOdds.put(destCol, logOdds);
+					}
+					else
+					{
+						assert destCol == srcCol  :  src + " -> " + dest;
+						insertToMatchLogOdds.put(destCol, logOdds);
+					}
+				}
+				else if (ProfileHMM.isInsertState(dest))
+				{
+					assert destCol == srcCol + 1  :  src + " -> " + dest;
+					matchToInsertLogOdds.put(destCol, logOdds);
+				}
+				else if (destCol == srcCol + 1)
+					matchToMatchLogOdds.put(destCol, logOdds);
+				else
+				{
+					assert destCol > srcCol + 1  :  src + " -> " + dest;
+					List<List<int[]>> bypassesByDest = hardDeleteAtCol[srcCol+1]  ?  hardBypassesByDest  :  softBypassesByDest;
+					bypassesByDest.get(destCol).add(new int[] { srcCol, Float.floatToRawIntBits(logOdds) });
+				}
+			}
+		}
+
+		// Pack bypasses.
+		int nHardBypasses = countBypasses(hardBypassesByDest);
+		hardBypassStarts = IntBuffer.allocate(nCols+1);
+		hardBypassSrcCols = IntBuffer.allocate(nHardBypasses);
+		hardBypassLogOdds = FloatBuffer.allocate(nHardBypasses);
+		packBypasses(hardBypassesByDest, hardBypassStarts, hardBypassSrcCols, hardBypassLogOdds);
+		if (!initClosedFormSoftBypasses(softBypassesByDest))
+		{
+			// Some stored weight doesn't follow the closed form. Enumerate soft bypasses like hard ones.
+			int nSoftBypasses = countBypasses(softBypassesByDest);
+			softBypassStarts = IntBuffer.allocate(nCols+1);
+			softBypassSrcCols = IntBuffer.allocate(nSoftBypasses);
+			softBypassLogOdds = FloatBuffer.allocate(nSoftBypasses);
+			packBypasses(softBypassesByDest, softBypassStarts, softBypassSrcCols, softBypassLogOdds);
+		}
+	}
+
+
+	// Reads the binary form written by write(), e.g. from a ModelLibraryFile mapping. Leaves in positioned after it.
+	// Tables are views of in, not copies.
+	CompiledProfileHMM(ByteBuffer in)
+	{
+		read(in);
+	}
+
+
+	private void read(ByteBuffer in)
+	{
+		nCols = in.getInt();
+		nStates = in.getInt();
+		stateNames = new String[nStates];
+		for (int i=0; i<nStates; i++)
+			stateNames[i] = ModelLibraryFile.readString(in);
+		alphabet = new char[in.getInt()];
+		for (int i=0; i<alphabet.length; i++)
+			alphabet[i] = in.getChar();
+		charToSymbol = ModelLibraryFile.readInts(in);
+		initialLogOdds = ModelLibraryFile.readFloats(in);
+		emissionLogOdds = ModelLibraryFile.readFloats(in);
+		toStopLogOdds = ModelLibraryFile.readFloats(in);
+		matchToInsertLogOdds = ModelLibraryFile.readFloats(in);
+		insertToSelfLogOdds = ModelLibraryFile.readFloats(in);
+		insertToMatchLogOdds = ModelLibraryFile.readFloats(in);
+		matchToMatchLogOdds = ModelLibraryFile.readFloats(in);
+		hardBypassStarts = ModelLibraryFile.readInts(in);
+		hardBypassSrcCols = ModelLibraryFile.readInts(in);
+		hardBypassLogOdds = ModelLibraryFile.readFloats(in);
+		softBypassStarts = ModelLibraryFile.readInts(in);
+		softBypassSrcCols = ModelLibraryFile.readInts(in);
+		softBypassLogOdds = ModelLibraryFile.readFloats(in);
+		softBypassKeyOffsets = ModelLibraryFile.readFloats(in);
+		softBypassSlack = in.getDouble();
+		softBypassMaxRelatives = ModelLibraryFile.readDoubles(in);
+		hasDeleteChain = in.get() != 0;
+		rowLength = in.getInt();
+		deleteOpenLogOdds = ModelLibraryFile.readFloats(in);
+		deleteExtendLogOdds = ModelLibraryFile.readFloats(in);
+		deleteCloseLogOdds = ModelLibraryFile.readFloats(in);
+		deleteToStopLogOdds = in.getFloat();
+		bandHalfWidth = in.getInt();
+	}
+
+
+	// Binary form of every field, in declaration order, in ModelLibraryFile's byte order and with its table alignment.
+	// Transient bounds aren't written; they're rebuilt on first use.
+	void write(DataOutputStream out) throws IOException
+	{
+		ModelLibraryFile.writeInt(out, nCols);
+		ModelLibraryFile.writeInt(out, nStates);
+		for (String name: stateNames)
+			ModelLibraryFile.writeString(out, name);
+		ModelLibraryFile.writeInt(out, alphabet.length);
+		for (char ch: alphabet)
+			ModelLibraryFile.writeChar(out, ch);
+		ModelLibraryFile.writeInts(out, charToSymbol);
+		ModelLibraryFile.writeFloats(out, initialLogOdds);
+		ModelLibraryFile.writeFloats(out, emissionLogOdds);
+		ModelLibraryFile.writeFloats(out, toStopLogOdds);
+		ModelLibraryFile.writeFloats(out, matchToInsertLogOdds);
+		ModelLibraryFile.writeFloats(out, insertToSelfLogOdds);
+		ModelLibraryFile.writeFloats(out, insertToMatchLogOdds);
+		ModelLibraryFile.writeFloats(out, matchToMatchLogOdds);
+		ModelLibraryFile.writeInts(out, hardBypassStarts);
+		ModelLibraryFile.writeInts(out, hardBypassSrcCols);
+		ModelLibraryFile.writeFloats(out, hardBypassLogOdds);
+		ModelLibraryFile.writeInts(out, softBypassStarts);
+		ModelLibraryFile.writeInts(out, softBypassSrcCols);
+		ModelLibraryFile.writeFloats(out, softBypassLogOdds);
+		ModelLibraryFile.writeFloats(out, softBypassKeyOffsets);
+		ModelLibraryFile.writeDouble(out, softBypassSlack);
+		ModelLibraryFile.writeDoubles(out, softBypassMaxRelatives);
+		out.writeBoolean(hasDeleteChain);
+		ModelLibraryFile.writeInt(out, rowLength);
+		ModelLibraryFile.writeFloats(out, deleteOpenLogOdds);
+		ModelLibraryFile.writeFloats(out, deleteExtendLogOdds);
+		ModelLibraryFile.writeFloats(out, deleteCloseLogOdds);
+		ModelLibraryFile.writeFloat(out, deleteToStopLogOdds);
+		ModelLibraryFile.writeInt(out, bandHalfWidth);
+	}
+
+
+	// Buffers aren't Serializable, so a model is serialized in the binary form of write().
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		write(new DataOutputStream(bytes));
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+
+	private void readObject(ObjectInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		read(ByteBuffer.wrap(bytes).order(ModelLibraryFile.BYTE_ORDER));
+	}
+
+
+	// Returns false if any soft bypass weight differs from ProfileHMM.softBypassLogOdds(). Otherwise computes
+	// the key offsets, and a slack that bounds how far the closed form's rounding can reorder sources.
+	private boolean initClosedFormSoftBypasses(List<List<int[]>> softBypassesByDest)
+	{
+		softBypassKeyOffsets = newZeroBuffer(nCols);
+		for (List<int[]> bypasses: softBypassesByDest)
+			for (int[] bypass: bypasses)
+				softBypassKeyOffsets.put(bypass[0], ProfileHMM.softBypassLogOdds(nCols, bypass[0], nCols));
+
+		double maxSpread = 0;
+		double[] maxRelatives = new double[nCols];
+		Arrays.fill(maxRelatives, Double.NEGATIVE_INFINITY);
+		softBypassMaxRelatives = DoubleBuffer.wrap(maxRelatives);
+		for (int destCol=0; destCol<nCols; destCol++)
+		{
+			List<int[]> bypasses = softBypassesByDest.get(destCol);
+			int nExpected = 0;
+			for (int srcCol=0; srcCol<destCol-1; srcCol++)
+				if (softBypassKeyOffsets.get(srcCol) != ZERO)
+					nExpected++;
+			if (bypasses.size() != nExpected)
+				return false;
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int[] bypass: bypasses)
+			{
+				float logOdds = Float.intBitsToFloat(bypass[1]);
+				if (logOdds != ProfileHMM.softBypassLogOdds(nCols, bypass[0], destCol))
+					return false;
+				double relative = (double)logOdds - softBypassKeyOffsets.get(bypass[0]);
+				min = Math.min(min, relative);
+				max = Math.max(max, relative);
+			}
+			if (!bypasses.isEmpty())
+				maxSpread = Math.max(maxSpread, max - min);
+			softBypassMaxRelatives.put(destCol, max);
+		}
+		softBypassSlack = maxSpread + 1e-9;
+		return true;
+	}
+
+
+	private static float[] newZeroArray(int len)
+	{
+		float[] ret = new float[len];
+		Arrays.fill(ret, ZERO);
+		return ret;
+	}
+
+
+	private static FloatBuffer newZeroBuffer(int len)
+	{
+		return FloatBuffer.wrap(newZeroArray(len));
+	}
+
+
+	// Heap copy of a table, for engines such as VectorViterbi whose vector loads need arrays.
+	static float[] toArray(FloatBuffer table)
+	{
+		float[] ret = new float[table.capacity()];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = table.get(i);
+		return ret;
+	}
+
+
+	private static int countBypasses(List<List<int[]>> bypassesByDest)
+	{
+		return
+			bypassesByDest
+			.stream()
+			.mapToInt(List::size)
+			.sum();
+	}
+
+
+	private static void packBypasses(List<List<int[]>> bypassesByDest, IntBuffer starts, IntBuffer srcCols, FloatBuffer logOdds)
+	{
+		int n = 0;
+		for (int destCol=0; destCol<bypassesByDest.size(); destCol++)
+		{
+			starts.put(destCol, n);
+			for (int[] bypass: bypassesByDest.get(destCol))
+			{
+				srcCols.put(n, bypass[0]);
+				logOdds.put(n, Float.intBitsToFloat(bypass[1]));
+				n++;
+			}
+		}
+		starts.put(bypassesByDest.size(), n);
+	}
+
+
+	static float toFloat(LogOdds logOdds)
+	{
+		return logOdds.equals(LogOdds.getProbZeroInstance())  ?  ZERO  :  logOdds.get();
+	}
+
+
+	static int insertIndex(int col)			{ return 2 * col; }
+	static int matchIndex(int col)			{ return 2*col + 1; }
+	int deleteIndex(int col)				{ return nStates + col; }
+	public int getNCols()					{ return nCols; }
+	public int getNStates()					{ return nStates; }
+	public int getBandHalfWidth()			{ return bandHalfWidth; }
+	public String getStateName(int state)	{ return stateNames[state]; }
+
+
+	// Approximate heap footprint, for budgeting caches of models. Counts table payloads plus 16 bytes of header per
+	// table, and each state name as a String of 1-byte chars. The tables are nearly all of it, unless they're views of
+	// a ModelLibraryFile mapping, which isn't on the heap and isn't counted.
+	public long estimateBytes()
+	{
+		long n = 128;													// this object's header and fields
+		for (String name: stateNames)
+			n += 8 + 24 + 16 + name.length();
+		n += 16 + 8L*stateNames.length + 16 + 2L*alphabet.length;
+		for (Buffer table: new Buffer[] { charToSymbol, initialLogOdds, emissionLogOdds, toStopLogOdds,
+										  matchToInsertLogOdds, insertToSelfLogOdds, insertToMatchLogOdds, matchToMatchLogOdds,
+										  hardBypassStarts, hardBypassSrcCols, hardBypassLogOdds,
+										  softBypassStarts, softBypassSrcCols, softBypassLogOdds, softBypassKeyOffsets,
+										  softBypassMaxRelatives, deleteOpenLogOdds, deleteExtendLogOdds, deleteCloseLogOdds })
+		{
+			if (table != null  &&  !table.isDirect())
+				n += 16 + ((table instanceof DoubleBuffer)  ?  8L  :  4L) * table.capacity();
+		}
+		return n;
+	}
+
+
+	// True if the incubating Vector API module was resolved at startup ("--add-modules jdk.incubator.vector"). Probes
+	// for a class rather than asking ModuleLayer, so that this class still compiles for Java 8.
+	public static boolean isVectorApiAvailable()
+	{
+		try
+		{
+			Class.forName("jdk.incubator.vector.FloatVector");
+			return true;
+		}
+		catch (ClassNotFoundException | LinkageError x)
+		{
+			return false;
+		}
+	}
+
+
+	// Returns a VectorViterbi for this model if the Vector API is available, otherwise this model's scalar engine.
+	// VectorViterbi is loaded reflectively so that this class still links when the module is absent, and when
+	// VectorViterbi, which is in src-vector, wasn't compiled.
+	public LogOddsViterbiScorer newVectorScorer()
+	{
+		if (!isVectorApiAvailable())
+			return this;
+		try
+		{
+			Class<?> clazz = Class.forName("adverb.hmm.VectorViterbi");
+			return (LogOddsViterbiScorer)clazz.getConstructor(CompiledProfileHMM.class).newInstance(this);
+		}
+		catch (ReflectiveOperationException | LinkageError x)
+		{
+			return this;
+		}
+	}
+
+
+	// Returns -1 if ch isn't in the emission alphabet.
+	public int charToSymbol(char ch)
+	{
+		return (ch < charToSymbol.capacity())  ?  charToSymbol.get(ch)  :  -1;
+	}
+
+
+	// Gaps are ignored, as in ProfileHMM. Characters that the model can't emit map to -1.
+	public int[] encode(String sObservations)
+	{
+		int[] ret = new int[sObservations.length()];
+		int n = 0;
+		for (int i=0; i<sObservations.length(); i++)
+		{
+			char ch = sObservations.charAt(i);
+			if (ch != '-')
+				ret[n++] = charToSymbol(ch);
+		}
+		return Arrays.copyOf(ret, n);
+	}
+
+
+
+
+
+
+
+
+					///////////////////////////////////////////////////
+					//                                               //
+					//                    VITERBI                    //
+					//                                               //
+					///////////////////////////////////////////////////
+
+
+
+
+	public float logOddsViterbiScore(String sObservations) throws HMMException
+	{
+		return logOddsViterbiScore(encode(sObservations));
+	}
+
+
+	// Only 2 rows are allocated, and they are swapped at every observation.
+	public float logOddsViterbiScore(int[] symbols) throws HMMException
+	{
+		if (symbols.length == 0)
+			throw new HMMException("Empty input, no Viterbi path");
+
+		float[] prevRow = new float[rowLength];
+		float[] nextRow = new float[rowLength];
+		SoftBypassMax softMax = new SoftBypassMax();
+
+		// First row, from initial probabilities.
+		generateFirstRow(prevRow, symbols[0]);
+
+		// Subsequent rows.
+		for (int i=1; i<symbols.length; i++)
+		{
+			generateNextRow(prevRow, nextRow, symbols[i], softMax);
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+		}
+
+		return finalRowToScore(prevRow);
+	}
+
+
+	// Early abandon. Same as logOddsViterbiScore(symbols), unless the score is certainly below threshold. Then
+	// scoring stops early and some value below threshold is returned. After every row, the best cell plus
+	// stepBoundLogOdds of each remaining observation, plus the best transition to STOP, bounds every path's final
+	// score from above, because all of these are log probabilities. margin covers float rounding in the exact
+	// score, whose partial sums are all between threshold and 0 if it isn't below threshold.
+	public float logOddsViterbiScore(int[] symbols, float threshold) throws HMMException
+	{
+		if (threshold == ZERO)
+			return logOddsViterbiScore(symbols);
+		if (symbols.length == 0)
+			throw new HMMException("Empty input, no Viterbi path");
+
+		double[] suffixBounds = suffixBounds(symbols);
+		double margin = roundingMargin(symbols, threshold);
+
+		float[] prevRow = new float[rowLength];
+		float[] nextRow = new float[rowLength];
+		SoftBypassMax softMax = new SoftBypassMax();
+		generateFirstRow(prevRow, symbols[0]);
+		for (int i=1; i<=symbols.length; i++)
+		{
+			float rowBest = ZERO;
+			for (float score: prevRow)
+				rowBest = Math.max(rowBest, score);
+			double bound = rowBest + suffixBounds[i];
+			if (bound + margin < threshold)
+			{
+				if (bound == Double.NEGATIVE_INFINITY)
+					throw new HMMException("Input too short, no Viterbi path");
+				return Math.min((float)bound, Math.nextDown(threshold));
+			}
+			if (i == symbols.length)
+				break;
+			generateNextRow(prevRow, nextRow, symbols[i], softMax);
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+		}
+
+		return finalRowToScore(prevRow);
+	}
+
+
+	// By i, an upper bound on what observations i, i+1, ... can add to a path, plus the transition to STOP.
+	double[] suffixBounds(int[] symbols)
+	{
+		initStepBounds();
+		return suffixBounds(symbols, toStopBoundLogOdds);
+	}
+
+
+	// Same, but paths end with a term of at most endLogOdds instead of the transition to STOP.
+	double[] suffixBounds(int[] symbols, double endLogOdds)
+	{
+		initStepBounds();
+		double[] suffixBounds = new double[symbols.length+1];
+		suffixBounds[symbols.length] = endLogOdds;
+		for (int i=symbols.length-1; i>=0; i--)
+			suffixBounds[i] = suffixBounds[i+1] + ((symbols[i] < 0)  ?  Double.NEGATIVE_INFINITY  :  stepBoundLogOdds[symbols[i]]);
+		return suffixBounds;
+	}
+
+
+	// Upper bound on the transition to STOP, from any state.
+	double toStopBound()
+	{
+		initStepBounds();
+		return toStopBoundLogOdds;
+	}
+
+
+	// Bounds the rounding error of any path score that isn't below score.
+	static double roundingMargin(int[] symbols, float score)
+	{
+		return 2 * (symbols.length + 2) * Math.ulp(Math.abs(score));
+	}
+
+
+	private synchronized void initStepBounds()
+	{
+		if (stepBoundLogOdds != null)
+			return;
+
+		// Best incoming transition of each emitting state. A DELETE chain path into M_j ends with a close
+		// transition, and every other transition on it is <= 0. A soft bypass into M_j is at most its max relative
+		// weight plus the max key offset of its possible sources, columns 0 through j-2.
+		float[] maxIn = newZeroArray(nStates);
+		float maxKeyOffset = ZERO;								// over sources before col-1
+		for (int col=0; col<=nCols; col++)
+		{
+			if (softBypassStarts == null  &&  col >= 2)
+				maxKeyOffset = Math.max(maxKeyOffset, softBypassKeyOffsets.get(col-2));
+			maxIn[insertIndex(col)] = Math.max(matchToInsertLogOdds.get(col), insertToSelfLogOdds.get(col));
+			if (col == nCols)
+				break;
+			int match = matchIndex(col);
+			maxIn[match] = Math.max(insertToMatchLogOdds.get(col), matchToMatchLogOdds.get(col));
+			for (int n=hardBypassStarts.get(col); n<hardBypassStarts.get(col+1); n++)
+				maxIn[match] = Math.max(maxIn[match], hardBypassLogOdds.get(n));
+			if (softBypassStarts != null)
+			{
+				for (int n=softBypassStarts.get(col); n<softBypassStarts.get(col+1); n++)
+					maxIn[match] = Math.max(maxIn[match], softBypassLogOdds.get(n));
+			}
+			else if (softBypassMaxRelatives.get(col) != Double.NEGATIVE_INFINITY)
+				maxIn[match] = Math.max(maxIn[match], (float)(softBypassMaxRelatives.get(col) + maxKeyOffset + 1e-6));
+			if (hasDeleteChain)
+				maxIn[match] = Math.max(maxIn[match], deleteCloseLogOdds.get(col));
+		}
+
+		double[] stepBounds = new double[alphabet.length];
+		Arrays.fill(stepBounds, Double.NEGATIVE_INFINITY);
+		for (int sym=0; sym<alphabet.length; sym++)
+			for (int state=0; state<nStates; state++)
+				stepBounds[sym] = Math.max(stepBounds[sym], (double)maxIn[state] + emissionLogOdds.get(sym*nStates + state));
+		toStopBoundLogOdds = hasDeleteChain  ?  deleteToStopLogOdds  :  Double.NEGATIVE_INFINITY;
+		for (int state=0; state<nStates; state++)
+			toStopBoundLogOdds = Math.max(toStopBoundLogOdds, toStopLogOdds.get(state));
+		stepBoundLogOdds = stepBounds;
+	}
+
+
+	void generateFirstRow(float[] row, int symbol)
+	{
+		if (symbol < 0)
+		{
+			Arrays.fill(row, ZERO);
+			return;
+		}
+		int emissionOffset = symbol * nStates;
+		for (int state=0; state<nStates; state++)
+			row[state] = initialLogOdds.get(state) + emissionLogOdds.get(emissionOffset + state);
+		if (!hasDeleteChain)
+			return;
+
+		// A DELETE chain can run from START to before the first emission. It's silent, so it's in a virtual row
+		// before the first row.
+		float[] startRow = newZeroArray(rowLength);
+		fillDeleteChain(startRow, deleteOpenLogOdds.get(0));
+		for (int col=1; col<nCols; col++)
+		{
+			int match = matchIndex(col);
+			float viaDelete = startRow[deleteIndex(col-1)] + deleteCloseLogOdds.get(col);
+			row[match] = Math.max(initialLogOdds.get(match), viaDelete) + emissionLogOdds.get(emissionOffset + match);
+		}
+		fillDeleteChain(row, ZERO);
+	}
+
+
+	// Fills the DELETE slots of a row whose emitting states are done. D_0 can only be entered from START.
+	void fillDeleteChain(float[] row, float pDelete0)
+	{
+		row[deleteIndex(0)] = pDelete0;
+		for (int col=1; col<nCols; col++)
+		{
+			float fromMatch = row[matchIndex(col-1)] + deleteOpenLogOdds.get(col);
+			float fromDelete = row[deleteIndex(col-1)] + deleteExtendLogOdds.get(col);
+			row[deleteIndex(col)] = Math.max(fromMatch, fromDelete);
+		}
+	}
+
+
+	// Visits only the real predecessors of each state. Adding the emission after taking the max gives the same
+	// float as adding it to every candidate, because rounded addition is monotonic.
+	void generateNextRow(float[] prevRow, float[] nextRow, int symbol, SoftBypassMax softMax)
+	{
+		if (symbol < 0)
+		{
+			Arrays.fill(nextRow, ZERO);
+			return;
+		}
+		softMax.clear();
+		generateNextRowSegment(prevRow, nextRow, symbol, softMax, 0, nCols);
+		if (hasDeleteChain)
+			fillDeleteChain(nextRow, ZERO);
+	}
+
+
+	// Computes the INSERT and MATCH states of columns fromCol (inclusive) to toCol (exclusive), and I_n if toCol is
+	// nCols. Doesn't fill the DELETE chain. The caller must already have admitted the soft bypass sources before
+	// fromCol-2.
+	void generateNextRowSegment(float[] prevRow, float[] nextRow, int symbol, SoftBypassMax softMax, int fromCol, int toCol)
+	{
+		int emissionOffset = symbol * nStates;
+		for (int col=fromCol; col<toCol; col++)
+		{
+			// INSERT state.
+			int insert = insertIndex(col);
+			float best = prevRow[insert] + insertToSelfLogOdds.get(col);
+			if (col > 0)
+				best = Math.max(best, prevRow[matchIndex(col-1)] + matchToInsertLogOdds.get(col));
+			nextRow[insert] = best + emissionLogOdds.get(emissionOffset + insert);
+
+			// MATCH state.
+			int match = matchIndex(col);
+			best = prevRow[insert] + insertToMatchLogOdds.get(col);
+			if (col > 0)
+				best = Math.max(best, prevRow[matchIndex(col-1)] + matchToMatchLogOdds.get(col));
+			for (int n=hardBypassStarts.get(col); n<hardBypassStarts.get(col+1); n++)
+				best = Math.max(best, prevRow[matchIndex(hardBypassSrcCols.get(n))] + hardBypassLogOdds.get(n));
+			if (softBypassStarts != null)
+			{
+				for (int n=softBypassStarts.get(col); n<softBypassStarts.get(col+1); n++)
+					best = Math.max(best, prevRow[matchIndex(softBypassSrcCols.get(n))] + softBypassLogOdds.get(n));
+			}
+			else
+			{
+				if (col >= 2  &&  softBypassKeyOffsets.get(col-2) != ZERO)
+					softMax.admit(col-2, prevRow[matchIndex(col-2)], softBypassKeyOffsets.get(col-2));
+				if (softMax.mightExceed(col, best))
+					best = Math.max(best, softMax.best(prevRow, col));
+			}
+			if (hasDeleteChain  &&  col > 0)
+				best = Math.max(best, prevRow[deleteIndex(col-1)] + deleteCloseLogOdds.get(col));
+			nextRow[match] = best + emissionLogOdds.get(emissionOffset + match);
+		}
+
+		// Last INSERT state.
+		if (toCol == nCols)
+		{
+			int insert = insertIndex(nCols);
+			float best = Math.max(prevRow[insert] + insertToSelfLogOdds.get(nCols),
+								  prevRow[matchIndex(nCols-1)] + matchToInsertLogOdds.get(nCols));
+			nextRow[insert] = best + emissionLogOdds.get(emissionOffset + insert);
+		}
+	}
+
+
+	// Running maximum over the soft bypass sources admitted so far in one row. Sources are admitted in column
+	// order, so a source that falls more than softBypassSlack below the best key can never win again.
+	class SoftBypassMax
+	{
+		private int[]		srcCols		= new int[nCols];
+		private double[]	keys		= new double[nCols];
+		private int			size;
+		private double		maxKey;
+		private int			bestSrcCol;				// from most recent call to best()
+
+		void clear()
+		{
+			size = 0;
+			maxKey = Double.NEGATIVE_INFINITY;
+		}
+
+		void admit(int srcCol, float prevScore, float keyOffset)
+		{
+			if (prevScore == ZERO)
+				return;
+			double key = (double)prevScore + keyOffset;
+			if (key > maxKey)
+			{
+				maxKey = key;
+				int nKept = 0;
+				for (int i=0; i<size; i++)
+				{
+					if (keys[i] >= maxKey - softBypassSlack)
+					{
+						srcCols[nKept] = srcCols[i];
+						keys[nKept] = keys[i];
+						nKept++;
+					}
+				}
+				size = nKept;
+			}
+			else if (key < maxKey - softBypassSlack)
+				return;
+			srcCols[size] = srcCol;
+			keys[size] = key;
+			size++;
+		}
+
+		// False if no candidate's prevRow[M_c] + w(c, destCol) can be greater than floor. Candidates are
+		// key + (w(c, destCol) - w(c, STOP)) without rounding, and keys and relative weights are exact doubles,
+		// so the margin only needs to cover rounding in this sum. Saves computing weights, which takes a log10,
+		// when another predecessor is already better.
+		boolean mightExceed(int destCol, float floor)
+		{
+			return maxKey + softBypassMaxRelatives.get(destCol) + 1e-9 > floor;
+		}
+
+		// Exact max over candidates of prevRow[M_c] + w(c, destCol).
+		float best(float[] prevRow, int destCol)
+		{
+			return best(prevRow, destCol, 1, 0, null);
+		}
+
+		// Same, for rows that interleave several queries' states: M_c of the query is at matchIndex(c)*stride + lane.
+		// Weights come from memo, if it isn't null.
+		float best(float[] prevRow, int destCol, int stride, int lane, SoftBypassLogOddsMemo memo)
+		{
+			float best = ZERO;
+			bestSrcCol = -1;
+			for (int i=0; i<size; i++)
+			{
+				float logOdds = (memo == null)  ?
+					ProfileHMM.softBypassLogOdds(nCols, srcCols[i], destCol)  :
+					memo.get(srcCols[i], destCol);
+				float score = prevRow[matchIndex(srcCols[i])*stride + lane] + logOdds;
+				if (score > best)
+				{
+					best = score;
+					bestSrcCol = srcCols[i];
+				}
+			}
+			return best;
+		}
+
+		int getBestSrcCol()
+		{
+			return bestSrcCol;
+		}
+	}  // SoftBypassMax
+
+
+	// Soft bypass weights into the most recent destination column, for callers that look up the same source
+	// more than once per column. Computing a weight takes a log10.
+	class SoftBypassLogOddsMemo
+	{
+		private float[]		logOdds		= new float[nCols];
+		private int[]		destCols	= new int[nCols];
+
+		SoftBypassLogOddsMemo()
+		{
+			Arrays.fill(destCols, -1);
+		}
+
+		float get(int srcCol, int destCol)
+		{
+			if (destCols[srcCol] != destCol)
+			{
+				logOdds[srcCol] = ProfileHMM.softBypassLogOdds(nCols, srcCol, destCol);
+				destCols[srcCol] = destCol;
+			}
+			return logOdds[srcCol];
+		}
+	}  // SoftBypassLogOddsMemo
+
+
+	SoftBypassMax newSoftBypassMax()
+	{
+		return new SoftBypassMax();
+	}
+
+
+	SoftBypassLogOddsMemo newSoftBypassLogOddsMemo()
+	{
+		return new SoftBypassLogOddsMemo();
+	}
+
+
+	float finalRowToScore(float[] finalRow) throws HMMException
+	{
+		float best = ZERO;
+		for (int state=0; state<nStates; state++)
+		{
+			float score = finalRow[state] + toStopLogOdds.get(state);
+			if (score > best)
+				best = score;
+		}
+		if (hasDeleteChain)
+			best = Math.max(best, finalRow[deleteIndex(nCols-1)] + deleteToStopLogOdds);
+		if (best == ZERO)
+			throw new HMMException("Input too short, no Viterbi path");
+		return best;
+	}
+
+
+	public String toString()
+	{
+		return "CompiledProfileHMM: " + nCols + " columns, " + nStates + " emitting states, " +
+			(hasDeleteChain  ?  nCols + " silent DELETE states, "  :  "") +
+			hardBypassSrcCols.capacity() + " hard bypasses, " + 
+			((softBypassStarts == null)  ?  "closed-form soft bypasses"  :  softBypassSrcCols.capacity() + " soft bypasses");
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// Builds FOLDED and SILENT_CHAIN models from the same training alignment, and scores every training sequence
+// against both. The chained model only approximates the folded model's deletion lengths, so this shows how far
+// its scores drift.
+//
+
+
+public class DeleteModeReport
+{
+	private ProfileHMM				foldedHmm;
+	private ProfileHMM				chainedHmm;
+	private List<String>			queries = new ArrayList<>();
+	private float[]					foldedScores;
+	private float[]					chainedScores;
+	private long					foldedNanos;
+	private long					chainedNanos;
+
+
+	public DeleteModeReport(Alignment alignment) throws HMMException
+	{
+		foldedHmm = new ProfileHMM(alignment, ProfileHMM.DeleteMode.FOLDED);
+		chainedHmm = new ProfileHMM(alignment, ProfileHMM.DeleteMode.SILENT_CHAIN);
+		for (String row: alignment)
+			queries.add(row.replace("-", ""));
+
+		foldedScores = new float[queries.size()];
+		chainedScores = new float[queries.size()];
+		long t0 = System.nanoTime();
+		for (int i=0; i<queries.size(); i++)
+			foldedScores[i] = foldedHmm.compiledLogOddsViterbiScore(queries.get(i));
+		long t1 = System.nanoTime();
+		for (int i=0; i<queries.size(); i++)
+			chainedScores[i] = chainedHmm.compiledLogOddsViterbiScore(queries.get(i));
+		long t2 = System.nanoTime();
+		foldedNanos = t1 - t0;
+		chainedNanos = t2 - t1;
+	}
+
+
+	public float[] getFoldedScores()		{ return foldedScores; }
+	public float[] getChainedScores()		{ return chainedScores; }
+
+
+	public String toString()
+	{
+		String s = "Delete mode report: " + foldedHmm.getNCols() + " columns, " + queries.size() + " training sequences";
+		s += "\n  FOLDED:       " + foldedHmm.getNTransitions() + " transitions, " + foldedNanos/1000000 + " msec scoring";
+		s += "\n  SILENT_CHAIN: " + chainedHmm.getNTransitions() + " transitions, " + chainedNanos/1000000 + " msec scoring";
+		s += "\n\n  Seq\tFolded\tChained\tDelta";
+		double sumDelta = 0;
+		double sumAbsDelta = 0;
+		double maxAbsDelta = 0;
+		for (int i=0; i<queries.size(); i++)
+		{
+			double delta = chainedScores[i] - foldedScores[i];
+			sumDelta += delta;
+			sumAbsDelta += Math.abs(delta);
+			maxAbsDelta = Math.max(maxAbsDelta, Math.abs(delta));
+			s += "\n  " + i + "\t" + foldedScores[i] + "\t" + chainedScores[i] + "\t" + (float)delta;
+		}
+		s += "\n\n  Mean delta = " + (float)(sumDelta/queries.size());
+		s += "\n  Mean |delta| = " + (float)(sumAbsDelta/queries.size());
+		s += "\n  Max |delta| = " + (float)maxAbsDelta;
+		return s;
+	}
+
+
+	static void sop(Object x) 		{ System.out.println(x); }
+
+
+	public static void main(String[] args) throws IOException, HMMException
+	{
+		if (args.length != 1)
+		{
+			sop("Usage: java -cp Adverb_1.0.jar adverb.hmm.DeleteModeReport aligned-training-fasta");
+			System.exit(1);
+		}
+
+		sop(new DeleteModeReport(new Alignment(new File(args[0]))));
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+
+//
+// Result of FragmentViterbi: the fragment score, and the first and last model columns that the best path passes
+// through. An INSERT state I_j counts as column j. The score is exact if the whole model was computed, otherwise
+// it's the best path inside the final band.
+//
+
+
+public class FragmentReport
+{
+	private float				score;
+	private int					firstCol;
+	private int					lastCol;
+	private int					bandHalfWidth;		// -1 means full DP
+
+
+	FragmentReport(float score, int firstCol, int lastCol, int bandHalfWidth)
+	{
+		this.score = score;
+		this.firstCol = firstCol;
+		this.lastCol = lastCol;
+		this.bandHalfWidth = bandHalfWidth;
+	}
+
+
+	public float getScore()					{ return score; }
+	public int getFirstCol()				{ return firstCol; }
+	public int getLastCol()					{ return lastCol; }
+	public int getBandHalfWidth()			{ return bandHalfWidth; }
+	public boolean isExact()				{ return bandHalfWidth < 0; }
+
+
+	public String toString()
+	{
+		return "Fragment log odds = " + score + ", columns " + firstCol + "-" + lastCol +
+			((bandHalfWidth < 0)  ?  ", full DP"  :  ", band half-width " + bandHalfWidth + ", approximate");
+	}
+}
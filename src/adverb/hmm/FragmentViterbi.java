@@ -0,0 +1,342 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Glocal log-odds Viterbi for query fragments, e.g. mini-barcodes that cover only part of a model. The whole query
+// must be aligned, but the path enters the model at any MATCH state and leaves from any MATCH state, with uniform
+// probability 1/nCols each, instead of through the model's START and STOP transitions. Entry and exit are one term
+// per MATCH state in the first and final rows, so the unaligned ends of the model don't have to be skipped by soft
+// bypasses.
+//
+// The fragment's diagonal is found by the same k-mer voting as BandedViterbi, and only columns within bandHalfWidth
+// of it are computed, so the cost is proportional to the fragment's length, not the model's. As in BandedViterbi,
+// the band is widened if the best path touches its edge, and the whole model is computed if the band reaches it or
+// if the voting finds no diagonal. A banded score is the best path inside the band, so it's approximate: it's never
+// above the exact glocal score, but misses a better path that enters the model far from the diagonal, or jumps over
+// the band's edge by a bypass or DELETE chain. FragmentReport.isExact() says which. Every cell also records the
+// column where its path entered the model, so the report gives the model columns that the fragment covers.
+//
+
+
+public class FragmentViterbi
+{
+	private final static float		ZERO				= CompiledProfileHMM.ZERO;
+
+	private CompiledProfileHMM		model;
+	private int						nCols;
+	private int						nStates;
+	private int						rowLength;
+	private float					entryLogOdds;				// entry to any MATCH state
+	private float					exitLogOdds;				// exit from any MATCH state
+	private BandedViterbi			locator;
+	private int						nPasses;					// for most recent query
+
+
+	public FragmentViterbi(CompiledProfileHMM model)
+	{
+		this.model = model;
+		nCols = model.nCols;
+		nStates = model.nStates;
+		rowLength = model.rowLength;
+		entryLogOdds = (float)-Math.log10(nCols);
+		exitLogOdds = entryLogOdds;
+		locator = new BandedViterbi(model);
+	}
+
+
+	public int getNPasses()					{ return nPasses; }
+
+
+	public FragmentReport viterbi(String sObservations, int bandHalfWidth) throws HMMException
+	{
+		return viterbi(model.encode(sObservations), bandHalfWidth);
+	}
+
+
+	// Widens the band until the best path stays inside it, or until the band covers the whole model, and then the
+	// whole model is computed.
+	public FragmentReport viterbi(int[] symbols, int bandHalfWidth) throws HMMException
+	{
+		if (symbols.length == 0)
+			throw new HMMException("Empty input, no Viterbi path");
+		if (Arrays.stream(symbols).anyMatch(sym -> sym < 0))
+			throw new HMMException("Input too short, no Viterbi path");
+
+		nPasses = 0;
+		int offset = locator.voteForOffset(symbols);
+		for (int halfWidth=Math.max(1, bandHalfWidth); offset != BandedViterbi.NO_OFFSET  &&  halfWidth < nCols; halfWidth*=2)
+		{
+			nPasses++;
+			FragmentReport report = pass(symbols, offset, halfWidth);
+			if (report != null)
+				return report;
+		}
+
+		nPasses++;
+		FragmentReport report = pass(symbols, 0, -1);
+		if (report == null)
+			throw new HMMException("Input too short, no Viterbi path");
+		return report;
+	}
+
+
+	// Negative halfWidth means the whole model.
+	private int bandLo(int i, int offset, int halfWidth)
+	{
+		return (halfWidth < 0)  ?  0  :  Math.max(0, Math.min(nCols, i + offset) - halfWidth);
+	}
+
+
+	private int bandHi(int i, int offset, int halfWidth)
+	{
+		return (halfWidth < 0)  ?  nCols  :  Math.min(nCols, Math.max(0, i + offset) + halfWidth);
+	}
+
+
+	private boolean isEdge(int col, int lo, int hi)
+	{
+		return (col == lo  &&  lo > 0)  ||  (col == hi  &&  hi < nCols);
+	}
+
+
+	// Returns null if there's no path inside the band, or if the best path touches the edge of the band.
+	private FragmentReport pass(int[] symbols, int offset, int halfWidth)
+	{
+		float[] prevRow = new float[rowLength];
+		float[] nextRow = new float[rowLength];
+		boolean[] prevEdge = new boolean[rowLength];
+		boolean[] nextEdge = new boolean[rowLength];
+		int[] prevStart = new int[rowLength];
+		int[] nextStart = new int[rowLength];
+		Arrays.fill(prevRow, ZERO);
+		Arrays.fill(nextRow, ZERO);
+		CompiledProfileHMM.SoftBypassMax softMax = model.newSoftBypassMax();
+
+		// First row.
+		int prevLo = bandLo(0, offset, halfWidth);
+		int prevHi = bandHi(0, offset, halfWidth);
+		generateFirstRow(prevRow, prevEdge, prevStart, symbols[0], prevLo, prevHi);
+		int nextLo = 0;
+		int nextHi = -1;										// nextRow is still clear
+
+		// Subsequent rows.
+		for (int i=1; i<symbols.length; i++)
+		{
+			clearBand(nextRow, nextLo, nextHi);
+			nextLo = bandLo(i, offset, halfWidth);
+			nextHi = bandHi(i, offset, halfWidth);
+			generateNextRow(prevRow, prevEdge, prevStart, prevLo, prevHi, nextRow, nextEdge, nextStart, nextLo, nextHi,
+							symbols[i], softMax);
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+			boolean[] swapEdge = prevEdge;
+			prevEdge = nextEdge;
+			nextEdge = swapEdge;
+			int[] swapStart = prevStart;
+			prevStart = nextStart;
+			nextStart = swapStart;
+			int swapLo = prevLo;
+			prevLo = nextLo;
+			nextLo = swapLo;
+			int swapHi = prevHi;
+			prevHi = nextHi;
+			nextHi = swapHi;
+		}
+
+		// Exit from a MATCH state.
+		float best = ZERO;
+		int bestCol = -1;
+		for (int col=prevLo; col<=Math.min(prevHi, nCols-1); col++)
+		{
+			float score = prevRow[CompiledProfileHMM.matchIndex(col)] + exitLogOdds;
+			if (score > best)
+			{
+				best = score;
+				bestCol = col;
+			}
+		}
+		if (best == ZERO  ||  prevEdge[CompiledProfileHMM.matchIndex(bestCol)])
+			return null;
+		return new FragmentReport(best, prevStart[CompiledProfileHMM.matchIndex(bestCol)], bestCol, halfWidth);
+	}
+
+
+	// Resets the cells of a band to probability zero.
+	private void clearBand(float[] row, int lo, int hi)
+	{
+		for (int col=lo; col<=hi; col++)
+		{
+			row[CompiledProfileHMM.insertIndex(col)] = ZERO;
+			if (col == nCols)
+				break;
+			row[CompiledProfileHMM.matchIndex(col)] = ZERO;
+			if (model.hasDeleteChain)
+				row[model.deleteIndex(col)] = ZERO;
+		}
+	}
+
+
+	// Every path enters at a MATCH state of the first row.
+	private void generateFirstRow(float[] row, boolean[] edge, int[] start, int symbol, int lo, int hi)
+	{
+		int emissionOffset = symbol * nStates;
+
+		for (int col=lo; col<=hi; col++)
+		{
+			int insert = CompiledProfileHMM.insertIndex(col);
+			row[insert] = ZERO;
+			if (col == nCols)
+				break;
+			int match = CompiledProfileHMM.matchIndex(col);
+			row[match] = entryLogOdds + model.emissionLogOdds.get(emissionOffset + match);
+			edge[match] = isEdge(col, lo, hi);
+			start[match] = col;
+		}
+
+		if (model.hasDeleteChain)
+			fillDeleteChain(row, edge, start, lo, hi);
+	}
+
+
+	// Same arithmetic as BandedViterbi's, with every cell also inheriting its best predecessor's start column.
+	private void generateNextRow(float[] prevRow, boolean[] prevEdge, int[] prevStart, int prevLo, int prevHi,
+								 float[] nextRow, boolean[] nextEdge, int[] nextStart, int lo, int hi,
+								 int symbol, CompiledProfileHMM.SoftBypassMax softMax)
+	{
+		int emissionOffset = symbol * nStates;
+		softMax.clear();
+		int nextSoftSrcCol = prevLo;
+
+		for (int col=lo; col<=hi; col++)
+		{
+			boolean isEdge = isEdge(col, lo, hi);
+
+			// INSERT state.
+			int insert = CompiledProfileHMM.insertIndex(col);
+			float best = prevRow[insert] + model.insertToSelfLogOdds.get(col);
+			int bestPrev = insert;
+			if (col > 0)
+			{
+				int prevMatch = CompiledProfileHMM.matchIndex(col-1);
+				float score = prevRow[prevMatch] + model.matchToInsertLogOdds.get(col);
+				if (score > best)
+				{
+					best = score;
+					bestPrev = prevMatch;
+				}
+			}
+			nextRow[insert] = best + model.emissionLogOdds.get(emissionOffset + insert);
+			nextEdge[insert] = isEdge  ||  prevEdge[bestPrev];
+			nextStart[insert] = prevStart[bestPrev];
+			if (col == nCols)
+				break;
+
+			// MATCH state.
+			int match = CompiledProfileHMM.matchIndex(col);
+			best = prevRow[insert] + model.insertToMatchLogOdds.get(col);
+			bestPrev = insert;
+			if (col > 0)
+			{
+				int prevMatch = CompiledProfileHMM.matchIndex(col-1);
+				float score = prevRow[prevMatch] + model.matchToMatchLogOdds.get(col);
+				if (score > best)
+				{
+					best = score;
+					bestPrev = prevMatch;
+				}
+			}
+			for (int n=model.hardBypassStarts.get(col); n<model.hardBypassStarts.get(col+1); n++)
+			{
+				int src = CompiledProfileHMM.matchIndex(model.hardBypassSrcCols.get(n));
+				float score = prevRow[src] + model.hardBypassLogOdds.get(n);
+				if (score > best)
+				{
+					best = score;
+					bestPrev = src;
+				}
+			}
+			if (model.softBypassStarts != null)
+			{
+				for (int n=model.softBypassStarts.get(col); n<model.softBypassStarts.get(col+1); n++)
+				{
+					int src = CompiledProfileHMM.matchIndex(model.softBypassSrcCols.get(n));
+					float score = prevRow[src] + model.softBypassLogOdds.get(n);
+					if (score > best)
+					{
+						best = score;
+						bestPrev = src;
+					}
+				}
+			}
+			else
+			{
+				for (; nextSoftSrcCol<=Math.min(col-2, prevHi); nextSoftSrcCol++)
+					if (model.softBypassKeyOffsets.get(nextSoftSrcCol) != ZERO)
+						softMax.admit(nextSoftSrcCol, prevRow[CompiledProfileHMM.matchIndex(nextSoftSrcCol)], model.softBypassKeyOffsets.get(nextSoftSrcCol));
+				float score = softMax.mightExceed(col, best)  ?  softMax.best(prevRow, col)  :  ZERO;
+				if (score > best)
+				{
+					best = score;
+					bestPrev = CompiledProfileHMM.matchIndex(softMax.getBestSrcCol());
+				}
+			}
+			if (model.hasDeleteChain  &&  col > 0)
+			{
+				int prevDelete = model.deleteIndex(col-1);
+				float score = prevRow[prevDelete] + model.deleteCloseLogOdds.get(col);
+				if (score > best)
+				{
+					best = score;
+					bestPrev = prevDelete;
+				}
+			}
+			nextRow[match] = best + model.emissionLogOdds.get(emissionOffset + match);
+			nextEdge[match] = isEdge  ||  prevEdge[bestPrev];
+			nextStart[match] = prevStart[bestPrev];
+		}
+
+		if (model.hasDeleteChain)
+			fillDeleteChain(nextRow, nextEdge, nextStart, lo, hi);
+	}
+
+
+	private void fillDeleteChain(float[] row, boolean[] edge, int[] start, int lo, int hi)
+	{
+		for (int col=lo; col<=Math.min(hi, nCols-1); col++)
+		{
+			int delete = model.deleteIndex(col);
+			if (col == 0)
+			{
+				row[delete] = ZERO;
+				continue;
+			}
+			int prevMatch = CompiledProfileHMM.matchIndex(col-1);
+			int prevDelete = model.deleteIndex(col-1);
+			float fromMatch = row[prevMatch] + model.deleteOpenLogOdds.get(col);
+			float fromDelete = row[prevDelete] + model.deleteExtendLogOdds.get(col);
+			row[delete] = Math.max(fromMatch, fromDelete);
+			int bestPrev = (fromMatch >= fromDelete)  ?  prevMatch  :  prevDelete;
+			edge[delete] = isEdge(col, lo, hi)  ||  edge[bestPrev];
+			start[delete] = start[bestPrev];
+		}
+	}
+}
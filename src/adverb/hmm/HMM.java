@@ -34,6 +34,7 @@ public class HMM<S, E> implements java.io.Serializable
 	protected LogOddsDualKeyDiscreteProbabilityDistribution<S, E> 
 															logOddsEmissionProbs;
 	protected boolean										verboseEvaluation;
+	private transient IndexedHMM<S, E>						indexed;			// built on demand
 	
 	
 	public HMM(DiscreteProbabilityDistribution<S> initialStateProbs, 
@@ -59,6 +60,9 @@ public class HMM<S, E> implements java.io.Serializable
 		this.initialStateProbs = new DiscreteProbabilityDistribution<>(src.initialStateProbs);
 		this.transitionProbs = new DualKeyProbabilityDistribution<>(src.transitionProbs);
 		this.emissionProbs = new DualKeyProbabilityDistribution<>(src.emissionProbs);
+		logOddsInitialProbs = new LogOddsDiscreteProbabilityDistribution<>(initialStateProbs);
+		logOddsTransitionProbs = new LogOddsDualKeyDiscreteProbabilityDistribution<>(transitionProbs);
+		logOddsEmissionProbs = new LogOddsDualKeyDiscreteProbabilityDistribution<>(emissionProbs);
 	}
 	
 	
@@ -88,6 +92,7 @@ public class HMM<S, E> implements java.io.Serializable
 	protected void setInitialDistribution(DiscreteProbabilityDistribution<S> initialStateProbs) 
 	{
 		this.initialStateProbs = initialStateProbs; 
+		indexed = null;
 	}
 	
 	
@@ -95,6 +100,7 @@ public class HMM<S, E> implements java.io.Serializable
 	protected void setLogOddsInitialDistribution(DiscreteProbabilityDistribution<S> initialStateProbs) 
 	{
 		this.logOddsInitialProbs = new LogOddsDiscreteProbabilityDistribution<S>(initialStateProbs);
+		indexed = null;
 	}
 	
 
@@ -102,6 +108,7 @@ public class HMM<S, E> implements java.io.Serializable
 	protected void setTransitionProbs(DualKeyProbabilityDistribution<S, S> transitionProbs)
 	{
 		this.transitionProbs = transitionProbs;
+		indexed = null;
 	}
 	
 
@@ -109,6 +116,7 @@ public class HMM<S, E> implements java.io.Serializable
 	protected void setLogOddsTransitionProbs(DualKeyProbabilityDistribution<S, S> transitionProbs)
 	{
 		this.logOddsTransitionProbs = new LogOddsDualKeyDiscreteProbabilityDistribution<>(transitionProbs);
+		indexed = null;
 	}
 	
 	
@@ -116,6 +124,7 @@ public class HMM<S, E> implements java.io.Serializable
 	protected void setEmissionProbs(DualKeyProbabilityDistribution<S, E> emissionProbs)
 	{
 		this.emissionProbs = emissionProbs;
+		indexed = null;
 	}
 	
 	
@@ -123,6 +132,7 @@ public class HMM<S, E> implements java.io.Serializable
 	protected void setLogOddsEmissionProbs(DualKeyProbabilityDistribution<S, E> emissionProbs)
 	{
 		this.logOddsEmissionProbs = new LogOddsDualKeyDiscreteProbabilityDistribution<>(emissionProbs);
+		indexed = null;
 	}
 	
 	
@@ -352,75 +362,30 @@ public class HMM<S, E> implements java.io.Serializable
 	*******/
 	
 	
-	// Computes most probable path and its probability, using the log-odds domain.
+	// Computes most probable path and its probability, using the log-odds domain. The work is done by
+	// the indexed form of this model. If no path can emit the observations, the report's probability is zero and
+	// its path is null.
 	public ViterbiReport<S> viterbiWithLogOdds(List<E> observations) throws HMMException
 	{
-		assert observations.size() > 1;
-		
-		Stack<LogOddsDPStage<S>> stages = new Stack<>(); 
-		
-		// Clone the observations list; the clone will be destroyed.
-		observations = new ArrayList<>(observations);
-		
-		// First stage, from initial probabilities.
-		LogOddsDPStage<S> firstStage = new LogOddsDPStage<>();
-		E firstObservation = observations.remove(0);
-		for (S state: initialStateProbs.keySet())
-		{
-			LogOdds probOfState = logOddsInitialProbs.get(state);
-			LogOdds probOfEmission = logOddsEmissionProbs.get(state, firstObservation);
-			LogOdds prob = LogOdds.plus(probOfState, probOfEmission);
-			LogOddsDPCell<S> cell = new LogOddsDPCell<>();
-			cell.put(null, prob);  // null as prev state means START state
-			cell.setProbabilityToBest();
-			firstStage.put(state, cell);
-		}
-		stages.push(firstStage);
-		
-		// Subsequent stages.
-		int n = 0;
-		for (E observation: observations)
-		{
-			if (verboseEvaluation)
-				sop("Viterbi(log) at stage " + ++n + " of " + observations.size());
-			LogOddsDPStage<S> prevStage = stages.peek();
-			LogOddsDPStage<S> nextStage = generateNextViterbiStageWithLogOdds(prevStage, observation);
-			stages.push(nextStage);
-		}
-		
-		// Find best final state.
-		LogOddsDPStage<S> finalStage = stages.peek();	
-		LogOddsDPCell<S> bestFinalCell = null;	
-		S bestFinalState = null;
-		LogOdds pBestFinalState = null;
-		for (S state: finalStage.keySet())
-		{
-			LogOddsDPCell<S> cell = finalStage.get(state);
-			LogOdds p = cell.getProbability();
-			if (p.compareTo(pBestFinalState) > 0)
-			{
-				bestFinalCell = cell;
-				bestFinalState = state;
-				pBestFinalState = p;
-			}
-		}
-		assert bestFinalCell != null  :  "No best final cell";
-		
-		// Collect best states, tracing back from final.
-		List<S> stateTraceback = new ArrayList<>();
-		stateTraceback.add(bestFinalState);
-		LogOddsDPCell<S> tracebackCell = bestFinalCell;
-		stages.pop();
-		while (!stages.isEmpty())
-		{
-			S tracebackState = tracebackCell.getBestPrevState();
-			stateTraceback.add(0, tracebackState);
-			LogOddsDPStage<S> tracebackStage = stages.pop();
-			tracebackCell = tracebackStage.get(tracebackState);
-		}
-		
-		return new ViterbiReport<>(pBestFinalState, stateTraceback);
-	}	
+		return index().viterbiWithLogOdds(observations);
+	}
+	
+	
+	// Doesn't compute the Viterbi path.
+	public float logOddsViterbiScore(List<E> observations) throws HMMException
+	{
+		return index().logOddsViterbiScore(observations);
+	}
+	
+	
+	// The indexed form is built on first call and then reused.
+	public synchronized IndexedHMM<S, E> index()
+	{
+		if (indexed == null)
+			indexed = new IndexedHMM<>(this);
+		return indexed;
+	}
+	
 	
 	/*******
 	private DPStage<S> generateNextViterbiStage(DPStage<S> prevStage, E observation)
@@ -450,31 +415,6 @@ public class HMM<S, E> implements java.io.Serializable
 	**********/
 	
 	
-	private LogOddsDPStage<S> generateNextViterbiStageWithLogOdds(LogOddsDPStage<S> prevStage, E observation)
-	{
-		LogOddsDPStage<S> nextStage = new LogOddsDPStage<S>();
-		
-		for (S stateInNextStage: initialStateProbs.keySet())
-		{
-			LogOddsDPCell<S> cellInNextStage = new LogOddsDPCell<>();
-			nextStage.put(stateInNextStage, cellInNextStage);
-			LogOdds pObservation = logOddsEmissionProbs.get(stateInNextStage, observation);
-			for (S stateInPrevStage: prevStage.keySet())
-			{
-				LogOdds pPrevState = prevStage.get(stateInPrevStage).getProbability();
-				LogOdds pTransition = logOddsTransitionProbs.get(stateInPrevStage, stateInNextStage);
-				assert pTransition != null  :  stateInPrevStage + " ?? " + stateInNextStage;
-				LogOdds pPrevAndTransitionAndObservation = LogOdds.plus(pPrevState, pTransition, pObservation);
-				cellInNextStage.put(stateInPrevStage, pPrevAndTransitionAndObservation);
-			}
-			cellInNextStage.setProbabilityToBest();
-		}
-		
-		return nextStage;
-	}
-	
-	
-	
 	
 
 					
@@ -0,0 +1,306 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Int-indexed form of a generic HMM. States are numbered in the iteration order of the HMM's initial distribution,
+// which is the order that HMM.viterbiWithLogOdds() has always used, and emissions are numbered in order of first
+// appearance. All probabilities are log10 floats copied from the HMM's LogOdds tables, with probability zero as
+// Float.NEGATIVE_INFINITY, so Viterbi runs without allocating in its inner loop. Candidates are summed and compared
+// in the same order as the original map-based Viterbi, so scores and paths are identical. Also as before, if no
+// path can emit the input, viterbiWithLogOdds() returns a probability-zero report rather than throwing; its path is
+// null. logOddsViterbiScore() throws instead, like every other LogOddsViterbiScorer.
+//
+// Transitions are stored by destination state, as a compressed list of predecessors. Zero-probability transitions
+// are omitted because they can never be on a path.
+//
+
+
+public class IndexedHMM<S, E> implements LogOddsViterbiScorer, java.io.Serializable
+{
+	private static final long 		serialVersionUID = -3178815740513625102L;
+
+	final static float				ZERO					= Float.NEGATIVE_INFINITY;
+
+	private List<S>					states;
+	private Map<S, Integer>			stateToIndex;
+	private List<E>					emissions;
+	private Map<E, Integer>			emissionToIndex;
+	private int						nStates;
+	private float[]					initialLogOdds;			// by state
+	private float[]					emissionLogOdds;		// [emission*nStates + state]
+	private int[]					predecessorStarts;		// by dest state, length nStates+1
+	private int[]					predecessors;
+	private float[]					predecessorLogOdds;
+
+
+	public IndexedHMM(HMM<S, E> hmm)
+	{
+		// States and emissions.
+		states = new ArrayList<>(hmm.initialStateProbs.keySet());
+		nStates = states.size();
+		assert nStates > 0  :  "No states";
+		stateToIndex = new HashMap<>();
+		for (int i=0; i<nStates; i++)
+			stateToIndex.put(states.get(i), i);
+		emissions = new ArrayList<>();
+		emissionToIndex = new HashMap<>();
+		for (DiscreteProbabilityDistribution<E> dist: hmm.emissionProbs.values())
+		{
+			for (E emission: dist.keySet())
+			{
+				if (!emissionToIndex.containsKey(emission))
+				{
+					emissionToIndex.put(emission, emissions.size());
+					emissions.add(emission);
+				}
+			}
+		}
+
+		// Initial and emission log probs.
+		initialLogOdds = new float[nStates];
+		emissionLogOdds = new float[emissions.size() * nStates];
+		Arrays.fill(emissionLogOdds, ZERO);
+		for (int state=0; state<nStates; state++)
+		{
+			S s = states.get(state);
+			initialLogOdds[state] = toFloat(hmm.logOddsInitialProbs.get(s));
+			LogOddsDiscreteProbabilityDistribution<E> dist = hmm.logOddsEmissionProbs.get(s);
+			if (dist == null)
+				continue;
+			for (E emission: dist.keySet())
+				emissionLogOdds[emissionToIndex.get(emission)*nStates + state] = toFloat(dist.get(emission));
+		}
+
+		// Predecessors of each state, in state order.
+		predecessorStarts = new int[nStates+1];
+		List<Integer> preds = new ArrayList<>();
+		List<Float> predLogOdds = new ArrayList<>();
+		for (int dest=0; dest<nStates; dest++)
+		{
+			predecessorStarts[dest] = preds.size();
+			for (int src=0; src<nStates; src++)
+			{
+				float logOdds = toFloat(hmm.logOddsTransitionProbs.get(states.get(src), states.get(dest)));
+				if (logOdds == ZERO)
+					continue;
+				preds.add(src);
+				predLogOdds.add(logOdds);
+			}
+		}
+		predecessorStarts[nStates] = preds.size();
+		predecessors = new int[preds.size()];
+		predecessorLogOdds = new float[preds.size()];
+		for (int n=0; n<preds.size(); n++)
+		{
+			predecessors[n] = preds.get(n);
+			predecessorLogOdds[n] = predLogOdds.get(n);
+		}
+	}
+
+
+	// Null (e.g. a missing transition) means probability zero.
+	private static float toFloat(LogOdds logOdds)
+	{
+		return (logOdds == null)  ?  ZERO  :  CompiledProfileHMM.toFloat(logOdds);
+	}
+
+
+	public int getNStates()						{ return nStates; }
+	public int getNTransitions()				{ return predecessors.length; }
+	public S getState(int index)				{ return states.get(index); }
+	public E getEmission(int index)				{ return emissions.get(index); }
+
+
+	// Returns -1 if the state isn't in this model.
+	public int getStateIndex(S state)
+	{
+		Integer index = stateToIndex.get(state);
+		return (index == null)  ?  -1  :  index;
+	}
+
+
+	// Returns -1 if the model can't emit the emission.
+	public int getEmissionIndex(E emission)
+	{
+		Integer index = emissionToIndex.get(emission);
+		return (index == null)  ?  -1  :  index;
+	}
+
+
+	public int[] encode(List<E> observations)
+	{
+		int[] ret = new int[observations.size()];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = getEmissionIndex(observations.get(i));
+		return ret;
+	}
+
+
+
+
+
+
+
+
+					///////////////////////////////////////////////////
+					//                                               //
+					//                    VITERBI                    //
+					//                                               //
+					///////////////////////////////////////////////////
+
+
+
+
+	public float logOddsViterbiScore(List<E> observations) throws HMMException
+	{
+		return logOddsViterbiScore(encode(observations));
+	}
+
+
+	// Only 2 rows are allocated, and they are swapped at every observation.
+	public float logOddsViterbiScore(int[] observations) throws HMMException
+	{
+		if (observations.length == 0)
+			throw new HMMException("Empty input, no Viterbi path");
+
+		float[] prevRow = new float[nStates];
+		float[] nextRow = new float[nStates];
+		generateFirstRow(prevRow, observations[0]);
+		for (int i=1; i<observations.length; i++)
+		{
+			generateNextRow(prevRow, nextRow, null, 0, observations[i]);
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+		}
+
+		int bestState = bestFinalState(prevRow);
+		if (bestState < 0)
+			throw new HMMException("No Viterbi path for input");
+		return prevRow[bestState];
+	}
+
+
+	public ViterbiReport<S> viterbiWithLogOdds(List<E> observations) throws HMMException
+	{
+		if (observations.isEmpty())
+			throw new HMMException("Empty input, no Viterbi path");
+
+		// Backpointers for every observation, -1 for START or no path.
+		int[] observationIndices = encode(observations);
+		int nObs = observationIndices.length;
+		int[] backpointers = new int[nObs * nStates];
+		float[] prevRow = new float[nStates];
+		float[] nextRow = new float[nStates];
+		generateFirstRow(prevRow, observationIndices[0]);
+		Arrays.fill(backpointers, 0, nStates, -1);
+		for (int i=1; i<nObs; i++)
+		{
+			generateNextRow(prevRow, nextRow, backpointers, i*nStates, observationIndices[i]);
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+		}
+
+		// Trace back from best final state.
+		int state = bestFinalState(prevRow);
+		if (state < 0)
+			return new ViterbiReport<>(LogOdds.getProbZeroInstance(), null);
+		float score = prevRow[state];
+		List<S> path = new ArrayList<>(nObs);
+		for (int i=nObs-1; i>=0; i--)
+		{
+			assert state >= 0;
+			path.add(states.get(state));
+			state = backpointers[i*nStates + state];
+		}
+		Collections.reverse(path);
+		return new ViterbiReport<>(LogOdds.fromLog10(score), path);
+	}
+
+
+	private void generateFirstRow(float[] row, int observation)
+	{
+		if (observation < 0)
+		{
+			Arrays.fill(row, ZERO);
+			return;
+		}
+		int emissionOffset = observation * nStates;
+		for (int state=0; state<nStates; state++)
+			row[state] = initialLogOdds[state] + emissionLogOdds[emissionOffset + state];
+	}
+
+
+	// Candidates are (prev + transition) + emission, and a later predecessor only wins if it's strictly better,
+	// as in the map-based Viterbi. If backpointers is null, they aren't recorded.
+	private void generateNextRow(float[] prevRow, float[] nextRow, int[] backpointers, int backpointerOffset, int observation)
+	{
+		if (observation < 0)
+		{
+			Arrays.fill(nextRow, ZERO);
+			if (backpointers != null)
+				Arrays.fill(backpointers, backpointerOffset, backpointerOffset+nStates, -1);
+			return;
+		}
+
+		int emissionOffset = observation * nStates;
+		for (int state=0; state<nStates; state++)
+		{
+			float emission = emissionLogOdds[emissionOffset + state];
+			float best = ZERO;
+			int bestPrev = -1;
+			if (emission != ZERO)
+			{
+				for (int n=predecessorStarts[state]; n<predecessorStarts[state+1]; n++)
+				{
+					float candidate = (prevRow[predecessors[n]] + predecessorLogOdds[n]) + emission;
+					if (candidate > best)
+					{
+						best = candidate;
+						bestPrev = predecessors[n];
+					}
+				}
+			}
+			nextRow[state] = best;
+			if (backpointers != null)
+				backpointers[backpointerOffset + state] = bestPrev;
+		}
+	}
+
+
+	// Returns -1 if every final state has probability zero.
+	private int bestFinalState(float[] finalRow)
+	{
+		int bestState = 0;
+		for (int state=1; state<nStates; state++)
+			if (finalRow[state] > finalRow[bestState])
+				bestState = state;
+		return (finalRow[bestState] == ZERO)  ?  -1  :  bestState;
+	}
+
+
+	public String toString()
+	{
+		return "IndexedHMM: " + nStates + " states, " + emissions.size() + " emissions, " +
+			predecessors.length + " transitions";
+	}
+}
@@ -51,6 +51,17 @@ public class LogOdds implements Comparable<LogOdds>, java.io.Serializable
 	}
 	
 	
+	// Inverse of CompiledProfileHMM.toFloat(): Float.NEGATIVE_INFINITY means probability zero.
+	static LogOdds fromLog10(float logOfProb)
+	{
+		if (logOfProb == Float.NEGATIVE_INFINITY)
+			return THE_PROBZERO_INSTANCE;
+		LogOdds ret = new LogOdds();
+		ret.logOfProb = logOfProb;
+		return ret;
+	}
+	
+	
 	public float get()
 	{
 		return probIsZero ? 0 : logOfProb;
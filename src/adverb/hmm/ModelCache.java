@@ -0,0 +1,241 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import adverb.util.FileUtils;
+
+
+//
+// Compiled models by training fasta, for a process that classifies many queries. Only the compiled form is kept;
+// the ProfileHMM it came from is garbage as soon as compile() returns, so a model costs its primitive tables and not
+// the much larger map-based object graph.
+//
+// A model's key is its fasta's canonical path and the SHA-256 of the fasta's contents, so an edited training set is
+// never served a stale model. The hash is recomputed only when the file's length or modification time changes, and if
+// it changed, the model of the old contents is dropped. Models are evicted least recently used first, whenever their
+// total CompiledProfileHMM.estimateBytes() exceeds the budget. A model larger than the whole budget is returned but
+// not kept, and doesn't evict anything.
+//
+// Loads run outside the lock, so different models are built concurrently. Callers that want a model that's already
+// being built wait for that build instead of starting another one. A failed load isn't cached; the next call
+// retries it.
+//
+// Hits count calls that didn't build a model, including calls that waited for another caller's build. Misses count
+// builds.
+//
+
+
+public class ModelCache
+{
+	public final static long		DEFAULT_BUDGET_BYTES	= 1L << 30;
+
+	private long					budgetBytes;
+	private long					nBytes;
+	private LinkedHashMap<String, CompiledProfileHMM>		models;		// by key, least recently used first
+	private Map<String, FutureTask<CompiledProfileHMM>>		loads;		// by key, builds in progress
+	private Map<String, FileStamp>	stamps;						// by canonical path, for reusing content hashes
+	private long					nHits;
+	private long					nMisses;
+	private long					nEvictions;
+
+
+	private static class FileStamp
+	{
+		long						length;
+		long						lastModified;
+		String						contentHash;
+	}
+
+
+	public ModelCache()
+	{
+		this(DEFAULT_BUDGET_BYTES);
+	}
+
+
+	public ModelCache(long budgetBytes)
+	{
+		assert budgetBytes >= 0;
+		this.budgetBytes = budgetBytes;
+		models = new LinkedHashMap<>(16, 0.75f, true);
+		loads = new HashMap<>();
+		stamps = new HashMap<>();
+	}
+
+
+	// Compiled model of a fasta alignment, built with new ProfileHMM(alignedFasta) unless it's cached.
+	public CompiledProfileHMM get(File alignedFasta) throws IOException
+	{
+		String key = key(alignedFasta);
+		FutureTask<CompiledProfileHMM> load;
+		boolean isLoader = false;
+		synchronized (this)
+		{
+			CompiledProfileHMM model = models.get(key);
+			if (model != null)
+			{
+				nHits++;
+				return model;
+			}
+			load = loads.get(key);
+			if (load == null)
+			{
+				load = new FutureTask<>(() -> new ProfileHMM(alignedFasta).compile());
+				loads.put(key, load);
+				isLoader = true;
+				nMisses++;
+			}
+			else
+				nHits++;
+		}
+
+		if (isLoader)
+			load.run();
+		try
+		{
+			CompiledProfileHMM model = load.get();
+			if (isLoader)
+			{
+				synchronized (this)
+				{
+					loads.remove(key);
+					admit(key, model);
+				}
+			}
+			return model;
+		}
+		catch (ExecutionException x)
+		{
+			if (isLoader)
+			{
+				synchronized (this)
+				{
+					loads.remove(key);
+				}
+			}
+			Throwable cause = x.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			else if (cause instanceof Error)
+				throw (Error)cause;
+			else
+				throw new IOException(cause);
+		}
+		catch (InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + alignedFasta + " to load");
+		}
+	}
+
+
+	// Canonical path and content hash. Hashing reads the whole file, so hashes are reused while the file's length
+	// and modification time are unchanged.
+	private String key(File alignedFasta) throws IOException
+	{
+		String path = alignedFasta.getCanonicalPath();
+		long length = alignedFasta.length();
+		long lastModified = alignedFasta.lastModified();
+		synchronized (this)
+		{
+			FileStamp stamp = stamps.get(path);
+			if (stamp != null  &&  stamp.length == length  &&  stamp.lastModified == lastModified)
+				return path + "\t" + stamp.contentHash;
+		}
+
+		FileStamp stamp = new FileStamp();
+		stamp.length = length;
+		stamp.lastModified = lastModified;
+		stamp.contentHash = FileUtils.contentHash(alignedFasta);
+		synchronized (this)
+		{
+			FileStamp prevStamp = stamps.put(path, stamp);
+			if (prevStamp != null  &&  !prevStamp.contentHash.equals(stamp.contentHash))
+			{
+				CompiledProfileHMM stale = models.remove(path + "\t" + prevStamp.contentHash);
+				if (stale != null)
+					nBytes -= stale.estimateBytes();
+			}
+		}
+		return path + "\t" + stamp.contentHash;
+	}
+
+
+	// Caller must hold the lock. Doesn't keep a model that's larger than the budget, or whose fasta has changed
+	// since its load started.
+	private void admit(String key, CompiledProfileHMM model)
+	{
+		long modelBytes = model.estimateBytes();
+		if (modelBytes > budgetBytes)
+			return;
+		String path = key.substring(0, key.lastIndexOf('\t'));
+		if (!key.equals(path + "\t" + stamps.get(path).contentHash))
+			return;
+		models.put(key, model);
+		nBytes += modelBytes;
+		evictToBudget();
+	}
+
+
+	// Caller must hold the lock.
+	private void evictToBudget()
+	{
+		Iterator<CompiledProfileHMM> iter = models.values().iterator();
+		while (nBytes > budgetBytes  &&  iter.hasNext())
+		{
+			nBytes -= iter.next().estimateBytes();
+			iter.remove();
+			nEvictions++;
+		}
+	}
+
+
+	// Evicts least recently used models until the total is within the new budget.
+	public synchronized void setBudgetBytes(long budgetBytes)
+	{
+		assert budgetBytes >= 0;
+		this.budgetBytes = budgetBytes;
+		evictToBudget();
+	}
+
+
+	public synchronized void clear()
+	{
+		models.clear();
+		nBytes = 0;
+	}
+
+
+	public synchronized long getBudgetBytes()		{ return budgetBytes; }
+	public synchronized long getNBytes()			{ return nBytes; }
+	public synchronized int size()					{ return models.size(); }
+	public synchronized long getNHits()				{ return nHits; }
+	public synchronized long getNMisses()			{ return nMisses; }
+	public synchronized long getNEvictions()		{ return nEvictions; }
+
+
+	public synchronized String toString()
+	{
+		return "ModelCache: " + models.size() + " models, " + nBytes + " of " + budgetBytes + " bytes, " +
+			nHits + " hits, " + nMisses + " misses, " + nEvictions + " evictions";
+	}
+}
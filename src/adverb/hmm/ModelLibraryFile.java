@@ -0,0 +1,365 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+
+//
+// Binary file of named compiled models, e.g. one per genus, read by memory-mapping. The file is a header, the
+// models' primitive tables one after another, an optional K-mer summary of the training sequences, and an index
+// of name, offset, length, column count, and source for each model:
+//
+//		int MAGIC, int VERSION, int nModels, long indexOffset, long kmerOffset (0 if no summary)
+//		model 0 ... model n-1							see CompiledProfileHMM.write()
+//		K-mer summary									long table, see StrandDetector.getKmerBits()
+//		index entry 0 ... index entry n-1				string name, long offset, int nBytes, int nCols,
+//														string contentHash, long length, long lastModified, int nSeqs
+//
+// The source fields are a ModelSource; nSeqs is -1 if a model has none. They and the K-mer summary let a reader
+// decide which models are current, and guess a query's orientation, without reading any training fasta.
+//
+// Opening a file maps it read-only and reads only the index, so it takes milliseconds however many models there
+// are. A model's tables aren't copied: on first use its CompiledProfileHMM gets FloatBuffer, IntBuffer, and
+// DoubleBuffer views of the mapping, which the scoring engines read directly. Only state names and other small
+// fields are on the heap, so processes that map the same file share its tables in the OS page cache. Files are
+// written to a temporary file and then renamed, so a reader never maps a partial file.
+//
+// Little-endian throughout, the byte order of nearly every machine that runs this, so views read floats without
+// swapping bytes. Every table starts at a multiple of 8 bytes from the start of the file. Files are limited to 2 GB,
+// the size of one mapping.
+//
+
+
+public class ModelLibraryFile
+{
+	private final static int			MAGIC				= 0x41445642;		// "ADVB"
+	private final static int			VERSION				= 4;
+	final static ByteOrder				BYTE_ORDER			= ByteOrder.LITTLE_ENDIAN;
+	private final static int			TABLE_ALIGNMENT		= 8;
+
+	private File						file;
+	private ByteBuffer					mapping;
+	private String[]					names;
+	private long[]						offsets;
+	private int[]						nCols;
+	private ModelSource[]				sources;						// null for a model without one
+	private LongBuffer					kmerSummary;					// view of the mapping, null if none
+	private CompiledProfileHMM[]		models;							// views of the mapping, made on first use
+
+
+	public ModelLibraryFile(File file) throws IOException
+	{
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is larger than 2 GB");
+			mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		ByteBuffer in = duplicateMapping();
+		int magic = (in.remaining() < 28)  ?  0  :  in.getInt();
+		if (magic != MAGIC  &&  Integer.reverseBytes(magic) == MAGIC)
+			in.order(ByteOrder.BIG_ENDIAN);								// version 2 and before
+		else if (magic != MAGIC)
+			throw new IOException(file + " isn't a model library file");
+		int version = in.getInt();
+		if (version != VERSION)
+			throw new IOException(file + " has version " + version + ", expected " + VERSION);
+		int nModels = in.getInt();
+		long indexOffset = in.getLong();
+		long kmerOffset = in.getLong();
+		if (kmerOffset > 0)
+		{
+			in.position((int)kmerOffset);
+			kmerSummary = readLongs(in);
+		}
+		in.position((int)indexOffset);
+		names = new String[nModels];
+		offsets = new long[nModels];
+		nCols = new int[nModels];
+		sources = new ModelSource[nModels];
+		for (int i=0; i<nModels; i++)
+		{
+			names[i] = readString(in);
+			offsets[i] = in.getLong();
+			in.getInt();											// nBytes
+			nCols[i] = in.getInt();
+			String contentHash = readString(in);
+			long length = in.getLong();
+			long lastModified = in.getLong();
+			int nSeqs = in.getInt();
+			if (nSeqs >= 0)
+				sources[i] = new ModelSource(contentHash, length, lastModified, nSeqs);
+		}
+		models = new CompiledProfileHMM[nModels];
+	}
+
+
+	// sources may contain nulls, and kmerSummary may be null.
+	public static void write(List<String> names, List<CompiledProfileHMM> models, List<ModelSource> sources,
+							 LongBuffer kmerSummary, File file) throws IOException
+	{
+		assert names.size() == models.size()  &&  sources.size() == models.size();
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		long[] offsets = new long[models.size()];
+		int[] nBytes = new int[models.size()];
+		long indexOffset;
+		long kmerOffset = 0;
+		try
+		(
+			FileOutputStream fos = new FileOutputStream(tempFile);
+			BufferedOutputStream bos = new BufferedOutputStream(fos);
+			DataOutputStream out = new DataOutputStream(bos);
+		)
+		{
+			writeInt(out, MAGIC);
+			writeInt(out, VERSION);
+			writeInt(out, models.size());
+			writeLong(out, 0);										// index offset, patched below
+			writeLong(out, 0);										// K-mer summary offset, patched below
+			for (int i=0; i<models.size(); i++)
+			{
+				offsets[i] = out.size();
+				models.get(i).write(out);
+				nBytes[i] = (int)(out.size() - offsets[i]);
+			}
+			if (kmerSummary != null)
+			{
+				kmerOffset = out.size();
+				writeLongs(out, kmerSummary);
+			}
+			indexOffset = out.size();
+			for (int i=0; i<models.size(); i++)
+			{
+				writeString(out, names.get(i));
+				writeLong(out, offsets[i]);
+				writeInt(out, nBytes[i]);
+				writeInt(out, models.get(i).nCols);
+				ModelSource source = sources.get(i);
+				writeString(out, (source == null)  ?  ""  :  source.getContentHash());
+				writeLong(out, (source == null)  ?  0  :  source.getLength());
+				writeLong(out, (source == null)  ?  0  :  source.getLastModified());
+				writeInt(out, (source == null)  ?  -1  :  source.getNSeqs());
+			}
+			if (out.size() == Integer.MAX_VALUE)
+				throw new IOException("Model library is larger than 2 GB");
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw"))
+		{
+			raf.seek(12);
+			raf.writeLong(Long.reverseBytes(indexOffset));
+			raf.writeLong(Long.reverseBytes(kmerOffset));
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	public int size()									{ return names.length; }
+	public String getName(int index)					{ return names[index]; }
+	public int getNCols(int index)						{ return nCols[index]; }
+	public ModelSource getSource(int index)				{ return sources[index]; }
+	public LongBuffer getKmerSummary()					{ return kmerSummary; }
+	public File getFile()								{ return file; }
+
+
+	public synchronized CompiledProfileHMM getModel(int index)
+	{
+		if (models[index] == null)
+		{
+			ByteBuffer in = duplicateMapping();
+			in.position((int)offsets[index]);
+			models[index] = new CompiledProfileHMM(in);
+		}
+		return models[index];
+	}
+
+
+	// Models in index order, each viewing the mapping from when it's first gotten.
+	public List<CompiledProfileHMM> asList()
+	{
+		return new AbstractList<CompiledProfileHMM>()
+		{
+			public CompiledProfileHMM get(int index)		{ return getModel(index); }
+			public int size()								{ return names.length; }
+		};
+	}
+
+
+	public String toString()
+	{
+		return "ModelLibraryFile " + file + ": " + names.length + " models, " + mapping.capacity() + " bytes";
+	}
+
+
+	// Independent position, same byte order. ByteBuffer.duplicate() doesn't keep the order.
+	private ByteBuffer duplicateMapping()
+	{
+		ByteBuffer ret = mapping.duplicate();
+		ret.order(BYTE_ORDER);
+		return ret;
+	}
+
+
+	//
+	// Primitive I/O for CompiledProfileHMM.write() and CompiledProfileHMM(ByteBuffer). DataOutputStream is
+	// big-endian, so values are byte-reversed before they're written. Tables are a length, -1 for null, padding to
+	// TABLE_ALIGNMENT, and then their elements. Tables are read as views of the buffer they're in, not copies.
+	//
+
+
+	static void writeInt(DataOutputStream out, int x) throws IOException
+	{
+		out.writeInt(Integer.reverseBytes(x));
+	}
+
+
+	static void writeLong(DataOutputStream out, long x) throws IOException
+	{
+		out.writeLong(Long.reverseBytes(x));
+	}
+
+
+	static void writeFloat(DataOutputStream out, float x) throws IOException
+	{
+		writeInt(out, Float.floatToRawIntBits(x));
+	}
+
+
+	static void writeDouble(DataOutputStream out, double x) throws IOException
+	{
+		writeLong(out, Double.doubleToRawLongBits(x));
+	}
+
+
+	static void writeChar(DataOutputStream out, char ch) throws IOException
+	{
+		out.writeChar(Character.reverseBytes(ch));
+	}
+
+
+	static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+
+	static String readString(ByteBuffer in)
+	{
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+
+	// Writes a table's length and pads to TABLE_ALIGNMENT. out must have been created at the start of the file.
+	private static void writeTableHeader(DataOutputStream out, Buffer table) throws IOException
+	{
+		writeInt(out, (table == null)  ?  -1  :  table.capacity());
+		while (out.size() % TABLE_ALIGNMENT != 0)
+			out.write(0);
+	}
+
+
+	// Reads a table's length, skips the padding, and returns a slice of the next nBytesPerElement * length bytes.
+	// Null if the table is null. in is positioned after the table.
+	private static ByteBuffer readTable(ByteBuffer in, int nBytesPerElement)
+	{
+		int len = in.getInt();
+		in.position((in.position() + TABLE_ALIGNMENT - 1) / TABLE_ALIGNMENT * TABLE_ALIGNMENT);
+		if (len < 0)
+			return null;
+		ByteBuffer ret = in.slice();
+		ret.limit(nBytesPerElement * len);
+		ret.order(in.order());
+		in.position(in.position() + nBytesPerElement * len);
+		return ret;
+	}
+
+
+	static void writeInts(DataOutputStream out, IntBuffer a) throws IOException
+	{
+		writeTableHeader(out, a);
+		if (a != null)
+			for (int i=0; i<a.capacity(); i++)
+				writeInt(out, a.get(i));
+	}
+
+
+	static IntBuffer readInts(ByteBuffer in)
+	{
+		ByteBuffer table = readTable(in, 4);
+		return (table == null)  ?  null  :  table.asIntBuffer();
+	}
+
+
+	static void writeFloats(DataOutputStream out, FloatBuffer a) throws IOException
+	{
+		writeTableHeader(out, a);
+		if (a != null)
+			for (int i=0; i<a.capacity(); i++)
+				writeFloat(out, a.get(i));
+	}
+
+
+	static FloatBuffer readFloats(ByteBuffer in)
+	{
+		ByteBuffer table = readTable(in, 4);
+		return (table == null)  ?  null  :  table.asFloatBuffer();
+	}
+
+
+	static void writeDoubles(DataOutputStream out, DoubleBuffer a) throws IOException
+	{
+		writeTableHeader(out, a);
+		if (a != null)
+			for (int i=0; i<a.capacity(); i++)
+				writeDouble(out, a.get(i));
+	}
+
+
+	static DoubleBuffer readDoubles(ByteBuffer in)
+	{
+		ByteBuffer table = readTable(in, 8);
+		return (table == null)  ?  null  :  table.asDoubleBuffer();
+	}
+
+
+	static void writeLongs(DataOutputStream out, LongBuffer a) throws IOException
+	{
+		writeTableHeader(out, a);
+		if (a != null)
+			for (int i=0; i<a.capacity(); i++)
+				writeLong(out, a.get(i));
+	}
+
+
+	static LongBuffer readLongs(ByteBuffer in)
+	{
+		ByteBuffer table = readTable(in, 8);
+		return (table == null)  ?  null  :  table.asLongBuffer();
+	}
+}
@@ -0,0 +1,412 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Several CompiledProfileHMMs packed into lanes, so that one query is scored against all of them in a single DP
+// sweep. Every table is stored lane-minor: the value for column (or state) x of lane l is at x*nLanes + l, so a
+// stage reads each column's tables for all models at once. Models shorter than the longest one are padded with
+// probability-zero columns, which no path can enter. Lanes use the state numbering of the longest model, with
+// DELETE states (if any lane has them) after the last INSERT state.
+//
+// Per lane, the arithmetic is the same as CompiledProfileHMM.logOddsViterbiScore(), so scores are identical.
+// Padding is wasted work, so models should have similar column counts; ProfileHMMLibrary packs by length.
+//
+// This class steps the lanes with scalar loops. VectorModelPack, in src-vector, steps a vector of lanes per
+// instruction with the incubating Vector API; newPack() returns one when the module is available. Bypasses are
+// sparse and differ by lane, so both classes fold them in with the same per-lane code (see addBypasses()).
+//
+
+
+public class ModelPack
+{
+	private final static float					ZERO					= CompiledProfileHMM.ZERO;
+
+	CompiledProfileHMM[]						models;
+	int											nLanes;
+	int											nCols;					// of longest model
+	int											nStates;				// of longest model
+	int											rowLength;
+	boolean										hasDeleteChain;
+	char[]										alphabet;				// union of the models' alphabets
+	int[]										charToSymbol;			// by char, -1 if not in alphabet
+	int											unknownSymbol;			// its emissions are all ZERO
+
+	float[]										matchToInsertLogOdds;	// [col*nLanes + lane]
+	float[]										insertToSelfLogOdds;
+	float[]										insertToMatchLogOdds;
+	float[]										matchToMatchLogOdds;
+	float[]										emissionLogOdds;		// [(symbol*nStates + state)*nLanes + lane]
+	float[]										deleteOpenLogOdds;
+	float[]										deleteExtendLogOdds;
+	float[]										deleteCloseLogOdds;
+
+	// Bypasses. Hard bypasses of all lanes are in one list per dest column, with source slots in packed numbering.
+	// Closed-form soft bypass tables are lane-minor, ZERO (or -Infinity) where a lane has none.
+	int[]										hardBypassStarts;		// by dest col, length nCols+1
+	int[]										hardBypassLanes;
+	int[]										hardBypassSrcs;			// packed slot of source M state
+	float[]										hardBypassLogOdds;
+	float[]										softBypassKeyOffsets;	// [col*nLanes + lane]
+	double[]									softBypassMaxRelatives;	// [col*nLanes + lane]
+	double[]									softBypassSlacks;		// by lane
+	int[]										listedSoftBypassLanes;	// lanes whose soft bypasses aren't closed form
+
+
+	public ModelPack(List<CompiledProfileHMM> models)
+	{
+		assert !models.isEmpty();
+		this.models = models.toArray(new CompiledProfileHMM[0]);
+		nLanes = models.size();
+		for (CompiledProfileHMM model: models)
+		{
+			nCols = Math.max(nCols, model.nCols);
+			hasDeleteChain |= model.hasDeleteChain;
+		}
+		nStates = 2*nCols + 1;
+		rowLength = hasDeleteChain  ?  nStates + nCols  :  nStates;
+
+		// Union alphabet.
+		Set<Character> chars = new TreeSet<>();
+		for (CompiledProfileHMM model: models)
+			for (char ch: model.alphabet)
+				chars.add(ch);
+		alphabet = new char[chars.size()];
+		int n = 0;
+		for (Character ch: chars)
+			alphabet[n++] = ch;
+		charToSymbol = new int[alphabet[alphabet.length-1] + 1];
+		Arrays.fill(charToSymbol, -1);
+		for (int sym=0; sym<alphabet.length; sym++)
+			charToSymbol[alphabet[sym]] = sym;
+		unknownSymbol = alphabet.length;
+
+		// Tables. Anything a lane doesn't have stays ZERO.
+		for (CompiledProfileHMM model: models)
+			assert model.matchToInsertLogOdds.get(0) == ZERO  &&  model.matchToMatchLogOdds.get(0) == ZERO;
+		matchToInsertLogOdds = newZeroArray((nCols+1) * nLanes);
+		insertToSelfLogOdds = newZeroArray((nCols+1) * nLanes);
+		insertToMatchLogOdds = newZeroArray(nCols * nLanes);
+		matchToMatchLogOdds = newZeroArray(nCols * nLanes);
+		emissionLogOdds = newZeroArray((alphabet.length+1) * nStates * nLanes);
+		deleteOpenLogOdds = newZeroArray(nCols * nLanes);
+		deleteExtendLogOdds = newZeroArray(nCols * nLanes);
+		deleteCloseLogOdds = newZeroArray(nCols * nLanes);
+		for (int lane=0; lane<nLanes; lane++)
+		{
+			CompiledProfileHMM model = this.models[lane];
+			for (int col=0; col<=model.nCols; col++)
+			{
+				matchToInsertLogOdds[col*nLanes + lane] = model.matchToInsertLogOdds.get(col);
+				insertToSelfLogOdds[col*nLanes + lane] = model.insertToSelfLogOdds.get(col);
+				if (col == model.nCols)
+					break;
+				insertToMatchLogOdds[col*nLanes + lane] = model.insertToMatchLogOdds.get(col);
+				matchToMatchLogOdds[col*nLanes + lane] = model.matchToMatchLogOdds.get(col);
+				if (model.hasDeleteChain)
+				{
+					deleteOpenLogOdds[col*nLanes + lane] = model.deleteOpenLogOdds.get(col);
+					deleteExtendLogOdds[col*nLanes + lane] = model.deleteExtendLogOdds.get(col);
+					deleteCloseLogOdds[col*nLanes + lane] = model.deleteCloseLogOdds.get(col);
+				}
+			}
+			for (int modelSym=0; modelSym<model.alphabet.length; modelSym++)
+			{
+				int sym = charToSymbol[model.alphabet[modelSym]];
+				for (int state=0; state<model.nStates; state++)
+					emissionLogOdds[(sym*nStates + state)*nLanes + lane] = model.emissionLogOdds.get(modelSym*model.nStates + state);
+			}
+		}
+		initBypasses();
+	}
+
+
+	private void initBypasses()
+	{
+		List<int[]> hardBypasses = new ArrayList<>();		// { dest col, lane, src slot, float bits }
+		softBypassKeyOffsets = newZeroArray(nCols * nLanes);
+		softBypassMaxRelatives = new double[nCols * nLanes];
+		Arrays.fill(softBypassMaxRelatives, Double.NEGATIVE_INFINITY);
+		softBypassSlacks = new double[nLanes];
+		List<Integer> listedLanes = new ArrayList<>();
+		for (int lane=0; lane<nLanes; lane++)
+		{
+			CompiledProfileHMM model = models[lane];
+			for (int col=0; col<model.nCols; col++)
+			{
+				for (int n=model.hardBypassStarts.get(col); n<model.hardBypassStarts.get(col+1); n++)
+				{
+					int src = CompiledProfileHMM.matchIndex(model.hardBypassSrcCols.get(n)) * nLanes + lane;
+					hardBypasses.add(new int[] { col, lane, src, Float.floatToRawIntBits(model.hardBypassLogOdds.get(n)) });
+				}
+			}
+			if (model.softBypassStarts != null)
+			{
+				listedLanes.add(lane);
+				continue;
+			}
+			for (int col=0; col<model.nCols; col++)
+			{
+				softBypassKeyOffsets[col*nLanes + lane] = model.softBypassKeyOffsets.get(col);
+				softBypassMaxRelatives[col*nLanes + lane] = model.softBypassMaxRelatives.get(col);
+			}
+			softBypassSlacks[lane] = model.softBypassSlack;
+		}
+
+		// Sort by dest col; the sort is stable, so each lane's bypasses stay in order.
+		hardBypasses.sort((b1, b2) -> b1[0] - b2[0]);
+		hardBypassStarts = new int[nCols+1];
+		hardBypassLanes = new int[hardBypasses.size()];
+		hardBypassSrcs = new int[hardBypasses.size()];
+		hardBypassLogOdds = new float[hardBypasses.size()];
+		for (int n=0; n<hardBypasses.size(); n++)
+		{
+			int[] bypass = hardBypasses.get(n);
+			hardBypassStarts[bypass[0]+1]++;
+			hardBypassLanes[n] = bypass[1];
+			hardBypassSrcs[n] = bypass[2];
+			hardBypassLogOdds[n] = Float.intBitsToFloat(bypass[3]);
+		}
+		for (int col=0; col<nCols; col++)
+			hardBypassStarts[col+1] += hardBypassStarts[col];
+		listedSoftBypassLanes = listedLanes.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+
+	// A VectorModelPack if the Vector API is available and that class was compiled, otherwise a ModelPack. It's
+	// loaded reflectively, as in CompiledProfileHMM.newVectorScorer(), so that this class links without the module.
+	public static ModelPack newPack(List<CompiledProfileHMM> models)
+	{
+		if (!CompiledProfileHMM.isVectorApiAvailable())
+			return new ModelPack(models);
+		try
+		{
+			Class<?> clazz = Class.forName("adverb.hmm.VectorModelPack");
+			return (ModelPack)clazz.getConstructor(List.class).newInstance(models);
+		}
+		catch (ReflectiveOperationException | LinkageError x)
+		{
+			return new ModelPack(models);
+		}
+	}
+
+
+	private static float[] newZeroArray(int len)
+	{
+		float[] ret = new float[len];
+		Arrays.fill(ret, ZERO);
+		return ret;
+	}
+
+
+	public int getNLanes()							{ return nLanes; }
+	public int getNCols()							{ return nCols; }
+	public CompiledProfileHMM getModel(int lane)	{ return models[lane]; }
+
+
+	// Maps a lane's state index into this pack's numbering.
+	private int packedIndex(CompiledProfileHMM model, int state)
+	{
+		return (state < model.nStates)  ?  state  :  nStates + (state - model.nStates);
+	}
+
+
+
+
+
+
+
+
+					///////////////////////////////////////////////////
+					//                                               //
+					//                    VITERBI                    //
+					//                                               //
+					///////////////////////////////////////////////////
+
+
+
+
+	// One score per lane. Gaps are ignored. A model with no Viterbi path for the query scores
+	// Float.NEGATIVE_INFINITY rather than throwing, so that one model doesn't spoil the pack.
+	public float[] logOddsViterbiScores(String sObservations)
+	{
+		String query = sObservations.replace("-", "");
+		float[] scores = new float[nLanes];
+		Arrays.fill(scores, ZERO);
+		if (query.isEmpty())
+			return scores;
+
+		// First row, computed by each model.
+		float[] prevRow = new float[rowLength * nLanes];
+		float[] nextRow = new float[rowLength * nLanes];
+		Arrays.fill(prevRow, ZERO);
+		Arrays.fill(nextRow, ZERO);
+		CompiledProfileHMM.SoftBypassMax[] softMaxes = new CompiledProfileHMM.SoftBypassMax[nLanes];
+		double[] softMaxKeys = new double[nLanes];
+		for (int lane=0; lane<nLanes; lane++)
+		{
+			CompiledProfileHMM model = models[lane];
+			softMaxes[lane] = model.newSoftBypassMax();
+			float[] laneRow = new float[model.rowLength];
+			model.generateFirstRow(laneRow, model.charToSymbol(query.charAt(0)));
+			for (int state=0; state<model.rowLength; state++)
+				prevRow[packedIndex(model, state)*nLanes + lane] = laneRow[state];
+		}
+
+		// Subsequent rows.
+		for (int i=1; i<query.length(); i++)
+		{
+			char ch = query.charAt(i);
+			int symbol = (ch < charToSymbol.length  &&  charToSymbol[ch] >= 0)  ?  charToSymbol[ch]  :  unknownSymbol;
+			generateNextRow(prevRow, nextRow, symbol, softMaxes, softMaxKeys);
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+		}
+
+		// Final row, scored by each model.
+		for (int lane=0; lane<nLanes; lane++)
+		{
+			CompiledProfileHMM model = models[lane];
+			float[] laneRow = new float[model.rowLength];
+			for (int state=0; state<model.rowLength; state++)
+				laneRow[state] = prevRow[packedIndex(model, state)*nLanes + lane];
+			try
+			{
+				scores[lane] = model.finalRowToScore(laneRow);
+			}
+			catch (HMMException x)
+			{
+				scores[lane] = ZERO;
+			}
+		}
+		return scores;
+	}
+
+
+	// Same arithmetic as CompiledProfileHMM.generateNextRow(), for every lane.
+	void generateNextRow(float[] prevRow, float[] nextRow, int symbol,
+						 CompiledProfileHMM.SoftBypassMax[] softMaxes, double[] softMaxKeys)
+	{
+		for (int lane=0; lane<nLanes; lane++)
+			softMaxes[lane].clear();
+		Arrays.fill(softMaxKeys, Double.NEGATIVE_INFINITY);
+		int emissionOffset = symbol * nStates * nLanes;
+
+		for (int col=0; col<=nCols; col++)
+		{
+			// INSERT state. There's no M_(-1), but M_(-1) -> I_0 and M_(-1) -> M_0 are ZERO, so any slot can
+			// stand in for it. This keeps the lane loops free of branches.
+			int insert = CompiledProfileHMM.insertIndex(col) * nLanes;
+			int prevMatch = (col > 0)  ?  CompiledProfileHMM.matchIndex(col-1) * nLanes  :  insert;
+			int colOffset = col * nLanes;
+			for (int lane=0; lane<nLanes; lane++)
+				nextRow[insert + lane] = Math.max(prevRow[insert + lane] + insertToSelfLogOdds[colOffset + lane],
+												  prevRow[prevMatch + lane] + matchToInsertLogOdds[colOffset + lane])
+										 + emissionLogOdds[emissionOffset + insert + lane];
+			if (col == nCols)
+				break;
+
+			// MATCH state: best predecessor first, emission last.
+			int match = CompiledProfileHMM.matchIndex(col) * nLanes;
+			for (int lane=0; lane<nLanes; lane++)
+				nextRow[match + lane] = Math.max(prevRow[insert + lane] + insertToMatchLogOdds[colOffset + lane],
+												 prevRow[prevMatch + lane] + matchToMatchLogOdds[colOffset + lane]);
+			if (hasDeleteChain  &&  col > 0)
+			{
+				int prevDelete = (nStates + col - 1) * nLanes;
+				for (int lane=0; lane<nLanes; lane++)
+					nextRow[match + lane] = Math.max(nextRow[match + lane], prevRow[prevDelete + lane] + deleteCloseLogOdds[colOffset + lane]);
+			}
+			addBypasses(prevRow, nextRow, col, softMaxes, softMaxKeys);
+			for (int lane=0; lane<nLanes; lane++)
+				nextRow[match + lane] += emissionLogOdds[emissionOffset + match + lane];
+		}
+
+		// Silent DELETE chain.
+		if (hasDeleteChain)
+		{
+			for (int lane=0; lane<nLanes; lane++)
+				nextRow[nStates*nLanes + lane] = ZERO;
+			for (int col=1; col<nCols; col++)
+			{
+				int delete = (nStates + col) * nLanes;
+				int prevMatch = CompiledProfileHMM.matchIndex(col-1) * nLanes;
+				for (int lane=0; lane<nLanes; lane++)
+					nextRow[delete + lane] = Math.max(nextRow[prevMatch + lane] + deleteOpenLogOdds[col*nLanes + lane],
+													  nextRow[delete - nLanes + lane] + deleteExtendLogOdds[col*nLanes + lane]);
+			}
+		}
+	}
+
+
+	// Folds every lane's bypasses into M_col of nextRow, before M_col's emission is added. Bypasses are sparse, and
+	// whether a soft bypass is admitted or evaluated differs by lane, so this is per lane in every engine.
+	void addBypasses(float[] prevRow, float[] nextRow, int col,
+					 CompiledProfileHMM.SoftBypassMax[] softMaxes, double[] softMaxKeys)
+	{
+		int match = CompiledProfileHMM.matchIndex(col) * nLanes;
+		int colOffset = col * nLanes;
+
+		// Hard bypasses, all lanes in one list.
+		for (int n=hardBypassStarts[col]; n<hardBypassStarts[col+1]; n++)
+		{
+			int dest = match + hardBypassLanes[n];
+			nextRow[dest] = Math.max(nextRow[dest], prevRow[hardBypassSrcs[n]] + hardBypassLogOdds[n]);
+		}
+
+		// Soft bypasses. The running maximum key of each lane is kept here, so that the lane's SoftBypassMax
+		// is only called when it would change or could win.
+		if (col >= 2)
+		{
+			int src = CompiledProfileHMM.matchIndex(col-2) * nLanes;
+			int keyOffset = (col-2) * nLanes;
+			for (int lane=0; lane<nLanes; lane++)
+			{
+				float softKeyOffset = softBypassKeyOffsets[keyOffset + lane];
+				float prevScore = prevRow[src + lane];
+				if (softKeyOffset == ZERO  ||  prevScore == ZERO)
+					continue;
+				double key = (double)prevScore + softKeyOffset;
+				if (key >= softMaxKeys[lane] - softBypassSlacks[lane])
+				{
+					softMaxes[lane].admit(col-2, prevScore, softKeyOffset);
+					softMaxKeys[lane] = Math.max(softMaxKeys[lane], key);
+				}
+			}
+		}
+		for (int lane=0; lane<nLanes; lane++)
+		{
+			if (softMaxKeys[lane] + softBypassMaxRelatives[colOffset + lane] + 1e-9 > nextRow[match + lane])
+				nextRow[match + lane] = Math.max(nextRow[match + lane], softMaxes[lane].best(prevRow, col, nLanes, lane, null));
+		}
+
+		// Models whose soft bypasses are listed, not closed form.
+		for (int lane: listedSoftBypassLanes)
+		{
+			CompiledProfileHMM model = models[lane];
+			if (col >= model.nCols)
+				continue;
+			for (int n=model.softBypassStarts.get(col); n<model.softBypassStarts.get(col+1); n++)
+				nextRow[match + lane] = Math.max(nextRow[match + lane],
+					prevRow[CompiledProfileHMM.matchIndex(model.softBypassSrcCols.get(n))*nLanes + lane] + model.softBypassLogOdds.get(n));
+		}
+	}
+}
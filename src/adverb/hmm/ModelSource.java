@@ -0,0 +1,89 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.io.*;
+import adverb.util.FileUtils;
+
+
+//
+// The training fasta that a library model was compiled from: its SHA-256, the length and modification time it had
+// when it was hashed, and its number of sequences. Stored in a ModelLibraryFile's index, so that a reader can tell
+// whether a model is current, and how many sequences trained it, without reading the fasta. Like ModelCache, a fasta
+// whose length and modification time are unchanged is assumed to have the same hash; otherwise it's hashed again.
+//
+
+
+public class ModelSource
+{
+	private String					contentHash;
+	private long					length;
+	private long					lastModified;
+	private int						nSeqs;
+
+
+	public ModelSource(String contentHash, long length, long lastModified, int nSeqs)
+	{
+		this.contentHash = contentHash;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.nSeqs = nSeqs;
+	}
+
+
+	// Hashes the fasta. The length and modification time are read first, so a write during hashing makes them stale
+	// rather than the hash.
+	public static ModelSource of(File fasta, int nSeqs) throws IOException
+	{
+		long length = fasta.length();
+		long lastModified = fasta.lastModified();
+		return new ModelSource(FileUtils.contentHash(fasta), length, lastModified, nSeqs);
+	}
+
+
+	// Same hash and sequence count, with the fasta's current length and modification time.
+	public ModelSource restamp(File fasta)
+	{
+		return new ModelSource(contentHash, fasta.length(), fasta.lastModified(), nSeqs);
+	}
+
+
+	// True if the fasta's length and modification time are the ones that were hashed.
+	public boolean isStampOf(File fasta)
+	{
+		return fasta.length() == length  &&  fasta.lastModified() == lastModified;
+	}
+
+
+	// True if the fasta's contents are the ones that were compiled. Only reads the fasta if its stamp changed.
+	public boolean isCurrent(File fasta) throws IOException
+	{
+		return isStampOf(fasta)  ||  FileUtils.contentHash(fasta).equals(contentHash);
+	}
+
+
+	public String getContentHash()				{ return contentHash; }
+	public long getLength()						{ return length; }
+	public long getLastModified()				{ return lastModified; }
+	public int getNSeqs()						{ return nSeqs; }
+
+
+	public String toString()
+	{
+		return "ModelSource: " + nSeqs + " sequences, " + length + " bytes, SHA-256 " + contentHash;
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+//
+// Log-odds Viterbi for one query against one large CompiledProfileHMM, with each stage split across cores. Columns
+// are partitioned into contiguous chunks, one ForkJoin task per chunk, and the tasks are joined after every
+// observation. Scores are identical to CompiledProfileHMM.logOddsViterbiScore().
+//
+// Every cell depends only on the previous row, except for soft bypasses (whose running maximum runs across the
+// row) and the silent DELETE chain. While computing its columns, each chunk also collects the soft bypass sources
+// in the new row that are within softBypassSlack of the chunk's best key. At the next stage, a chunk seeds its
+// running maximum with the sources collected by the chunks to its left; sources that a chunk dropped could never
+// survive against the whole row's best key either. The DELETE chain is filled in sequentially after the join.
+//
+// Models with fewer than minCols columns are scored by the sequential engine, because the join costs more than
+// it saves.
+//
+
+
+public class ParallelViterbi implements LogOddsViterbiScorer
+{
+	public final static int						DEFAULT_MIN_COLS		= 1000;
+	private final static int					MIN_CHUNK_COLS			= 128;
+	private final static float					ZERO					= CompiledProfileHMM.ZERO;
+
+	private static int							minCols					= DEFAULT_MIN_COLS;
+
+	private CompiledProfileHMM					model;
+	private ForkJoinPool						pool;
+	private int									nChunks;
+	private int[]								chunkStarts;			// length nChunks+1
+
+
+	public ParallelViterbi(CompiledProfileHMM model)
+	{
+		this(model, ForkJoinPool.commonPool());
+	}
+
+
+	public ParallelViterbi(CompiledProfileHMM model, ForkJoinPool pool)
+	{
+		this.model = model;
+		this.pool = pool;
+
+		int nCols = model.getNCols();
+		nChunks = Math.max(1, Math.min(pool.getParallelism(), nCols / MIN_CHUNK_COLS));
+		if (nCols < minCols)
+			nChunks = 1;
+		chunkStarts = new int[nChunks+1];
+		for (int i=0; i<=nChunks; i++)
+			chunkStarts[i] = (int)((long)nCols * i / nChunks);
+	}
+
+
+	// Models with fewer columns than this are scored sequentially. Applies to ParallelViterbis constructed later.
+	public static void setMinCols(int n)
+	{
+		assert n > 0;
+		minCols = n;
+	}
+
+
+	public static int getMinCols()			{ return minCols; }
+	public int getNChunks()					{ return nChunks; }
+
+
+	public float logOddsViterbiScore(int[] symbols) throws HMMException
+	{
+		if (nChunks == 1)
+			return model.logOddsViterbiScore(symbols);
+
+		if (symbols.length == 0)
+			throw new HMMException("Empty input, no Viterbi path");
+
+		Stage stage = new Stage();
+		model.generateFirstRow(stage.prevRow, symbols[0]);
+		for (int chunk=0; chunk<nChunks; chunk++)
+			stage.collectSoftBypassSources(stage.prevRow, chunk, stage.prevSources);
+		for (int i=1; i<symbols.length; i++)
+			stage.advance(symbols[i]);
+
+		return model.finalRowToScore(stage.prevRow);
+	}
+
+
+	// Rows and soft bypass sources for one query. Two of each are allocated, and they are swapped at every
+	// observation.
+	private class Stage
+	{
+		private float[]								prevRow			= new float[model.rowLength];
+		private float[]								nextRow			= new float[model.rowLength];
+		private int[][]								prevSources		= new int[nChunks][];
+		private int[][]								nextSources		= new int[nChunks][];
+		private CompiledProfileHMM.SoftBypassMax[]	softMaxes		= new CompiledProfileHMM.SoftBypassMax[nChunks];
+
+		Stage()
+		{
+			for (int chunk=0; chunk<nChunks; chunk++)
+				softMaxes[chunk] = model.newSoftBypassMax();
+		}
+
+		void advance(int symbol)
+		{
+			if (symbol < 0)
+			{
+				Arrays.fill(nextRow, ZERO);
+				Arrays.fill(nextSources, new int[0]);
+			}
+			else
+			{
+				List<ForkJoinTask<?>> tasks = new ArrayList<>(nChunks);
+				for (int chunk=0; chunk<nChunks; chunk++)
+				{
+					final int c = chunk;
+					tasks.add(ForkJoinTask.adapt(() -> generateNextRowChunk(symbol, c)));
+				}
+				pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+				if (model.hasDeleteChain)
+					model.fillDeleteChain(nextRow, ZERO);
+			}
+
+			float[] swapRow = prevRow;
+			prevRow = nextRow;
+			nextRow = swapRow;
+			int[][] swapSources = prevSources;
+			prevSources = nextSources;
+			nextSources = swapSources;
+		}
+
+		private void generateNextRowChunk(int symbol, int chunk)
+		{
+			CompiledProfileHMM.SoftBypassMax softMax = softMaxes[chunk];
+			softMax.clear();
+			if (model.softBypassStarts == null)
+			{
+				for (int leftChunk=0; leftChunk<chunk; leftChunk++)
+					for (int srcCol: prevSources[leftChunk])
+						softMax.admit(srcCol, prevRow[CompiledProfileHMM.matchIndex(srcCol)], model.softBypassKeyOffsets.get(srcCol));
+			}
+			model.generateNextRowSegment(prevRow, nextRow, symbol, softMax, chunkStarts[chunk], chunkStarts[chunk+1]);
+			collectSoftBypassSources(nextRow, chunk, nextSources);
+		}
+
+		// A chunk's sources are the ones admitted by its columns, i.e. 2 columns to the left.
+		void collectSoftBypassSources(float[] row, int chunk, int[][] sources)
+		{
+			if (model.softBypassStarts != null)
+				return;
+			int fromSrcCol = Math.max(0, chunkStarts[chunk] - 2);
+			int toSrcCol = chunkStarts[chunk+1] - 2;
+			double maxKey = Double.NEGATIVE_INFINITY;
+			int n = 0;
+			for (int srcCol=fromSrcCol; srcCol<toSrcCol; srcCol++)
+			{
+				float keyOffset = model.softBypassKeyOffsets.get(srcCol);
+				float score = row[CompiledProfileHMM.matchIndex(srcCol)];
+				if (keyOffset != ZERO  &&  score != ZERO)
+				{
+					maxKey = Math.max(maxKey, (double)score + keyOffset);
+					n++;
+				}
+			}
+			int[] ret = new int[n];
+			n = 0;
+			for (int srcCol=fromSrcCol; srcCol<toSrcCol; srcCol++)
+			{
+				float keyOffset = model.softBypassKeyOffsets.get(srcCol);
+				float score = row[CompiledProfileHMM.matchIndex(srcCol)];
+				if (keyOffset != ZERO  &&  score != ZERO  &&  (double)score + keyOffset >= maxKey - model.softBypassSlack)
+					ret[n++] = srcCol;
+			}
+			sources[chunk] = Arrays.copyOf(ret, n);
+		}
+	}  // Stage
+}
@@ -0,0 +1,130 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Log-odds Viterbi for many queries against one CompiledProfileHMM, sharing the DP rows of common prefixes. The
+// rows for a prefix don't depend on what follows it, so queries are sorted, and each query only computes the rows
+// after its longest common prefix with the previous query. That visits the queries' prefix trie depth first,
+// computing each trie node's row once. Only the rows of the current path from the root are kept, so memory is
+// bounded by the longest query.
+//
+// Per query, the arithmetic is the same as CompiledProfileHMM.logOddsViterbiScore(), so scores are identical.
+//
+
+
+public class PrefixSharingViterbi
+{
+	private final static float			ZERO			= CompiledProfileHMM.ZERO;
+
+	private CompiledProfileHMM			model;
+
+	// For most recent batch.
+	private long						nRowsComputed;
+	private long						nRowsShared;
+
+
+	public PrefixSharingViterbi(CompiledProfileHMM model)
+	{
+		this.model = model;
+	}
+
+
+	public long getNRowsComputed()		{ return nRowsComputed; }
+	public long getNRowsShared()		{ return nRowsShared; }
+
+
+	public float[] logOddsViterbiScores(List<String> queries)
+	{
+		List<int[]> encoded = new ArrayList<>(queries.size());
+		for (String query: queries)
+			encoded.add(model.encode(query));
+		return logOddsViterbiScoresOfSymbols(encoded);
+	}
+
+
+	// Scores are in the order of the input. As in BatchViterbi, queries with no Viterbi path, including empty
+	// queries, score Float.NEGATIVE_INFINITY.
+	public float[] logOddsViterbiScoresOfSymbols(List<int[]> queries)
+	{
+		nRowsComputed = 0;
+		nRowsShared = 0;
+		Integer[] order = new Integer[queries.size()];
+		for (int i=0; i<order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (i, j) -> compare(queries.get(i), queries.get(j)));
+
+		// rows.get(i) is the row after symbol i of the current path.
+		List<float[]> rows = new ArrayList<>();
+		float[] scores = new float[queries.size()];
+		int[] prevQuery = new int[0];
+		CompiledProfileHMM.SoftBypassMax softMax = model.newSoftBypassMax();
+		for (int index: order)
+		{
+			int[] query = queries.get(index);
+			int nShared = commonPrefixLength(prevQuery, query);
+			nRowsShared += nShared;
+			for (int i=nShared; i<query.length; i++)
+			{
+				if (i == rows.size())
+					rows.add(new float[model.rowLength]);
+				if (i == 0)
+					model.generateFirstRow(rows.get(0), query[0]);
+				else
+					model.generateNextRow(rows.get(i-1), rows.get(i), query[i], softMax);
+				nRowsComputed++;
+			}
+			prevQuery = query;
+
+			try
+			{
+				scores[index] = (query.length == 0)  ?  ZERO  :  model.finalRowToScore(rows.get(query.length-1));
+			}
+			catch (HMMException x)
+			{
+				scores[index] = ZERO;
+			}
+		}
+		return scores;
+	}
+
+
+	// Lexicographic, shorter first on a tie. Same as Java 9's Arrays.compare(), which isn't in Java 8.
+	private static int compare(int[] a, int[] b)
+	{
+		int n = commonPrefixLength(a, b);
+		return (n < a.length  &&  n < b.length)  ?  Integer.compare(a[n], b[n])  :  Integer.compare(a.length, b.length);
+	}
+
+
+	private static int commonPrefixLength(int[] a, int[] b)
+	{
+		int n = 0;
+		while (n < a.length  &&  n < b.length  &&  a[n] == b[n])
+			n++;
+		return n;
+	}
+
+
+	public String toString()
+	{
+		return "PrefixSharingViterbi: " + nRowsComputed + " rows computed, " + nRowsShared + " rows shared, " + model;
+	}
+}
@@ -34,6 +34,8 @@ public class ProfileHMM extends HMM<String, Character>
 	private final static float				DFLT_P_MATCH_TO_INSERT	= 0.01f;
 	private final static float				DFLT_P_INSERT_TO_SELF	= 0.01f;
 	private final static float				SOFT_DELETE_TAX_RATE	= 0.01f;
+	private final static float				DELETE_CLOSE_PSEUDOCOUNT= 1f;
+	private final static int				MIN_BAND_HALF_WIDTH		= 16;
 	private final static Set<Character> 	ALL_EMISSIONS;
 	
 	private String							stateIndexFormatter;				// usually "%03d"
@@ -49,22 +51,51 @@ public class ProfileHMM extends HMM<String, Character>
 	}
 	
 	
+	// How DELETE states are represented. FOLDED replaces each DELETE state with direct MATCH->MATCH bypass
+	// transitions, so every state emits. SILENT_CHAIN keeps one non-emitting DELETE state per column, chained
+	// D_j -> D_(j+1) in column order. Chained models have O(nCols) transitions but only approximate the folded
+	// model's deletion lengths, and they can only be scored by the compiled engine. See DeleteModeReport.
+	public enum DeleteMode
+	{
+		FOLDED, SILENT_CHAIN
+	}
+	
+	
 	private static boolean					verboseConstruction;
 	
 	private int								nTrainingSeqs;			
+	private int								nCols;
+	private DeleteMode						deleteMode;
+	private int								bandHalfWidth;					// for banded Viterbi
 	private List<String>					orderedHardDeleteStates;		// forced by indels in training alignment
+	private transient CompiledProfileHMM	compiled;						// built on demand
+	private transient LogOddsViterbiScorer	vectorScorer;					// built on demand
+	private transient CheckpointedViterbi	checkpointed;					// built on demand
 	
 		
 	public ProfileHMM(Alignment alignment)
 	{
-		init(alignment, DFLT_PSEUDOPROBABILITY);
+		this(alignment, DeleteMode.FOLDED);
+	}
+	
+	
+	public ProfileHMM(Alignment alignment, DeleteMode deleteMode)
+	{
+		init(alignment, DFLT_PSEUDOPROBABILITY, deleteMode);
 	}
 	
 	
 	// File must be fasta.
 	public ProfileHMM(File file) throws IOException
 	{
-		init(new Alignment(file), DFLT_PSEUDOPROBABILITY);
+		this(file, DeleteMode.FOLDED);
+	}
+	
+	
+	// File must be fasta.
+	public ProfileHMM(File file, DeleteMode deleteMode) throws IOException
+	{
+		init(new Alignment(file), DFLT_PSEUDOPROBABILITY, deleteMode);
 	}
 	
 	
@@ -74,13 +105,14 @@ public class ProfileHMM extends HMM<String, Character>
 	}
 	
 	
-	private void init(Alignment alignment, float pseudoprob)
+	private void init(Alignment alignment, float pseudoprob, DeleteMode deleteMode)
 	{
+		this.deleteMode = deleteMode;
 		nTrainingSeqs = alignment.size();
 		
 		// Compute a string formatter for the index portion of state names. For a normal-size protein this
 		// will generally be "%03d". The zero forces leading zeros, so alpha sorting equals numeric sorting.
-		int nCols = alignment.nCols();
+		nCols = alignment.nCols();
 		int nDigits = ("" + nCols).length();
 		stateIndexFormatter = "%0" + nDigits + "d";
 		
@@ -119,6 +151,7 @@ public class ProfileHMM extends HMM<String, Character>
 		DualKeyProbabilityDistribution<String, String> localTransitionProbs = new DualKeyProbabilityDistribution<>();
 		super.setTransitionProbs(localTransitionProbs);
 		ArrayList<TreeBinCounter<Integer>> gapLengthCtrsByStartCol = alignment.getGapLengthCtrsByStartCol();  // for DELETE states
+		bandHalfWidth = computeBandHalfWidth(gapLengthCtrsByStartCol, alignment.nRows());
 		orderedHardDeleteStates = new ArrayList<>();
 		for (int fromCol=-1; fromCol<alignment.nCols(); fromCol++)
 		{
@@ -154,6 +187,8 @@ public class ProfileHMM extends HMM<String, Character>
 			float oldPEmitEmit = localTransitionProbs.get(fromEmitState, toEmitState);
 			localTransitionProbs.put(fromEmitState, toEmitState, oldPEmitEmit-pToDelete);
 			assert localTransitionProbs.get(fromEmitState).checkIntegrity() == null;
+			if (deleteMode == DeleteMode.SILENT_CHAIN)
+				continue;											// DELETE chain transitions are assigned below
 			float nIndelRunOpensInToCol = gapLenCtr.getSumOfAllCounts();
 			for (Integer runLength: gapLenCtr.keySet())
 			{
@@ -168,18 +203,23 @@ public class ProfileHMM extends HMM<String, Character>
 		// Add a "soft" DELETE state "above" every match state that doesn't already have a hard DELETE state. A soft DELETE
 		// state provides low-probability shortcuts to all subsequent match states, for generating and evaluating sequences that
 		// would otherwise be too short.
+		// In SILENT_CHAIN mode hard DELETE states don't have their outgoing transitions yet, so they're recognized
+		// by name rather than by having a row.
 		if (verboseConstruction)
 			sop("soft delete states");
+		Set<String> hardDeleteStates = new HashSet<>(orderedHardDeleteStates);
 		for (int col=0; col<alignment.nCols(); col++)
 		{
 			String softDelName = colNumToDeleteName(col);
-			if (localTransitionProbs.containsKey(softDelName))
+			if (hardDeleteStates.contains(softDelName))
 				continue;											// there's already a hard DELETE state here
 			// Provide a low-probability shortcut from prevMatchName, around col's MATCH state.
 			String prevMatchName = colNumToMatchName(col-1); 
 			DiscreteProbabilityDistribution<String> transitionsFromPrevMatch = localTransitionProbs.get(prevMatchName);
 			transitionsFromPrevMatch.tax(SOFT_DELETE_TAX_RATE);
 			transitionsFromPrevMatch.put(softDelName, SOFT_DELETE_TAX_RATE);
+			if (deleteMode == DeleteMode.SILENT_CHAIN)
+				continue;
 			// Assign a transition probability from the new soft delete state to all subsequent MATCH states. Closer
 			// MATCH states have higher probability.
 			DiscreteProbabilityDistribution<String> transitionsFromNewSoftDel = new DiscreteProbabilityDistribution<>();
@@ -193,6 +233,34 @@ public class ProfileHMM extends HMM<String, Character>
 			localTransitionProbs.put(softDelName, transitionsFromNewSoftDel);
 		}	
 		
+		// In SILENT_CHAIN mode, every DELETE state either closes into the next MATCH state or extends to the next
+		// DELETE state. The DELETE states stay in the model, so we're done with transitions.
+		if (deleteMode == DeleteMode.SILENT_CHAIN)
+		{
+			if (verboseConstruction)
+				sop("delete chain");
+			float[] pCloseByCol = computeDeleteCloseProbs(gapLengthCtrsByStartCol);
+			for (int col=0; col<alignment.nCols(); col++)
+			{
+				String deleteState = colNumToDeleteName(col);
+				if (col == alignment.nCols()-1)
+				{
+					localTransitionProbs.put(deleteState, STOP_STATE_NAME, 1f);
+					continue;
+				}
+				localTransitionProbs.put(deleteState, colNumToMatchName(col+1), pCloseByCol[col]);
+				localTransitionProbs.put(deleteState, colNumToDeleteName(col+1), 1f-pCloseByCol[col]);
+			}
+			for (int col=0; col<alignment.nCols(); col++)
+			{
+				String matchState = colNumToMatchName(col);
+				String err = localTransitionProbs.get(matchState).checkIntegrity();
+				assert err == null  :  "Integrity inconsistency for " + matchState + ":\n" + err;
+			}
+			finishInit(localTransitionProbs, localEmissionProbs);
+			return;
+		}
+		
 		// DELETE states don't emit, so they mess up the Viterbi, Forward, and Backward algorithms. Since they are really
 		// adjustments to the the MATCH states that they connect, they can be modeled by adjusting transition probabilities
 		// among MATCH states. The only hitch is that after this adjustment, the transition probabilities are no longer
@@ -241,8 +309,19 @@ public class ProfileHMM extends HMM<String, Character>
 			.stream()
 			.forEach(s -> localTransitionProbs.remove(s));
 
+		finishInit(localTransitionProbs, localEmissionProbs);
+		
+		// Assert no DELETE states survive.
+		for (String s: collectStates())
+			assert !isDeleteState(s);
+	}
+	
+	
+	private void finishInit(DualKeyProbabilityDistribution<String, String> localTransitionProbs,
+							DualKeyProbabilityDistribution<String, Character> localEmissionProbs)
+	{
 		// Convert START state to an initial state distribution.
-		localInitialProbs = localTransitionProbs.get(START_STATE_NAME);
+		DiscreteProbabilityDistribution<String> localInitialProbs = localTransitionProbs.get(START_STATE_NAME);
 		localTransitionProbs.remove(START_STATE_NAME);
 		
 		// Set distributions in superclass. Allows calls to superclass method HMM.collectStates().
@@ -250,10 +329,6 @@ public class ProfileHMM extends HMM<String, Character>
 		setTransitionProbs(localTransitionProbs);
 		setEmissionProbs(localEmissionProbs);
 		
-		// Assert no DELETE states survive.
-		for (String s: collectStates())
-			assert !isDeleteState(s);
-		
 		// Assert no references to START state survive.
 		assert localInitialProbs == initialStateProbs;
 		assert !localInitialProbs.containsKey(START_STATE_NAME);
@@ -276,6 +351,66 @@ public class ProfileHMM extends HMM<String, Character>
 	}	
 	
 	
+	// A training sequence drifts off the alignment's diagonal by its total gap length, and one long gap run
+	// moves it abruptly. The suggested band allows for the longest run plus the mean total gap length.
+	private static int computeBandHalfWidth(ArrayList<TreeBinCounter<Integer>> gapLengthCtrsByStartCol, int nRows)
+	{
+		int maxRunLength = 0;
+		long nGapCols = 0;
+		for (TreeBinCounter<Integer> gapLenCtr: gapLengthCtrsByStartCol)
+		{
+			for (Integer runLength: gapLenCtr.keySet())
+			{
+				maxRunLength = Math.max(maxRunLength, runLength);
+				nGapCols += runLength * gapLenCtr.getCountForBin(runLength);
+			}
+		}
+		int meanGapCols = (int)Math.ceil(nGapCols / (double)nRows);
+		return Math.max(MIN_BAND_HALF_WIDTH, maxRunLength + meanGapCols);
+	}
+	
+	
+	// For SILENT_CHAIN mode. For each column, the probability that a gap run covering the column ends there,
+	// i.e. that D_col closes into M_(col+1) rather than extending to D_(col+1). Laplace-smoothed, so columns
+	// that no gap run covers (soft DELETE states) get 1/2.
+	private static float[] computeDeleteCloseProbs(ArrayList<TreeBinCounter<Integer>> gapLengthCtrsByStartCol)
+	{
+		int nCols = gapLengthCtrsByStartCol.size();
+		long[] nRunsCovering = new long[nCols];
+		long[] nRunsEnding = new long[nCols];
+		for (int startCol=0; startCol<nCols; startCol++)
+		{
+			TreeBinCounter<Integer> gapLenCtr = gapLengthCtrsByStartCol.get(startCol);
+			for (Integer runLength: gapLenCtr.keySet())
+			{
+				long count = gapLenCtr.getCountForBin(runLength);
+				int endCol = startCol + runLength - 1;
+				for (int col=startCol; col<=endCol; col++)
+					nRunsCovering[col] += count;
+				nRunsEnding[endCol] += count;
+			}
+		}
+		
+		float[] ret = new float[nCols];
+		for (int col=0; col<nCols; col++)
+			ret[col] = (nRunsEnding[col] + DELETE_CLOSE_PSEUDOCOUNT) / (nRunsCovering[col] + 2*DELETE_CLOSE_PSEUDOCOUNT);
+		return ret;
+	}
+	
+	
+	// Log-odds of the transition M_srcCol -> M_destCol that replaces soft DELETE state D_(srcCol+1) after folding. Repeats
+	// the float arithmetic of init() and assignRemainingProbabilitiesLinearDescent(), so the result is identical to the
+	// stored value. destCol == nCols means STOP. Lets CompiledProfileHMM evaluate soft bypasses without storing them.
+	static float softBypassLogOdds(int nCols, int srcCol, int destCol)
+	{
+		int nRemaining = nCols - srcCol - 1;					// MATCH states after the soft DELETE state, plus STOP
+		float denom = nRemaining * (nRemaining+1) / 2;
+		float numer = nCols + 1 - destCol;
+		float pFromDelete = 1f * numer / denom;
+		return (float)Math.log10(SOFT_DELETE_TAX_RATE * pFromDelete);
+	}
+	
+	
 	public static int stateNameToColNum(String s)
 	{
 		return s.equals(START_STATE_NAME)  ?  -1  :  Integer.parseInt(s.substring(2));
@@ -356,17 +491,192 @@ public class ProfileHMM extends HMM<String, Character>
 	// recent stage is retained.
 	public float logOddsViterbiScore(List<Character> observations) throws HMMException
 	{
+		if (deleteMode == DeleteMode.SILENT_CHAIN)
+		{
+			StringBuilder sb = new StringBuilder();
+			observations.forEach(sb::append);
+			return compiledLogOddsViterbiScore(sb.toString());
+		}
 		ViterbiReport<String> rep = viterbiWithLogOdds(observations, false);
 		return rep.getLogOdds().get();
 	}
 	
 	
+	// Same value as logOddsViterbiScore(), unless the score is certainly below threshold. Then scoring stops as soon
+	// as that's certain, and some value below threshold is returned. Float.NEGATIVE_INFINITY disables early abandon.
+	// Uses the compiled form of this model.
+	public float logOddsViterbiScore(String sObservations, float threshold) throws HMMException
+	{
+		CompiledProfileHMM compiled = compile();
+		return compiled.logOddsViterbiScore(compiled.encode(sObservations), threshold);
+	}
+	
+	
+	// Same value as logOddsViterbiScore(), computed by the compiled int-indexed form of this model.
+	public float compiledLogOddsViterbiScore(String sObservations) throws HMMException
+	{
+		return compile().logOddsViterbiScore(sObservations);
+	}
+	
+	
+	// Uses SIMD if the JVM was started with "--add-modules jdk.incubator.vector", otherwise the same as
+	// compiledLogOddsViterbiScore(). Agrees with compiledLogOddsViterbiScore() to within float tolerance.
+	public float compiledVectorLogOddsViterbiScore(String sObservations) throws HMMException
+	{
+		CompiledProfileHMM compiled = compile();
+		LogOddsViterbiScorer scorer;
+		synchronized (this)
+		{
+			if (vectorScorer == null)
+				vectorScorer = compiled.newVectorScorer();
+			scorer = vectorScorer;
+		}
+		return scorer.logOddsViterbiScore(compiled.encode(sObservations));
+	}
+	
+	
+	// Splits each Viterbi stage across the cores of the common ForkJoin pool, if this model has at least
+	// ParallelViterbi.getMinCols() columns. Same value as compiledLogOddsViterbiScore().
+	public float compiledParallelLogOddsViterbiScore(String sObservations) throws HMMException
+	{
+		CompiledProfileHMM compiled = compile();
+		return new ParallelViterbi(compiled).logOddsViterbiScore(compiled.encode(sObservations));
+	}
+	
+	
+	// Scores many queries against this model, several at a time, in input order. Same values as
+	// compiledLogOddsViterbiScore(), except that queries with no Viterbi path score Float.NEGATIVE_INFINITY.
+	public float[] compiledBatchLogOddsViterbiScores(List<String> queries)
+	{
+		return new BatchViterbi(compile()).logOddsViterbiScores(queries);
+	}
+	
+	
+	// Same values as compiledBatchLogOddsViterbiScores(). Queries that share a prefix share the DP rows for that
+	// prefix, which saves most of the work for reads that mostly start the same way.
+	public float[] compiledPrefixSharingLogOddsViterbiScores(List<String> queries)
+	{
+		return new PrefixSharingViterbi(compile()).logOddsViterbiScores(queries);
+	}
+	
+	
+	// Approximate, never above the exact score. Only computes cells near the diagonal, widening the band if the best
+	// path touches its edge. Band half-width is derived from the training alignment's gap statistics. See
+	// BandedViterbi.
+	public float compiledBandedLogOddsViterbiScore(String sObservations) throws HMMException
+	{
+		return compiledBandedLogOddsViterbiScore(sObservations, bandHalfWidth);
+	}
+	
+	
+	public float compiledBandedLogOddsViterbiScore(String sObservations, int bandHalfWidth) throws HMMException
+	{
+		return new BandedViterbi(compile()).logOddsViterbiScore(sObservations, bandHalfWidth);
+	}
+	
+	
+	// Glocal scoring for fragments such as mini-barcodes: the whole query is aligned, but the path may enter and leave
+	// the model at any MATCH state. Only computes cells near the fragment's diagonal, so the score is approximate
+	// unless the diagonal can't be found, and reports the model columns that the fragment covers. See FragmentViterbi.
+	public FragmentReport compiledFragmentViterbi(String sObservations) throws HMMException
+	{
+		return compiledFragmentViterbi(sObservations, bandHalfWidth);
+	}
+	
+	
+	public FragmentReport compiledFragmentViterbi(String sObservations, int bandHalfWidth) throws HMMException
+	{
+		return new FragmentViterbi(compile()).viterbi(sObservations, bandHalfWidth);
+	}
+	
+	
+	// Finds this model's regions in a long sequence such as a contig, with memory linear in the sequence's length.
+	// Returns non-overlapping hits scoring at least minScore against a uniform background, best first. See
+	// ScanViterbi.
+	public List<ScanHit> compiledScan(String sObservations, float minScore)
+	{
+		return new ScanViterbi(compile()).scan(sObservations, minScore);
+	}
+	
+	
+	// Approximate. Keeps at most maxStates cells, and only cells within maxDelta of the best cell, at every stage.
+	// Never higher than compiledLogOddsViterbiScore(). See BeamViterbi for pruning statistics.
+	public float compiledBeamLogOddsViterbiScore(String sObservations, int maxStates, float maxDelta) throws HMMException
+	{
+		return new BeamViterbi(compile(), maxStates, maxDelta).logOddsViterbiScore(sObservations);
+	}
+	
+	
+	// Approximate, in 16-bit integers. Never lower than compiledLogOddsViterbiScore() by more than
+	// ShortViterbi.getErrorBound().
+	public float compiledShortLogOddsViterbiScore(String sObservations) throws HMMException
+	{
+		return new ShortViterbi(compile()).logOddsViterbiScore(sObservations);
+	}
+	
+	
+	// Forward rather than Viterbi: log10 of the total probability of all paths that emit the query, which is never
+	// lower than the Viterbi score. Within CompiledForward.TABLE_ERROR per sum of exact, before float rounding.
+	public float compiledLogOddsForwardScore(String sObservations) throws HMMException
+	{
+		return new CompiledForward(compile()).logOddsForwardScore(sObservations);
+	}
+	
+	
+	// Same value as compiledLogOddsForwardScore(), unless the score is certainly below threshold. Then scoring stops
+	// as soon as that's certain, and some value below threshold is returned.
+	public float compiledLogOddsForwardScore(String sObservations, float threshold) throws HMMException
+	{
+		return new CompiledForward(compile()).logOddsForwardScore(sObservations, threshold);
+	}
+	
+	
+	// For a query that arrives in chunks. See ViterbiSession.
+	public ViterbiSession newViterbiSession()
+	{
+		return new ViterbiSession(compile());
+	}
+	
+	
+	// The compiled form is built on first call and then reused.
+	public synchronized CompiledProfileHMM compile()
+	{
+		if (compiled == null)
+			compiled = new CompiledProfileHMM(this);
+		return compiled;
+	}
+	
+	
 	public ViterbiReport<String> viterbiWithLogOdds(List<Character> observations, boolean retainPath) throws HMMException
 	{
 		observations.removeIf(ch -> ch.equals('-'));
 		if (observations.isEmpty())
 			return null;
 
+		// The path is computed from checkpoints, in O(nStates * sqrt(L)) memory, by the compiled engine's row
+		// recurrence. The map-based stages would retain every predecessor's score for every cell.
+		if (retainPath)
+		{
+			CheckpointedViterbi engine;
+			synchronized (this)
+			{
+				if (checkpointed == null)
+					checkpointed = new CheckpointedViterbi(this);
+				engine = checkpointed;
+			}
+			return engine.viterbiWithLogOdds(observations);
+		}
+		return mapBasedViterbiWithLogOdds(observations, false);
+	}
+
+
+	// The original map-based Viterbi. With retainPath, it's the reference for CheckpointedViterbi's paths in tests.
+	// Observations must not contain gaps.
+	ViterbiReport<String> mapBasedViterbiWithLogOdds(List<Character> observations, boolean retainPath) throws HMMException
+	{
+		if (deleteMode == DeleteMode.SILENT_CHAIN)
+			throw new HMMException("Silent DELETE states require the compiled engine, e.g. compiledLogOddsViterbiScore()");
+
 		// Compute first stage.
 		Stack<LogOddsDPStage<String>> stages = new Stack<>();
 		LogOddsDPStage<String> firstStage = new LogOddsDPStage<>();
@@ -553,6 +863,34 @@ public class ProfileHMM extends HMM<String, Character>
 	}
 	
 	
+	public int getNCols()
+	{
+		return nCols;
+	}
+	
+	
+	public int getBandHalfWidth()
+	{
+		return bandHalfWidth;
+	}
+	
+	
+	public DeleteMode getDeleteMode()
+	{
+		return deleteMode;
+	}
+	
+	
+	public int getNTransitions()
+	{
+		return
+			transitionProbs.values()
+			.stream()
+			.mapToInt(Map::size)
+			.sum();
+	}
+	
+	
 	public static void main(String[] args) throws IOException, HMMException
 	{
 		sop("START");
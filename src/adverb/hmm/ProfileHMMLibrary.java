@@ -0,0 +1,254 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.io.*;
+import java.nio.LongBuffer;
+import java.util.*;
+
+
+//
+// A named collection of compiled models, e.g. one per genus. For scoring, models are sorted by column count and
+// packed into ModelPacks of nLanes models each, so that models in a pack have similar lengths and little padding.
+// Packs are VectorModelPacks when the Vector API is available (see ModelPack.newPack()), and are rebuilt after models
+// are added. A library can be saved to a ModelLibraryFile and mapped back in, in
+// which case each model is only read from the mapping when it's first needed. Models may have a ModelSource, and the
+// library may have a K-mer summary of the training sequences (see StrandDetector); both are saved with the models.
+//
+
+
+public class ProfileHMMLibrary
+{
+	public final static int						DEFAULT_N_LANES			= 16;	// 1, 2, or 4 vectors of 512, 256, or 128 bits
+	public final static int						DEFAULT_N_FINALISTS		= 10;
+
+	private int									nLanes;
+	private List<String>						names					= new ArrayList<>();
+	private Map<String, Integer>				nameToIndex				= new HashMap<>();		// first model of each name
+	private List<CompiledProfileHMM>			models					= new ArrayList<>();
+	private List<Integer>						nCols					= new ArrayList<>();	// by model, known without reading the model
+	private List<ModelSource>					sources					= new ArrayList<>();	// by model, null if unknown
+	private LongBuffer							kmerSummary;			// null if none
+	private List<ModelPack>						packs;
+	private List<int[]>							packModelIndices;		// by pack, model index of each lane
+	private List<ShortViterbi>					filters;				// by model, for screen()
+	private List<LogOddsViterbiScorer>			screeners;				// by model, vectorized filters if available
+
+
+	public ProfileHMMLibrary()
+	{
+		this(DEFAULT_N_LANES);
+	}
+
+
+	public ProfileHMMLibrary(int nLanes)
+	{
+		assert nLanes > 0;
+		this.nLanes = nLanes;
+	}
+
+
+	// Models are read from the file's mapping when they're first needed.
+	public static ProfileHMMLibrary map(File file) throws IOException
+	{
+		return map(file, DEFAULT_N_LANES);
+	}
+
+
+	public static ProfileHMMLibrary map(File file, int nLanes) throws IOException
+	{
+		ModelLibraryFile libraryFile = new ModelLibraryFile(file);
+		ProfileHMMLibrary library = new ProfileHMMLibrary(nLanes);
+		for (int i=0; i<libraryFile.size(); i++)
+		{
+			library.names.add(libraryFile.getName(i));
+			library.nameToIndex.putIfAbsent(libraryFile.getName(i), i);
+			library.nCols.add(libraryFile.getNCols(i));
+			library.sources.add(libraryFile.getSource(i));
+		}
+		library.kmerSummary = libraryFile.getKmerSummary();
+		library.models = libraryFile.asList();
+		return library;
+	}
+
+
+	public synchronized void write(File file) throws IOException
+	{
+		ModelLibraryFile.write(names, models, sources, kmerSummary, file);
+	}
+
+
+	public synchronized void add(String name, CompiledProfileHMM model)
+	{
+		add(name, model, null);
+	}
+
+
+	public synchronized void add(String name, CompiledProfileHMM model, ModelSource source)
+	{
+		if (!(models instanceof ArrayList))
+			models = new ArrayList<>(models);						// was mapped
+		nameToIndex.putIfAbsent(name, names.size());
+		names.add(name);
+		models.add(model);
+		nCols.add(model.nCols);
+		sources.add(source);
+		packs = null;
+		filters = null;
+		screeners = null;
+	}
+
+
+	public int size()									{ return models.size(); }
+	public String getName(int index)					{ return names.get(index); }
+	public CompiledProfileHMM getModel(int index)		{ return models.get(index); }
+	public int indexOf(String name)						{ return nameToIndex.getOrDefault(name, -1); }
+	public ModelSource getSource(int index)				{ return sources.get(index); }
+	public LongBuffer getKmerSummary()					{ return kmerSummary; }
+	public void setKmerSummary(LongBuffer kmerSummary)	{ this.kmerSummary = kmerSummary; }
+
+
+	public synchronized List<ModelPack> getPacks()
+	{
+		if (packs == null)
+			pack();
+		return packs;
+	}
+
+
+	private void pack()
+	{
+		Integer[] order = new Integer[models.size()];
+		for (int i=0; i<order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (i, j) -> nCols.get(i) - nCols.get(j));
+
+		packs = new ArrayList<>();
+		packModelIndices = new ArrayList<>();
+		for (int start=0; start<order.length; start+=nLanes)
+		{
+			int nInPack = Math.min(nLanes, order.length - start);
+			int[] indices = new int[nInPack];
+			List<CompiledProfileHMM> packModels = new ArrayList<>();
+			for (int lane=0; lane<nInPack; lane++)
+			{
+				indices[lane] = order[start+lane];
+				packModels.add(models.get(indices[lane]));
+			}
+			packs.add(ModelPack.newPack(packModels));
+			packModelIndices.add(indices);
+		}
+	}
+
+
+	// One score per model, in the order the models were added. Same values as each model's own
+	// logOddsViterbiScore(), except that a model with no Viterbi path scores Float.NEGATIVE_INFINITY.
+	public float[] logOddsViterbiScores(String sObservations)
+	{
+		List<ModelPack> packs;
+		List<int[]> packModelIndices;
+		synchronized (this)
+		{
+			packs = getPacks();
+			packModelIndices = this.packModelIndices;
+		}
+
+		float[] scores = new float[models.size()];
+		for (int n=0; n<packs.size(); n++)
+		{
+			float[] packScores = packs.get(n).logOddsViterbiScores(sObservations);
+			int[] indices = packModelIndices.get(n);
+			for (int lane=0; lane<indices.length; lane++)
+				scores[indices[lane]] = packScores[lane];
+		}
+		return scores;
+	}
+
+
+	// Scores every model with the 16-bit ShortViterbi, vectorized if possible (see ShortViterbi.newVectorScorer()),
+	// then rescores the nFinalists best with each model's exact logOddsViterbiScore(). The report says whether any
+	// other model might have beaten the best finalist.
+	public ScreeningReport screen(String sObservations, int nFinalists)
+	{
+		List<ShortViterbi> filters;
+		List<LogOddsViterbiScorer> screeners;
+		synchronized (this)
+		{
+			if (this.filters == null)
+			{
+				this.filters = new ArrayList<>();
+				this.screeners = new ArrayList<>();
+				for (CompiledProfileHMM model: models)
+				{
+					ShortViterbi filter = new ShortViterbi(model);
+					this.filters.add(filter);
+					this.screeners.add(filter.newVectorScorer());
+				}
+			}
+			filters = this.filters;
+			screeners = this.screeners;
+		}
+
+		int nModels = filters.size();
+		float[] quantizedScores = new float[nModels];
+		double[] errorBounds = new double[nModels];
+		for (int i=0; i<nModels; i++)
+		{
+			ShortViterbi filter = filters.get(i);
+			int[] symbols = models.get(i).encode(sObservations);
+			try
+			{
+				quantizedScores[i] = screeners.get(i).logOddsViterbiScore(symbols);
+			}
+			catch (HMMException x)
+			{
+				quantizedScores[i] = Float.NEGATIVE_INFINITY;
+			}
+			errorBounds[i] = filter.getErrorBound(symbols, quantizedScores[i]);
+		}
+
+		// Rescore finalists.
+		Integer[] order = new Integer[nModels];
+		for (int i=0; i<nModels; i++)
+			order[i] = i;
+		Arrays.sort(order, (i, j) -> Float.compare(quantizedScores[j], quantizedScores[i]));
+		int nRescored = 0;
+		while (nRescored < Math.min(nFinalists, nModels)  &&  quantizedScores[order[nRescored]] != Float.NEGATIVE_INFINITY)
+			nRescored++;
+		int[] finalists = new int[nRescored];
+		float[] exactScores = new float[nRescored];
+		for (int i=0; i<nRescored; i++)
+		{
+			finalists[i] = order[i];
+			try
+			{
+				exactScores[i] = models.get(finalists[i]).logOddsViterbiScore(sObservations);
+			}
+			catch (HMMException x)
+			{
+				exactScores[i] = Float.NEGATIVE_INFINITY;
+			}
+		}
+		return new ScreeningReport(this, quantizedScores, errorBounds, finalists, exactScores);
+	}
+
+
+	public String toString()
+	{
+		return "ProfileHMMLibrary: " + models.size() + " models, packed " + nLanes + " per pass";
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+
+//
+// One region of a long sequence found by ScanViterbi: its score, its first and last positions in the scanned
+// sequence (inclusive), and the first and last model columns that its best path passes through.
+//
+
+
+public class ScanHit
+{
+	private float				score;
+	private int					start;
+	private int					end;
+	private int					firstCol;
+	private int					lastCol;
+
+
+	ScanHit(float score, int start, int end, int firstCol, int lastCol)
+	{
+		this.score = score;
+		this.start = start;
+		this.end = end;
+		this.firstCol = firstCol;
+		this.lastCol = lastCol;
+	}
+
+
+	public float getScore()					{ return score; }
+	public int getStart()					{ return start; }
+	public int getEnd()						{ return end; }
+	public int getLength()					{ return end - start + 1; }
+	public int getFirstCol()				{ return firstCol; }
+	public int getLastCol()					{ return lastCol; }
+
+
+	boolean overlaps(ScanHit that)
+	{
+		return this.start <= that.end  &&  that.start <= this.end;
+	}
+
+
+	public String toString()
+	{
+		return "Scan hit at " + start + "-" + end + ", log odds vs background = " + score + ", columns " + firstCol + "-" + lastCol;
+	}
+}
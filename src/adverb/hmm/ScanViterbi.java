@@ -0,0 +1,265 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Local Viterbi for finding a model's region inside a long sequence, such as COI in a mitogenome contig. A path may
+// start and end at any position of the sequence, and enters and leaves the model at any MATCH state with uniform
+// probability 1/nCols, as in FragmentViterbi. Local scores only make sense against a null model, so every emission
+// is scored relative to a uniform background over ACGT, and unrelated sequence scores below zero. Symbols < 0, such
+// as N, are unknown bases: paths cross them as if the model's emission equaled the background's.
+//
+// Memory is linear in the sequence's length: 2 DP rows, plus the best score, start position, and covered columns
+// of a path ending at each position. Every cell records the sequence position and model column where its path
+// started. Hits are the best-scoring paths, taken greedily from highest score down and skipping any that overlap a
+// higher one.
+//
+
+
+public class ScanViterbi
+{
+	private final static float		ZERO				= CompiledProfileHMM.ZERO;
+	public final static float		DEFAULT_MIN_SCORE	= 20;
+	private final static float		BACKGROUND_LOG_ODDS	= (float)Math.log10(0.25);
+
+	private CompiledProfileHMM		model;
+	private int						nCols;
+	private int						nStates;
+	private int						rowLength;
+	private float					entryLogOdds;				// entry to any MATCH state
+	private float					exitLogOdds;				// exit from any MATCH state
+
+
+	public ScanViterbi(CompiledProfileHMM model)
+	{
+		this.model = model;
+		nCols = model.nCols;
+		nStates = model.nStates;
+		rowLength = model.rowLength;
+		entryLogOdds = (float)-Math.log10(nCols);
+		exitLogOdds = entryLogOdds;
+	}
+
+
+	// One symbol per character, so that hit positions are positions in sObservations. Unlike model.encode(), gaps
+	// aren't dropped. Characters that the model can't emit are unknown bases.
+	public List<ScanHit> scan(String sObservations, float minScore)
+	{
+		int[] symbols = new int[sObservations.length()];
+		for (int i=0; i<symbols.length; i++)
+			symbols[i] = model.charToSymbol(sObservations.charAt(i));
+		return scan(symbols, minScore);
+	}
+
+
+	// Non-overlapping hits scoring at least minScore, best first.
+	public List<ScanHit> scan(int[] symbols, float minScore)
+	{
+		int n = symbols.length;
+		float[] endScores = new float[n];				// best path ending at each position
+		int[] endStarts = new int[n];
+		int[] endFirstCols = new int[n];
+		int[] endLastCols = new int[n];
+
+		float[] prevRow = new float[rowLength];
+		float[] nextRow = new float[rowLength];
+		int[] prevStart = new int[rowLength];
+		int[] nextStart = new int[rowLength];
+		int[] prevFirstCol = new int[rowLength];
+		int[] nextFirstCol = new int[rowLength];
+		Arrays.fill(prevRow, ZERO);
+		CompiledProfileHMM.SoftBypassMax softMax = model.newSoftBypassMax();
+
+		for (int i=0; i<n; i++)
+		{
+			generateNextRow(prevRow, prevStart, prevFirstCol, nextRow, nextStart, nextFirstCol, i, symbols[i], softMax);
+
+			// Exit from a MATCH state.
+			endScores[i] = ZERO;
+			for (int col=0; col<nCols; col++)
+			{
+				int match = CompiledProfileHMM.matchIndex(col);
+				float score = nextRow[match] + exitLogOdds;
+				if (score > endScores[i])
+				{
+					endScores[i] = score;
+					endStarts[i] = nextStart[match];
+					endFirstCols[i] = nextFirstCol[match];
+					endLastCols[i] = col;
+				}
+			}
+
+			float[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+			int[] swapStart = prevStart;
+			prevStart = nextStart;
+			nextStart = swapStart;
+			int[] swapFirstCol = prevFirstCol;
+			prevFirstCol = nextFirstCol;
+			nextFirstCol = swapFirstCol;
+		}
+
+		// Greedy non-overlapping selection, best first.
+		Integer[] ends = new Integer[n];
+		for (int i=0; i<n; i++)
+			ends[i] = i;
+		Arrays.sort(ends, (i1, i2) -> Float.compare(endScores[i2], endScores[i1]));
+		List<ScanHit> hits = new ArrayList<>();
+		for (int end: ends)
+		{
+			if (endScores[end] < minScore)
+				break;
+			ScanHit hit = new ScanHit(endScores[end], endStarts[end], end, endFirstCols[end], endLastCols[end]);
+			if (hits.stream().noneMatch(h -> h.overlaps(hit)))
+				hits.add(hit);
+		}
+		return hits;
+	}
+
+
+	// Same recurrence as FragmentViterbi over the whole model, with a fresh entry allowed at every MATCH state of
+	// every row. Emissions are relative to the background.
+	private void generateNextRow(float[] prevRow, int[] prevStart, int[] prevFirstCol,
+								 float[] nextRow, int[] nextStart, int[] nextFirstCol,
+								 int pos, int symbol, CompiledProfileHMM.SoftBypassMax softMax)
+	{
+		int emissionOffset = symbol * nStates;
+		softMax.clear();
+		for (int col=0; col<=nCols; col++)
+		{
+			// INSERT state.
+			int insert = CompiledProfileHMM.insertIndex(col);
+			float best = prevRow[insert] + model.insertToSelfLogOdds.get(col);
+			int bestPrev = insert;
+			if (col > 0)
+			{
+				int prevMatch = CompiledProfileHMM.matchIndex(col-1);
+				float score = prevRow[prevMatch] + model.matchToInsertLogOdds.get(col);
+				if (score > best)
+				{
+					best = score;
+					bestPrev = prevMatch;
+				}
+			}
+			nextRow[insert] = best + relativeEmission(symbol, emissionOffset + insert);
+			nextStart[insert] = prevStart[bestPrev];
+			nextFirstCol[insert] = prevFirstCol[bestPrev];
+			if (col == nCols)
+				break;
+
+			// MATCH state. bestPrev == -1 means a fresh entry.
+			int match = CompiledProfileHMM.matchIndex(col);
+			best = entryLogOdds;
+			bestPrev = -1;
+			float score = prevRow[insert] + model.insertToMatchLogOdds.get(col);
+			if (score > best)
+			{
+				best = score;
+				bestPrev = insert;
+			}
+			if (col > 0)
+			{
+				int prevMatch = CompiledProfileHMM.matchIndex(col-1);
+				score = prevRow[prevMatch] + model.matchToMatchLogOdds.get(col);
+				if (score > best)
+				{
+					best = score;
+					bestPrev = prevMatch;
+				}
+			}
+			for (int n=model.hardBypassStarts.get(col); n<model.hardBypassStarts.get(col+1); n++)
+			{
+				int src = CompiledProfileHMM.matchIndex(model.hardBypassSrcCols.get(n));
+				score = prevRow[src] + model.hardBypassLogOdds.get(n);
+				if (score > best)
+				{
+					best = score;
+					bestPrev = src;
+				}
+			}
+			if (model.softBypassStarts != null)
+			{
+				for (int n=model.softBypassStarts.get(col); n<model.softBypassStarts.get(col+1); n++)
+				{
+					int src = CompiledProfileHMM.matchIndex(model.softBypassSrcCols.get(n));
+					score = prevRow[src] + model.softBypassLogOdds.get(n);
+					if (score > best)
+					{
+						best = score;
+						bestPrev = src;
+					}
+				}
+			}
+			else
+			{
+				if (col >= 2  &&  model.softBypassKeyOffsets.get(col-2) != ZERO)
+					softMax.admit(col-2, prevRow[CompiledProfileHMM.matchIndex(col-2)], model.softBypassKeyOffsets.get(col-2));
+				score = softMax.mightExceed(col, best)  ?  softMax.best(prevRow, col)  :  ZERO;
+				if (score > best)
+				{
+					best = score;
+					bestPrev = CompiledProfileHMM.matchIndex(softMax.getBestSrcCol());
+				}
+			}
+			if (model.hasDeleteChain  &&  col > 0)
+			{
+				int prevDelete = model.deleteIndex(col-1);
+				score = prevRow[prevDelete] + model.deleteCloseLogOdds.get(col);
+				if (score > best)
+				{
+					best = score;
+					bestPrev = prevDelete;
+				}
+			}
+			nextRow[match] = best + relativeEmission(symbol, emissionOffset + match);
+			nextStart[match] = (bestPrev < 0)  ?  pos  :  prevStart[bestPrev];
+			nextFirstCol[match] = (bestPrev < 0)  ?  col  :  prevFirstCol[bestPrev];
+		}
+
+		if (model.hasDeleteChain)
+			fillDeleteChain(nextRow, nextStart, nextFirstCol);
+	}
+
+
+	// Emission log odds relative to the background. 0 for an unknown base.
+	private float relativeEmission(int symbol, int index)
+	{
+		return (symbol < 0)  ?  0  :  model.emissionLogOdds.get(index) - BACKGROUND_LOG_ODDS;
+	}
+
+
+	private void fillDeleteChain(float[] row, int[] start, int[] firstCol)
+	{
+		row[model.deleteIndex(0)] = ZERO;
+		for (int col=1; col<nCols; col++)
+		{
+			int delete = model.deleteIndex(col);
+			int prevMatch = CompiledProfileHMM.matchIndex(col-1);
+			int prevDelete = model.deleteIndex(col-1);
+			float fromMatch = row[prevMatch] + model.deleteOpenLogOdds.get(col);
+			float fromDelete = row[prevDelete] + model.deleteExtendLogOdds.get(col);
+			row[delete] = Math.max(fromMatch, fromDelete);
+			int bestPrev = (fromMatch >= fromDelete)  ?  prevMatch  :  prevDelete;
+			start[delete] = start[bestPrev];
+			firstCol[delete] = firstCol[bestPrev];
+		}
+	}
+}
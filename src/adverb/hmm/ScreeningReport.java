@@ -0,0 +1,104 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Result of ProfileHMMLibrary.screen(). Every model gets a quantized score from ShortViterbi; the finalists, with the
+// best quantized scores, are rescored exactly. A model that isn't a finalist can only beat the best finalist if its
+// quantized score plus its error bound reaches the best exact score. Such models are listed as uncertain, and the
+// ranking is only certain if there are none. Saturation only raises quantized scores, so it can't hide a model; it
+// can only make a model a finalist that shouldn't be, which costs an unnecessary rescore.
+//
+
+
+public class ScreeningReport
+{
+	private ProfileHMMLibrary		library;
+	private float[]					quantizedScores;	// by model, Float.NEGATIVE_INFINITY if no path
+	private double[]				errorBounds;		// by model
+	private int[]					finalists;			// model indices, best quantized score first
+	private float[]					exactScores;		// parallel to finalists, Float.NEGATIVE_INFINITY if no path
+	private int						best = -1;			// model index
+	private List<Integer>			uncertain = new ArrayList<>();
+
+
+	ScreeningReport(ProfileHMMLibrary library, float[] quantizedScores, double[] errorBounds, int[] finalists,
+					float[] exactScores)
+	{
+		this.library = library;
+		this.quantizedScores = quantizedScores;
+		this.errorBounds = errorBounds;
+		this.finalists = finalists;
+		this.exactScores = exactScores;
+
+		float bestScore = Float.NEGATIVE_INFINITY;
+		for (int i=0; i<finalists.length; i++)
+		{
+			if (exactScores[i] > bestScore)
+			{
+				bestScore = exactScores[i];
+				best = finalists[i];
+			}
+		}
+		Set<Integer> finalistSet = new HashSet<>();
+		for (int finalist: finalists)
+			finalistSet.add(finalist);
+		for (int model=0; model<quantizedScores.length; model++)
+			if (!finalistSet.contains(model)  &&  quantizedScores[model] + errorBounds[model] >= bestScore  &&  quantizedScores[model] != Float.NEGATIVE_INFINITY)
+				uncertain.add(model);
+	}
+
+
+	public int getBestIndex()						{ return best; }
+	public float getQuantizedScore(int model)		{ return quantizedScores[model]; }
+	public double getErrorBound(int model)			{ return errorBounds[model]; }
+	public int[] getFinalists()						{ return finalists; }
+	public float[] getExactScores()					{ return exactScores; }
+	public List<Integer> getUncertain()				{ return uncertain; }
+	public boolean isRankingCertain()				{ return uncertain.isEmpty(); }
+
+
+	public float getBestScore()
+	{
+		for (int i=0; i<finalists.length; i++)
+			if (finalists[i] == best)
+				return exactScores[i];
+		return Float.NEGATIVE_INFINITY;
+	}
+
+
+	public String toString()
+	{
+		String s = "Screening report: " + quantizedScores.length + " models, " + finalists.length + " rescored exactly";
+		s += "\n  Model\tQuantized\t+/-\tExact";
+		for (int i=0; i<finalists.length; i++)
+		{
+			int model = finalists[i];
+			s += "\n  " + library.getName(model) + "\t" + quantizedScores[model] + "\t" + (float)errorBounds[model] + "\t" +
+				exactScores[i];
+		}
+		if (best >= 0)
+			s += "\n  Best: " + library.getName(best) + " " + getBestScore();
+		for (int model: uncertain)
+			s += "\n  Not rescored but might be better: " + library.getName(model) + " " + quantizedScores[model] + " +/- " +
+				(float)errorBounds[model];
+		return s;
+	}
+}
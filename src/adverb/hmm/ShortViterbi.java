@@ -0,0 +1,273 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.nio.FloatBuffer;
+import java.util.*;
+
+
+//
+// Log-odds Viterbi in 16-bit saturating integers, for screening a library before exact scoring. Transitions,
+// emissions, and DP cells are shorts in units of 1/SCALE log10. Cells are relative to their row's best cell, which
+// is subtracted after every row and accumulated in a separate offset, so only the spread within a row has to fit
+// in 16 bits. Cells and terms more than about 32 log10 below zero saturate at FLOOR, including probability zero, so
+// sums need no special cases.
+//
+// Every quantized term is rounded to the nearest unit, except that saturation and soft bypasses round up, so the
+// score of every path is at least its exact score minus half a unit per term. getErrorBound() bounds the number of
+// terms in a path, so the exact score is never more than the quantized score plus getErrorBound(). Saturation can
+// make the quantized score much higher than the exact score, and can even give a score to a query that has no
+// Viterbi path, but it can never make it lower.
+//
+// Soft bypass weights are approximated by their closed form, key offset w(c, STOP) plus the largest relative weight
+// into the destination, so they cost O(1) per column and no log10.
+//
+// This class's recurrences are scalar loops over shorts. VectorShortViterbi, in src-vector, computes the same
+// scores with the incubating Vector API, twice as many cells per instruction as VectorViterbi; newVectorScorer()
+// returns one when the module is available.
+//
+
+
+public class ShortViterbi implements LogOddsViterbiScorer
+{
+	public final static int			SCALE				= 1000;
+	final static short				FLOOR				= Short.MIN_VALUE;
+
+	CompiledProfileHMM				model;
+	int								nCols;
+	int								nStates;
+	int								rowLength;
+	short[]							emissions;			// [symbol*nStates + state]
+	short[]							matchToInsert;
+	short[]							insertToSelf;
+	short[]							insertToMatch;
+	short[]							matchToMatch;
+	short[]							hardBypasses;		// parallel to model.hardBypassSrcCols
+	short[]							softBypasses;		// parallel to model.softBypassSrcCols, null if closed form
+	short[]							softKeyOffsets;		// by src col, closed form only
+	short[]							softMaxRelatives;	// by dest col, rounded up, closed form only
+	short[]							deleteOpen;
+	short[]							deleteExtend;
+	short[]							deleteClose;
+
+
+	public ShortViterbi(CompiledProfileHMM model)
+	{
+		this.model = model;
+		nCols = model.nCols;
+		nStates = model.nStates;
+		rowLength = model.rowLength;
+
+		emissions = quantize(model.emissionLogOdds);
+		matchToInsert = quantize(model.matchToInsertLogOdds);
+		insertToSelf = quantize(model.insertToSelfLogOdds);
+		insertToMatch = quantize(model.insertToMatchLogOdds);
+		matchToMatch = quantize(model.matchToMatchLogOdds);
+		hardBypasses = quantize(model.hardBypassLogOdds);
+		if (model.softBypassStarts != null)
+			softBypasses = quantize(model.softBypassLogOdds);
+		else
+		{
+			softKeyOffsets = quantize(model.softBypassKeyOffsets);
+			softMaxRelatives = new short[nCols];
+			for (int col=0; col<nCols; col++)
+			{
+				double relative = model.softBypassMaxRelatives.get(col);
+				softMaxRelatives[col] = (relative == Double.NEGATIVE_INFINITY)  ?  FLOOR  :  saturate((long)Math.ceil(relative * SCALE));
+			}
+		}
+		deleteOpen = quantize(model.deleteOpenLogOdds);
+		deleteExtend = quantize(model.deleteExtendLogOdds);
+		deleteClose = quantize(model.deleteCloseLogOdds);
+	}
+
+
+	private static short[] quantize(FloatBuffer logOdds)
+	{
+		short[] ret = new short[logOdds.capacity()];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = (logOdds.get(i) == CompiledProfileHMM.ZERO)  ?  FLOOR  :  saturate(Math.round((double)logOdds.get(i) * SCALE));
+		return ret;
+	}
+
+
+	private static short saturate(long units)
+	{
+		return (short)Math.max(FLOOR, Math.min(Short.MAX_VALUE, units));
+	}
+
+
+	// Saturating sum of 2 quantized values. Log probabilities are <= 0, so the sum can't be too high.
+	static int plus(int a, int b)
+	{
+		return Math.max(FLOOR, a + b);
+	}
+
+
+	// Upper bound on how much higher the exact score can be than quantized score, in log10 units. A path has one
+	// term for the first row, an emission and a transition for each later row, a term for each soft bypass, at most
+	// one DELETE term for each column skipped or chain opened, and one for STOP. The exact engine's float rounding
+	// is added.
+	public double getErrorBound(int[] symbols, float score)
+	{
+		long nTerms = 3L*symbols.length + nCols + 2;
+		return nTerms * 0.5 / SCALE + CompiledProfileHMM.roundingMargin(symbols, score);
+	}
+
+
+	public float logOddsViterbiScore(String sObservations) throws HMMException
+	{
+		return logOddsViterbiScore(model.encode(sObservations));
+	}
+
+
+	// Returns a VectorShortViterbi for this filter if the Vector API is available, otherwise this filter. It's loaded
+	// reflectively, as in CompiledProfileHMM.newVectorScorer(). Both give the same scores.
+	public LogOddsViterbiScorer newVectorScorer()
+	{
+		if (!CompiledProfileHMM.isVectorApiAvailable())
+			return this;
+		try
+		{
+			Class<?> clazz = Class.forName("adverb.hmm.VectorShortViterbi");
+			return (LogOddsViterbiScorer)clazz.getConstructor(ShortViterbi.class).newInstance(this);
+		}
+		catch (ReflectiveOperationException | LinkageError x)
+		{
+			return this;
+		}
+	}
+
+
+	// Approximate. Never lower than the exact score by more than getErrorBound().
+	public float logOddsViterbiScore(int[] symbols) throws HMMException
+	{
+		short[] prevRow = new short[rowLength];
+		double offset = generateFirstRow(symbols, prevRow);
+		short[] nextRow = new short[rowLength];
+
+		for (int i=1; i<symbols.length; i++)
+		{
+			int rowMax = generateNextRow(prevRow, nextRow, symbols[i]);
+			for (int state=0; state<rowLength; state++)
+				nextRow[state] = (short)Math.max(FLOOR, nextRow[state] - rowMax);
+			offset += (double)rowMax / SCALE;
+			short[] swap = prevRow;
+			prevRow = nextRow;
+			nextRow = swap;
+		}
+		return finalRowToScore(prevRow, offset);
+	}
+
+
+	// The first row is computed in float, then quantized relative to its best cell. Returns that cell, the offset of
+	// every later cell.
+	double generateFirstRow(int[] symbols, short[] row) throws HMMException
+	{
+		if (symbols.length == 0)
+			throw new HMMException("Empty input, no Viterbi path");
+		if (Arrays.stream(symbols).anyMatch(sym -> sym < 0))
+			throw new HMMException("Input too short, no Viterbi path");
+
+		float[] firstRow = new float[rowLength];
+		model.generateFirstRow(firstRow, symbols[0]);
+		float firstMax = CompiledProfileHMM.ZERO;
+		for (float score: firstRow)
+			firstMax = Math.max(firstMax, score);
+		if (firstMax == CompiledProfileHMM.ZERO)
+			throw new HMMException("Input too short, no Viterbi path");
+		for (int state=0; state<rowLength; state++)
+			row[state] = (firstRow[state] == CompiledProfileHMM.ZERO)  ?
+				FLOOR  :
+				saturate(Math.round(((double)firstRow[state] - firstMax) * SCALE));
+		return firstMax;
+	}
+
+
+	// Transition to STOP, in float.
+	float finalRowToScore(short[] row, double offset) throws HMMException
+	{
+		double best = Double.NEGATIVE_INFINITY;
+		for (int state=0; state<nStates; state++)
+			best = Math.max(best, (double)row[state] / SCALE + model.toStopLogOdds.get(state));
+		if (model.hasDeleteChain)
+			best = Math.max(best, (double)row[model.deleteIndex(nCols-1)] / SCALE + model.deleteToStopLogOdds);
+		if (best == Double.NEGATIVE_INFINITY)
+			throw new HMMException("Input too short, no Viterbi path");
+		return (float)(best + offset);
+	}
+
+
+	// Same recurrence as CompiledProfileHMM.generateNextRow(). Cells are relative to the previous row's best cell.
+	// Returns the best cell.
+	private int generateNextRow(short[] prevRow, short[] nextRow, int symbol)
+	{
+		int emissionOffset = symbol * nStates;
+		int softKeyMax = FLOOR;
+		int rowMax = FLOOR;
+		for (int col=0; col<=nCols; col++)
+		{
+			// INSERT state.
+			int insert = CompiledProfileHMM.insertIndex(col);
+			int best = plus(prevRow[insert], insertToSelf[col]);
+			if (col > 0)
+				best = Math.max(best, plus(prevRow[CompiledProfileHMM.matchIndex(col-1)], matchToInsert[col]));
+			best = plus(best, emissions[emissionOffset + insert]);
+			nextRow[insert] = (short)best;
+			rowMax = Math.max(rowMax, best);
+			if (col == nCols)
+				break;
+
+			// MATCH state.
+			int match = CompiledProfileHMM.matchIndex(col);
+			best = plus(prevRow[insert], insertToMatch[col]);
+			if (col > 0)
+				best = Math.max(best, plus(prevRow[CompiledProfileHMM.matchIndex(col-1)], matchToMatch[col]));
+			for (int n=model.hardBypassStarts.get(col); n<model.hardBypassStarts.get(col+1); n++)
+				best = Math.max(best, plus(prevRow[CompiledProfileHMM.matchIndex(model.hardBypassSrcCols.get(n))], hardBypasses[n]));
+			if (softBypasses != null)
+			{
+				for (int n=model.softBypassStarts.get(col); n<model.softBypassStarts.get(col+1); n++)
+					best = Math.max(best, plus(prevRow[CompiledProfileHMM.matchIndex(model.softBypassSrcCols.get(n))], softBypasses[n]));
+			}
+			else
+			{
+				if (col >= 2)
+					softKeyMax = Math.max(softKeyMax, plus(prevRow[CompiledProfileHMM.matchIndex(col-2)], softKeyOffsets[col-2]));
+				best = Math.max(best, plus(softKeyMax, softMaxRelatives[col]));
+			}
+			if (model.hasDeleteChain  &&  col > 0)
+				best = Math.max(best, plus(prevRow[model.deleteIndex(col-1)], deleteClose[col]));
+			best = plus(best, emissions[emissionOffset + match]);
+			nextRow[match] = (short)best;
+			rowMax = Math.max(rowMax, best);
+		}
+
+		// Silent DELETE chain. Never better than the MATCH state it opens from.
+		if (model.hasDeleteChain)
+		{
+			nextRow[model.deleteIndex(0)] = FLOOR;
+			for (int col=1; col<nCols; col++)
+			{
+				int fromMatch = plus(nextRow[CompiledProfileHMM.matchIndex(col-1)], deleteOpen[col]);
+				int fromDelete = plus(nextRow[model.deleteIndex(col-1)], deleteExtend[col]);
+				nextRow[model.deleteIndex(col)] = (short)Math.max(fromMatch, fromDelete);
+			}
+		}
+		return rowMax;
+	}
+}
@@ -29,6 +29,7 @@ public class ViterbiReport<S>
 	private double				probability;		// Only one of
 	private LogOdds				logOdds;			// these is valid
 	private List<S>				statePath;
+	private int[]				stateIndexPath;		// null if not computed
 	
 	
 	ViterbiReport(double probability, List<S> statePath)
@@ -43,6 +44,13 @@ public class ViterbiReport<S>
 		this.logOdds = logOdds;
 		this.statePath = statePath;
 	}
+
+	
+	ViterbiReport(LogOdds logOdds, List<S> statePath, int[] stateIndexPath)
+	{
+		this(logOdds, statePath);
+		this.stateIndexPath = stateIndexPath;
+	}
 	
 	
 	public String toString()
@@ -78,4 +86,12 @@ public class ViterbiReport<S>
 	{
 		return statePath;
 	}
+	
+	
+	// Numbered by the engine that computed the path, e.g. as in CompiledProfileHMM for
+	// ProfileHMM.viterbiWithLogOdds(). Null if that engine doesn't number its states.
+	public int[] getStateIndexPath()
+	{
+		return stateIndexPath;
+	}
 }
@@ -0,0 +1,137 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+
+//
+// Incremental log-odds Viterbi for a query that arrives in chunks, e.g. from a basecaller. The session holds the
+// DP row for the bases seen so far. append() advances it, and getScore() is the score the bases seen so far would
+// get as a complete query, including the transition to STOP. The arithmetic is the same as
+// CompiledProfileHMM.logOddsViterbiScore(), so after the last chunk the score is identical to scoring the whole
+// query at once.
+//
+// Every later transition and emission is a log probability, so no continuation can score higher than
+// getUpperBound(). A model whose upper bound is already below another model's score can be dropped before the
+// query is complete.
+//
+// clone() is a snapshot: the copy and the original advance independently, and restore() returns a session to a
+// snapshot's state.
+//
+
+
+public class ViterbiSession implements Cloneable
+{
+	private final static float			ZERO			= CompiledProfileHMM.ZERO;
+
+	private CompiledProfileHMM			model;
+	private float[]						row;
+	private float[]						nextRow;		// scratch
+	private CompiledProfileHMM.SoftBypassMax softMax;		// scratch
+	private int							length;
+
+
+	public ViterbiSession(CompiledProfileHMM model)
+	{
+		this.model = model;
+		row = new float[model.rowLength];
+		nextRow = new float[model.rowLength];
+		softMax = model.newSoftBypassMax();
+	}
+
+
+	public CompiledProfileHMM getModel()		{ return model; }
+	public int getLength()						{ return length; }
+
+
+	// Gaps are ignored. As in the compiled engine, a symbol the model can't emit leaves no Viterbi path.
+	public void append(String sObservations)
+	{
+		append(model.encode(sObservations));
+	}
+
+
+	public void append(int[] symbols)
+	{
+		for (int symbol: symbols)
+		{
+			if (length++ == 0)
+			{
+				model.generateFirstRow(row, symbol);
+				continue;
+			}
+			model.generateNextRow(row, nextRow, symbol, softMax);
+			float[] swap = row;
+			row = nextRow;
+			nextRow = swap;
+		}
+	}
+
+
+	// Score of the bases seen so far, as a complete query.
+	public float getScore() throws HMMException
+	{
+		if (length == 0)
+			throw new HMMException("Empty input, no Viterbi path");
+		return model.finalRowToScore(row);
+	}
+
+
+	// No continuation of the bases seen so far can score higher than this, apart from float rounding of a few ulps
+	// per base.
+	public double getUpperBound()
+	{
+		if (length == 0)
+			return 0;
+		float rowBest = ZERO;
+		for (float score: row)
+			rowBest = Math.max(rowBest, score);
+		return rowBest + model.toStopBound();
+	}
+
+
+	@Override
+	public ViterbiSession clone()
+	{
+		try
+		{
+			ViterbiSession ret = (ViterbiSession)super.clone();
+			ret.row = row.clone();
+			ret.nextRow = new float[row.length];
+			ret.softMax = model.newSoftBypassMax();
+			return ret;
+		}
+		catch (CloneNotSupportedException x)
+		{
+			throw new AssertionError(x);
+		}
+	}
+
+
+	// Returns this session to the state of snapshot, which must be a clone of a session for the same model.
+	public void restore(ViterbiSession snapshot)
+	{
+		assert snapshot.model == model;
+		System.arraycopy(snapshot.row, 0, row, 0, row.length);
+		length = snapshot.length;
+	}
+
+
+	public String toString()
+	{
+		return "ViterbiSession: " + length + " bases, " + model;
+	}
+}
@@ -17,6 +17,7 @@
 package adverb.util;
 
 import java.io.*;
+import java.security.*;
 import java.util.*;
 import java.util.function.Predicate;
 import java.util.stream.*;
@@ -113,6 +114,32 @@ public class FileUtils
 	}
 	
 	
+	// SHA-256 of the file's bytes, as 64 lowercase hex digits.
+	public static String contentHash(File f) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException x)
+		{
+			throw new IllegalStateException("Every JVM must support SHA-256", x);
+		}
+		try (InputStream in = new FileInputStream(f))
+		{
+			byte[] buf = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				digest.update(buf, 0, n);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b: digest.digest())
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+	
+	
 	static void sop(Object x)			{ System.out.println(x); }
 	
 	
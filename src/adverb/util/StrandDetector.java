@@ -0,0 +1,176 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+package adverb.util;
+
+import java.io.*;
+import java.nio.LongBuffer;
+import java.util.*;
+
+
+//
+// Guesses a query's orientation before any HMM is built, from the K-mers that it shares with the training set. Every
+// K-mer of every training sequence is a bit in a BitSet of 4^K bits. A query in the training set's orientation hits
+// most of its K-mers, and its reverse complement only hits about as many as a random sequence would. Only ACGT
+// K-mers count; a K-mer that contains a gap or wildcard is skipped.
+//
+// The BitSet can be saved with getKmerBits(), e.g. in a model library, so that a later run doesn't read the training
+// fastas.
+//
+
+
+public class StrandDetector
+{
+	public enum Strand
+	{
+		FORWARD, REVERSE, AMBIGUOUS
+	}
+
+
+	public final static int			K					= 12;
+	public final static int			MIN_HITS			= 10;		// fewer hits on the better strand is ambiguous
+	public final static double		MIN_HIT_RATIO		= 2;		// better strand must have at least this many times more hits
+
+	private final static int		MASK				= (1 << 2*K) - 1;
+
+	private BitSet					kmers;
+	private long					nSeqs;
+
+
+	public StrandDetector()
+	{
+		kmers = new BitSet(1 << 2*K);
+	}
+
+
+	// Adds the ungapped sequences of every record in every fasta.
+	public StrandDetector(Collection<File> fastas) throws IOException
+	{
+		this();
+		for (File fasta: fastas)
+			for (String[] rec: FastaReader.getRecords(fasta))
+				add(rec[1]);
+	}
+
+
+	// From bits saved by getKmerBits(), and the number of sequences they came from. The bits are copied, at most
+	// 4^K / 8 bytes.
+	public StrandDetector(LongBuffer kmerBits, long nSeqs)
+	{
+		kmers = BitSet.valueOf(kmerBits);
+		this.nSeqs = nSeqs;
+	}
+
+
+	// 2-bit code, or -1 for anything other than ACGT.
+	private static int encode(char ch)
+	{
+		switch (ch)
+		{
+			case 'A':  case 'a':	return 0;
+			case 'C':  case 'c':	return 1;
+			case 'G':  case 'g':	return 2;
+			case 'T':  case 't':	return 3;
+			default:				return -1;
+		}
+	}
+
+
+	// Gaps are removed, so K-mers span them as they would in an ungapped read.
+	public void add(String seq)
+	{
+		int kmer = 0;
+		int nValid = 0;
+		for (int i=0; i<seq.length(); i++)
+		{
+			char ch = seq.charAt(i);
+			if (ch == '-'  ||  ch == '.')
+				continue;
+			int code = encode(ch);
+			if (code < 0)
+			{
+				nValid = 0;
+				continue;
+			}
+			kmer = ((kmer << 2) | code) & MASK;
+			if (++nValid >= K)
+				kmers.set(kmer);
+		}
+		nSeqs++;
+	}
+
+
+	// Scans the query's K-mers in both orientations without building the reverse complement. Reverse complement
+	// K-mers are built right to left: each new base is complemented and becomes the high-order base.
+	public int[] countHitsBothStrands(String query)
+	{
+		int nForwardHits = 0;
+		int nReverseHits = 0;
+		int forward = 0;
+		int reverse = 0;
+		int nValid = 0;
+		int highShift = 2 * (K-1);
+		for (int i=0; i<query.length(); i++)
+		{
+			int code = encode(query.charAt(i));
+			if (code < 0)
+			{
+				nValid = 0;
+				continue;
+			}
+			forward = ((forward << 2) | code) & MASK;
+			reverse = (reverse >>> 2) | ((3 - code) << highShift);
+			if (++nValid >= K)
+			{
+				if (kmers.get(forward))
+					nForwardHits++;
+				if (kmers.get(reverse))
+					nReverseHits++;
+			}
+		}
+		return new int[] { nForwardHits, nReverseHits };
+	}
+
+
+	public Strand detect(String query)
+	{
+		int[] hits = countHitsBothStrands(query);
+		return decide(hits[0], hits[1]);
+	}
+
+
+	public static Strand decide(int nForwardHits, int nReverseHits)
+	{
+		if (Math.max(nForwardHits, nReverseHits) < MIN_HITS)
+			return Strand.AMBIGUOUS;
+		else if (nForwardHits >= MIN_HIT_RATIO * nReverseHits)
+			return Strand.FORWARD;
+		else if (nReverseHits >= MIN_HIT_RATIO * nForwardHits)
+			return Strand.REVERSE;
+		else
+			return Strand.AMBIGUOUS;
+	}
+
+
+	public long getNSeqs()				{ return nSeqs; }
+	public LongBuffer getKmerBits()		{ return LongBuffer.wrap(kmers.toLongArray()); }
+	public int getNKmers()				{ return kmers.cardinality(); }
+
+
+	public String toString()
+	{
+		return "StrandDetector: " + getNKmers() + " distinct " + K + "-mers from " + nSeqs + " sequences";
+	}
+}
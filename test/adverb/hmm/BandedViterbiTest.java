@@ -0,0 +1,194 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Scores random queries with BandedViterbi and with full DP. A banded score is the best path inside the band, so it
+// must never be above the exact score. Queries include full-length sequences, fragments, and queries whose exact
+// path lies outside the initial band: the back half of a long model, with every k-mer broken so that the diagonal
+// falls back to i*nCols/L and starts the band at column 0. Most full-length queries must finish inside a band, or
+// banded scoring saves nothing.
+//
+// Then, as in BuildAndExecuteHmms, queries are classified against panels of related genera, with each score's
+// threshold the best score so far, and banded scoring must choose the same genus as exact scoring.
+//
+//
+
+
+public class BandedViterbiTest
+{
+	private final static int		N_MODELS			= 100;
+	private final static double		MIN_BANDED_RATE		= 0.9;		// of full-length queries
+	private final static int		N_PANELS			= 4;
+	private final static int		N_GENERA			= 6;
+
+
+	private static String ungapped(Alignment alignment, int row, int fromCol)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int col=fromCol; col<alignment.nCols(); col++)
+			if (alignment.get(row).charAt(col) != '-')
+				sb.append(alignment.get(row).charAt(col));
+		return sb.toString();
+	}
+
+
+	// Substitutes every 6th base, so that no k-mer matches the consensus.
+	private static String breakKmers(String s)
+	{
+		char[] chars = s.toCharArray();
+		for (int i=0; i<chars.length; i+=6)
+			chars[i] = (chars[i] == 'A')  ?  'C'  :  'A';
+		return new String(chars);
+	}
+
+
+	private static String mutate(Random rand, String s, double rate)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (char ch: s.toCharArray())
+		{
+			double x = rand.nextDouble();
+			if (x < rate)
+				continue;
+			sb.append((x < 2*rate)  ?  "ACGT".charAt(rand.nextInt(4))  :  ch);
+		}
+		return sb.toString();
+	}
+
+
+	// Returns the number of queries whose banded genus isn't the exact genus.
+	private static int classifyPanel(Random rand) throws HMMException
+	{
+		int nCols = 500 + rand.nextInt(200);
+		char[] ancestor = TestAlignments.randomConsensus(rand, nCols);
+		List<Alignment> alignments = new ArrayList<>();
+		List<CompiledProfileHMM> models = new ArrayList<>();
+		for (int genus=0; genus<N_GENERA; genus++)
+		{
+			Alignment alignment = TestAlignments.random(rand, TestAlignments.diverge(rand, ancestor, 0.1), 3 + rand.nextInt(8));
+			alignments.add(alignment);
+			models.add(new ProfileHMM(alignment).compile());
+		}
+
+		int nWrong = 0;
+		for (int genus=0; genus<N_GENERA; genus++)
+		{
+			Alignment alignment = alignments.get(genus);
+			String query = mutate(rand, ungapped(alignment, rand.nextInt(alignment.size()), 0), 0.05);
+			int bandedBest = -1;
+			int exactBest = -1;
+			float bandedThreshold = Float.NEGATIVE_INFINITY;
+			float exactThreshold = Float.NEGATIVE_INFINITY;
+			for (int n=0; n<N_GENERA; n++)
+			{
+				CompiledProfileHMM model = models.get(n);
+				int[] symbols = model.encode(query);
+				float banded = new BandedViterbi(model).logOddsViterbiScore(symbols, model.getBandHalfWidth(), bandedThreshold);
+				if (banded > bandedThreshold)
+				{
+					bandedThreshold = banded;
+					bandedBest = n;
+				}
+				float exact = model.logOddsViterbiScore(symbols, exactThreshold);
+				if (exact > exactThreshold)
+				{
+					exactThreshold = exact;
+					exactBest = n;
+				}
+			}
+			if (bandedBest != exactBest)
+			{
+				System.out.println("  genus " + genus + ": banded chose " + bandedBest + ", exact chose " + exactBest);
+				nWrong++;
+			}
+		}
+		return nWrong;
+	}
+
+
+	public static void main(String[] args) throws HMMException
+	{
+		Random rand = new Random(1);
+		int nQueries = 0;
+		int nFullLength = 0;
+		int nFullLengthBanded = 0;
+		int nSame = 0;
+		int nWidened = 0;
+		int nFailures = 0;
+		for (int i=0; i<N_MODELS; i++)
+		{
+			int nCols = 100 + rand.nextInt(200);
+			Alignment alignment = TestAlignments.random(rand, nCols, 2 + rand.nextInt(8));
+			ProfileHMM hmm = new ProfileHMM(alignment);
+			CompiledProfileHMM model = hmm.compile();
+			BandedViterbi banded = new BandedViterbi(model);
+			int row = rand.nextInt(alignment.size());
+
+			List<String> queries = new ArrayList<>();
+			queries.add(mutate(rand, ungapped(alignment, row, 0), 0.05));
+			String whole = ungapped(alignment, row, 0);
+			int start = rand.nextInt(whole.length() / 2);
+			queries.add(whole.substring(start, start + 10 + rand.nextInt(40)));
+			queries.add(breakKmers(ungapped(alignment, row, nCols/2 - 10)));
+
+			for (int n=0; n<queries.size(); n++)
+			{
+				String query = queries.get(n);
+				int[] symbols = model.encode(query);
+				float exact = model.logOddsViterbiScore(symbols);
+				float score = banded.logOddsViterbiScore(symbols, hmm.getBandHalfWidth());
+				nQueries++;
+				if (n == 0)
+				{
+					nFullLength++;
+					if (!banded.isExact())
+						nFullLengthBanded++;
+				}
+				if (score == exact)
+					nSame++;
+				if (banded.getNPasses() > 1)
+					nWidened++;
+				if (score > exact)
+				{
+					System.out.println("  nCols=" + nCols + " banded=" + score + " exact=" + exact + " after " +
+						banded.getNPasses() + " passes: " + query);
+					nFailures++;
+				}
+			}
+		}
+		System.out.println(nQueries + " queries, " + nFullLengthBanded + " of " + nFullLength + " full-length queries " +
+			"finished inside a band, " + nWidened + " needed more than 1 pass, " + nSame + " scored the same as exact, " +
+			nFailures + " scored above exact");
+
+		int nWrongGenus = 0;
+		for (int i=0; i<N_PANELS; i++)
+			nWrongGenus += classifyPanel(rand);
+		System.out.println(N_PANELS*N_GENERA + " queries against panels of " + N_GENERA + " related genera, " +
+			nWrongGenus + " classified differently from exact");
+
+		if (nFailures > 0  ||  nFullLengthBanded < MIN_BANDED_RATE*nFullLength  ||  nWrongGenus > 0)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("PASSED");
+	}
+}
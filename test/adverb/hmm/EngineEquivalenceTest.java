@@ -0,0 +1,322 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import adverb.util.*;
+
+
+//
+// Checks that every exact engine gives exactly the scores of the map-based reference, ProfileHMM.logOddsViterbiScore(),
+// on random models and queries: full-length queries, queries with a deletion or an insertion, and fragments. The
+// engines are the compiled recurrence with its soft bypass running maximum, early abandon, BatchViterbi,
+// PrefixSharingViterbi, ViterbiSession, ParallelViterbi, ModelPack via ProfileHMMLibrary, and CheckpointedViterbi,
+// whose paths must also be the map-based paths. A library of the models is written to a ModelLibraryFile and mapped
+// back, and the mapped models must score the same.
+//
+// The map-based Viterbi has no silent states, so SILENT_CHAIN models are checked against the compiled recurrence, and
+// their checkpointed paths against the score. The map-based Viterbi is slow, so models are small, except for a few
+// models wide enough for ParallelViterbi to split.
+//
+// Also checks Alignment's column counts and gap run histograms against counts taken from its rows as Strings.
+//
+
+
+public class EngineEquivalenceTest
+{
+	private final static int		N_MODELS			= 24;
+	private final static int		N_SPLIT_MODELS		= 4;
+	private final static int		N_QUERIES			= 4;		// per model
+	private final static int		N_ALIGNMENTS		= 30;
+
+	private static int				nChecks;
+	private static int				nFailures;
+
+
+	private static void check(boolean ok, String what)
+	{
+		nChecks++;
+		if (!ok)
+		{
+			System.out.println("  " + what);
+			nFailures++;
+		}
+	}
+
+
+	// A mutated row of the alignment, without gaps. Query 1 has a deletion, query 2 is a fragment, query 3 has an
+	// insertion.
+	private static String randomQuery(Random rand, Alignment alignment, int n)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (char ch: alignment.get(rand.nextInt(alignment.size())).toCharArray())
+			if (ch != '-')
+				sb.append((rand.nextDouble() < 0.08)  ?  "ACGT".charAt(rand.nextInt(4))  :  ch);
+		String query = sb.toString();
+		int len = query.length();
+		switch (n % 4)
+		{
+			case 1:
+				int from = rand.nextInt(len/2);
+				return query.substring(0, from) + query.substring(from + 1 + rand.nextInt(len/4));
+			case 2:
+				int start = rand.nextInt(len/3);
+				return query.substring(start, start + len/2);
+			case 3:
+				int at = rand.nextInt(len);
+				return query.substring(0, at) + "ACGTTGCA" + query.substring(at);
+			default:
+				return query;
+		}
+	}
+
+
+	private static List<Character> toList(String s)
+	{
+		List<Character> ret = new ArrayList<>();
+		for (char ch: s.toCharArray())
+			ret.add(ch);
+		return ret;
+	}
+
+
+	// Sum of the log odds along a reported path, which must emit the query.
+	private static double pathLogOdds(ProfileHMM hmm, List<String> path, String query)
+	{
+		double sum = 0;
+		String prev = null;
+		int nEmitted = 0;
+		for (String state: path)
+		{
+			LogOdds transition = (prev == null)  ?  hmm.logOddsInitialProbs.get(state)  :  hmm.logOddsTransitionProbs.get(prev, state);
+			if (transition == null)
+				return Double.NaN;
+			sum += CompiledProfileHMM.toFloat(transition);
+			if (!ProfileHMM.isDeleteState(state)  &&  !ProfileHMM.isStopState(state))
+			{
+				if (nEmitted == query.length())
+					return Double.NaN;
+				sum += CompiledProfileHMM.toFloat(hmm.logOddsEmissionProbs.get(state, query.charAt(nEmitted++)));
+			}
+			prev = state;
+		}
+		return (nEmitted == query.length())  ?  sum  :  Double.NaN;
+	}
+
+
+	// Queries are scored by the map-based Viterbi if mapBased is true, otherwise by the compiled recurrence.
+	private static void checkEngines(ProfileHMM hmm, List<String> queries, boolean mapBased, ForkJoinPool pool) throws HMMException
+	{
+		CompiledProfileHMM model = hmm.compile();
+		float[] references = new float[queries.size()];
+		for (int n=0; n<queries.size(); n++)
+		{
+			String query = queries.get(n);
+			int[] symbols = model.encode(query);
+			String where = model + ", query " + n;
+			float reference = mapBased  ?  hmm.logOddsViterbiScore(query)  :  model.logOddsViterbiScore(symbols);
+			references[n] = reference;
+
+			check(model.logOddsViterbiScore(symbols) == reference, where + ": compiled score differs");
+			check(model.logOddsViterbiScore(symbols, reference - 1) == reference, where + ": early abandon below the score differs");
+			check(model.logOddsViterbiScore(symbols, reference + 1) < reference + 1, where + ": early abandon above the score isn't below it");
+			check(new ParallelViterbi(model, pool).logOddsViterbiScore(symbols) == reference, where + ": split score differs");
+
+			ViterbiSession session = hmm.newViterbiSession();
+			for (int start=0; start<query.length(); start+=1+query.length()/5)
+				session.append(query.substring(start, Math.min(query.length(), start + 1 + query.length()/5)));
+			check(session.getScore() == reference, where + ": session score differs");
+
+			ViterbiReport<String> report = hmm.viterbiWithLogOdds(query);
+			check(report.getLogOdds().get() == reference, where + ": checkpointed score differs");
+			if (mapBased)
+			{
+				List<String> mapBasedPath = hmm.mapBasedViterbiWithLogOdds(toList(query), true).getStatePath();
+				check(report.getStatePath().equals(mapBasedPath), where + ": checkpointed path differs");
+			}
+			else
+				check(Math.abs(pathLogOdds(hmm, report.getStatePath(), query) - reference) < 1e-3, where + ": checkpointed path doesn't score " + reference);
+		}
+
+		// Queries that share prefixes, for PrefixSharingViterbi.
+		List<String> shared = new ArrayList<>(queries);
+		List<Float> sharedReferences = new ArrayList<>();
+		for (float reference: references)
+			sharedReferences.add(reference);
+		for (String query: queries)
+		{
+			String extended = query + queries.get(0);
+			shared.add(extended);
+			sharedReferences.add(model.logOddsViterbiScore(extended));
+		}
+		float[] batchScores = new BatchViterbi(model, 3).logOddsViterbiScores(shared);
+		float[] prefixScores = new PrefixSharingViterbi(model).logOddsViterbiScores(shared);
+		for (int n=0; n<shared.size(); n++)
+		{
+			check(batchScores[n] == sharedReferences.get(n), model + ", query " + n + ": batch score differs");
+			check(prefixScores[n] == sharedReferences.get(n), model + ", query " + n + ": prefix sharing score differs");
+		}
+	}
+
+
+	// Every model scores every query with ModelPacks, and the models are written to a ModelLibraryFile and mapped back.
+	private static void checkLibrary(List<ProfileHMM> hmms, List<String> queries) throws IOException, HMMException
+	{
+		ProfileHMMLibrary library = new ProfileHMMLibrary(4);
+		for (int i=0; i<hmms.size(); i++)
+		{
+			ModelSource source = (i%2 == 0)  ?  new ModelSource("hash" + i, 1000 + i, 2000 + i, 3 + i)  :  null;
+			library.add("Model" + i, hmms.get(i).compile(), source);
+		}
+		File file = File.createTempFile("EngineEquivalenceTest", ".lib");
+		file.deleteOnExit();
+		library.write(file);
+		ProfileHMMLibrary mapped = ProfileHMMLibrary.map(file, 4);
+
+		check(mapped.size() == library.size(), "Mapped library has " + mapped.size() + " models");
+		for (int i=0; i<library.size(); i++)
+		{
+			check(mapped.getName(i).equals(library.getName(i)), "Mapped model " + i + " is named " + mapped.getName(i));
+			check(mapped.indexOf(library.getName(i)) == i, "Mapped model " + i + " isn't indexed by name");
+			check(sameSource(library.getSource(i), mapped.getSource(i)), "Mapped model " + i + " has source " + mapped.getSource(i));
+		}
+		for (String query: queries)
+		{
+			float[] packedScores = library.logOddsViterbiScores(query);
+			float[] mappedScores = mapped.logOddsViterbiScores(query);
+			for (int i=0; i<library.size(); i++)
+			{
+				float reference;
+				try
+				{
+					reference = library.getModel(i).logOddsViterbiScore(query);
+				}
+				catch (HMMException x)
+				{
+					reference = Float.NEGATIVE_INFINITY;
+				}
+				check(packedScores[i] == reference, library.getName(i) + ": packed score differs");
+				check(mappedScores[i] == reference, library.getName(i) + ": packed score of mapped model differs");
+				if (reference != Float.NEGATIVE_INFINITY)
+					check(mapped.getModel(i).logOddsViterbiScore(query) == reference, library.getName(i) + ": mapped model's score differs");
+			}
+		}
+	}
+
+
+	private static boolean sameSource(ModelSource a, ModelSource b)
+	{
+		if (a == null  ||  b == null)
+			return a == b;
+		return a.getContentHash().equals(b.getContentHash())  &&  a.getLength() == b.getLength()  &&
+			   a.getLastModified() == b.getLastModified()  &&  a.getNSeqs() == b.getNSeqs();
+	}
+
+
+	// Column counts and gap runs from the rows as Strings, as Alignment computed them before it stored a matrix.
+	private static void checkAlignment(Alignment alignment, String where)
+	{
+		List<String> rows = new ArrayList<>(alignment);
+		int nCols = rows.get(0).length();
+		check(alignment.nCols() == nCols, where + ": " + alignment.nCols() + " columns");
+		List<TreeBinCounter<Integer>> gapCtrs = alignment.getGapLengthCtrsByStartCol();
+		check(gapCtrs.size() == nCols, where + ": " + gapCtrs.size() + " gap run counters");
+		List<TreeBinCounter<Integer>> expectedGapCtrs = new ArrayList<>();
+		for (int col=0; col<nCols; col++)
+			expectedGapCtrs.add(new TreeBinCounter<>());
+		for (String row: rows)
+		{
+			for (int col=0; col<nCols; col++)
+			{
+				if (row.charAt(col) != '-'  ||  (col > 0  &&  row.charAt(col-1) == '-'))
+					continue;
+				int end = col;
+				while (end < nCols  &&  row.charAt(end) == '-')
+					end++;
+				expectedGapCtrs.get(col).bumpCountForBin(end - col);
+			}
+		}
+		for (int col=0; col<nCols; col++)
+		{
+			TreeBinCounter<Character> expected = new TreeBinCounter<>();
+			for (String row: rows)
+				expected.bumpCountForBin(row.charAt(col));
+			check(sameCounts(alignment.binCountColumn(col), expected), where + ": column " + col + " counts differ");
+			check(sameCounts(gapCtrs.get(col), expectedGapCtrs.get(col)), where + ": gap runs at column " + col + " differ");
+		}
+	}
+
+
+	private static <K> boolean sameCounts(TreeBinCounter<K> a, TreeBinCounter<K> b)
+	{
+		if (!a.keySet().equals(b.keySet()))
+			return false;
+		for (K key: a.keySet())
+			if (a.getCountForBin(key) != b.getCountForBin(key))
+				return false;
+		return true;
+	}
+
+
+	public static void main(String[] args) throws Exception
+	{
+		Random rand = new Random(9);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		ParallelViterbi.setMinCols(256);
+		List<ProfileHMM> hmms = new ArrayList<>();
+		List<String> allQueries = new ArrayList<>();
+		for (int i=0; i<N_MODELS+N_SPLIT_MODELS; i++)
+		{
+			int nCols = (i < N_MODELS)  ?  20 + rand.nextInt(80)  :  300 + rand.nextInt(200);
+			Alignment alignment = TestAlignments.random(rand, nCols, 2 + rand.nextInt(8));
+			ProfileHMM hmm = (i%3 == 0)  ?  new ProfileHMM(alignment, ProfileHMM.DeleteMode.SILENT_CHAIN)  :  new ProfileHMM(alignment);
+			List<String> queries = new ArrayList<>();
+			for (int n=0; n<N_QUERIES; n++)
+				queries.add(randomQuery(rand, alignment, n));
+			boolean mapBased = i < N_MODELS  &&  hmm.getDeleteMode() == ProfileHMM.DeleteMode.FOLDED;
+			if (i >= N_MODELS)
+				check(new ParallelViterbi(hmm.compile(), pool).getNChunks() > 1, hmm.compile() + " isn't split");
+			checkEngines(hmm, queries, mapBased, pool);
+			hmms.add(hmm);
+			allQueries.add(queries.get(0));
+		}
+		checkLibrary(hmms, allQueries.subList(0, 6));
+		pool.shutdown();
+
+		for (int i=0; i<N_ALIGNMENTS; i++)
+		{
+			Alignment alignment = TestAlignments.random(rand, 10 + rand.nextInt(60), 2 + rand.nextInt(10));
+			checkAlignment(alignment, "Alignment " + i);
+			int nTrimFromStart = rand.nextInt(5);
+			int nTrimFromEnd = rand.nextInt(5);
+			alignment.trim(nTrimFromStart, nTrimFromEnd).removeAllGapRecords();
+			if (!alignment.isEmpty())
+				checkAlignment(alignment, "Trimmed alignment " + i);
+		}
+
+		System.out.println(nChecks + " checks, " + nFailures + " failed");
+		if (nFailures > 0)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("PASSED");
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Scores random mini-barcode-sized fragments with FragmentViterbi's band and with its full DP pass. Most fragments
+// must finish inside a band, so that their cost depends on the fragment's length. A banded score is the best path
+// inside the band, so it must never be above the full DP score, and for fragments like these it should almost always
+// be the same. Models with and without silent DELETE chains are included.
+//
+
+
+public class FragmentViterbiTest
+{
+	private final static int		N_MODELS			= 30;
+	private final static double		MIN_BANDED_RATE		= 0.9;
+	private final static double		MIN_SAME_RATE		= 0.9;		// banded score same as full DP
+
+
+	public static void main(String[] args) throws HMMException
+	{
+		Random rand = new Random(6);
+		int nFragments = 0;
+		int nBanded = 0;
+		int nSame = 0;
+		int nFailures = 0;
+		for (int i=0; i<N_MODELS; i++)
+		{
+			int nCols = 500 + rand.nextInt(200);
+			Alignment alignment = TestAlignments.random(rand, nCols, 3 + rand.nextInt(7));
+			ProfileHMM hmm = (i%3 == 0)  ?  new ProfileHMM(alignment, ProfileHMM.DeleteMode.SILENT_CHAIN)  :  new ProfileHMM(alignment);
+			CompiledProfileHMM model = hmm.compile();
+			FragmentViterbi fragmentViterbi = new FragmentViterbi(model);
+			for (int n=0; n<3; n++)
+			{
+				StringBuilder sb = new StringBuilder();
+				for (char ch: alignment.get(rand.nextInt(alignment.size())).toCharArray())
+					if (ch != '-')
+						sb.append((rand.nextDouble() < 0.08)  ?  "ACGT".charAt(rand.nextInt(4))  :  ch);
+				int len = 100 + rand.nextInt(150);
+				int start = rand.nextInt(sb.length() - len);
+				String fragment = sb.substring(start, start + len);
+
+				FragmentReport banded = fragmentViterbi.viterbi(fragment, hmm.getBandHalfWidth());
+				FragmentReport full = fragmentViterbi.viterbi(fragment, Integer.MAX_VALUE);
+				nFragments++;
+				if (!banded.isExact())
+					nBanded++;
+				if (banded.getScore() == full.getScore())
+					nSame++;
+				if (banded.getScore() > full.getScore())
+				{
+					System.out.println("  nCols=" + nCols + " banded=" + banded + " full=" + full + ": " + fragment);
+					nFailures++;
+				}
+			}
+		}
+
+		System.out.println(nFragments + " fragments, " + nBanded + " finished inside a band, " + nSame +
+			" scored the same as full DP, " + nFailures + " scored above full DP");
+		if (nFailures > 0  ||  nBanded < MIN_BANDED_RATE*nFragments  ||  nSame < MIN_SAME_RATE*nFragments)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("PASSED");
+	}
+}
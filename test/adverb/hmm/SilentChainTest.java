@@ -0,0 +1,77 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Builds SILENT_CHAIN models from random alignments with internal indels and leading and trailing gaps, and checks
+// that every state's outgoing transitions sum to 1. Hard DELETE columns are where chained models have gone wrong.
+// Run with assertions disabled to see every bad row, rather than the constructor's first failed assertion.
+//
+
+
+public class SilentChainTest
+{
+	private final static int		N_MODELS			= 200;
+	private final static double		TOLERANCE			= 1.0e-4;
+
+
+	// Returns the number of states whose outgoing transitions don't sum to 1.
+	static int countBadRows(ProfileHMM hmm)
+	{
+		int nBad = 0;
+		for (String state: hmm.transitionProbs.keySet())
+		{
+			double sum = 0;
+			for (float p: hmm.transitionProbs.get(state).values())
+				sum += p;
+			if (Math.abs(1 - sum) > TOLERANCE)
+			{
+				System.out.println("  " + state + " sums to " + sum);
+				nBad++;
+			}
+		}
+		return nBad;
+	}
+
+
+	public static void main(String[] args)
+	{
+		Random rand = new Random(1);
+		int nBadModels = 0;
+		int nHardDeletes = 0;
+		for (int i=0; i<N_MODELS; i++)
+		{
+			Alignment alignment = TestAlignments.random(rand, 10 + rand.nextInt(50), 2 + rand.nextInt(10));
+			ProfileHMM hmm = new ProfileHMM(alignment, ProfileHMM.DeleteMode.SILENT_CHAIN);
+			nHardDeletes += hmm.getHardDeleteStates().size();
+			if (countBadRows(hmm) > 0)
+				nBadModels++;
+		}
+
+		System.out.println(N_MODELS + " SILENT_CHAIN models, " + nHardDeletes + " hard DELETE states, " +
+			nBadModels + " models with bad rows");
+		if (nHardDeletes == 0  ||  nBadModels > 0)
+		{
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("PASSED");
+	}
+}
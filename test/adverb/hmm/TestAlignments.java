@@ -0,0 +1,100 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    Copyright (C) 2021 Philip Heller.
+ *
+ */
+
+
+package adverb.hmm;
+
+import java.util.*;
+
+
+//
+// Random alignments for the tests: a random consensus, mutated per row, with internal indels and leading and
+// trailing gaps. Every column has at least 1 residue.
+//
+
+
+class TestAlignments
+{
+	static Alignment random(Random rand, int nCols, int nRows)
+	{
+		Alignment alignment = rowsFrom(rand, randomConsensus(rand, nCols), nRows);
+		return (alignment != null)  ?  alignment  :  random(rand, nCols, nRows);
+	}
+
+
+	// Rows of a given consensus, e.g. one of several related genera (see diverge()).
+	static Alignment random(Random rand, char[] consensus, int nRows)
+	{
+		Alignment alignment = null;
+		while (alignment == null)
+			alignment = rowsFrom(rand, consensus, nRows);
+		return alignment;
+	}
+
+
+	static char[] randomConsensus(Random rand, int nCols)
+	{
+		char[] consensus = new char[nCols];
+		for (int col=0; col<nCols; col++)
+			consensus[col] = "ACGT".charAt(rand.nextInt(4));
+		return consensus;
+	}
+
+
+	// Substitutes a fraction of the consensus, so that the result is related to it.
+	static char[] diverge(Random rand, char[] consensus, double rate)
+	{
+		char[] ret = consensus.clone();
+		for (int col=0; col<ret.length; col++)
+			if (rand.nextDouble() < rate)
+				ret[col] = "ACGT".charAt(rand.nextInt(4));
+		return ret;
+	}
+
+
+	// Null if some column is all gaps.
+	private static Alignment rowsFrom(Random rand, char[] consensus, int nRows)
+	{
+		int nCols = consensus.length;
+		List<String> rows = new ArrayList<>();
+		for (int row=0; row<nRows; row++)
+		{
+			char[] chars = consensus.clone();
+			for (int col=0; col<nCols; col++)
+				if (rand.nextDouble() < 0.1)
+					chars[col] = "ACGT".charAt(rand.nextInt(4));
+			int nIndels = rand.nextInt(4);
+			for (int n=0; n<nIndels; n++)
+			{
+				int start = rand.nextInt(nCols);
+				int len = 1 + rand.nextInt(6);
+				for (int col=start; col<Math.min(nCols, start+len); col++)
+					chars[col] = '-';
+			}
+			rows.add(new String(chars));
+		}
+
+		// Every column must have at least 1 residue.
+		for (int col=0; col<nCols; col++)
+		{
+			boolean allGaps = true;
+			for (String row: rows)
+				allGaps &= row.charAt(col) == '-';
+			if (allGaps)
+				return null;
+		}
+		return new Alignment(rows);
+	}
+}